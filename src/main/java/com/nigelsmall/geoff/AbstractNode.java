@@ -16,26 +16,49 @@
 
 package com.nigelsmall.geoff;
 
+import com.nigelsmall.geoff.reader.RawPropertyMap;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AbstractNode {
 
     private static ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * Anonymous nodes are numbered from blocks of ids handed out to each
+     * thread in turn, so that numbering them never contends.
+     */
+    final private static int ID_BLOCK_SIZE = 1024;
+    final private static AtomicLong nextIdBlock = new AtomicLong();
+    final private static ThreadLocal<long[]> idBlock = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {0, 0};
+        }
+    };
+
+    /**
+     * Keeps the names of anonymous nodes distinct from those of any other
+     * process.
+     */
+    final private static long ANONYMOUS_PREFIX = UUID.randomUUID().getMostSignificantBits();
+
     private String name;
+    private long id;
     private boolean named;
     private HashSet<String> labels;
-    private HashMap<String, Object> properties;
+    private ShapedPropertyMap properties;
+    private RawPropertyMap rawProperties;
     private String uniqueLabel;
     private String uniqueKey;
 
     public AbstractNode(String name, Set<String> labels, Map<String, Object> properties) {
         if (name == null) {
-            this.name = UUID.randomUUID().toString();
+            this.id = nextId();
             this.named = false;
         } else {
             this.name = name;
@@ -45,10 +68,34 @@ public class AbstractNode {
         this.mergeProperties(properties);
     }
 
+    /**
+     * Rebuild a node exactly as it was, without filling in a missing
+     * unique value.
+     */
+    AbstractNode(String name, boolean named, Set<String> labels, Map<String, Object> properties,
+                 String uniqueLabel, String uniqueKey) {
+        this.name = name;
+        this.named = named;
+        this.mergeLabels(labels);
+        this.mergeProperties(properties);
+        this.uniqueLabel = uniqueLabel;
+        this.uniqueKey = uniqueKey;
+    }
+
+    private static long nextId() {
+        long[] block = idBlock.get();
+        if (block[0] == block[1]) {
+            block[1] = nextIdBlock.addAndGet(ID_BLOCK_SIZE);
+            block[0] = block[1] - ID_BLOCK_SIZE;
+        }
+        return ++block[0];
+    }
+
     public String toString() {
         final ArrayList<String> parts = new ArrayList<>();
-        if (this.name != null && !this.name.equals("")) {
-            parts.add(this.name);
+        String name = this.getName();
+        if (!name.equals("")) {
+            parts.add(name);
         }
         if (this.labels != null) {
             String labels = "";
@@ -60,7 +107,7 @@ public class AbstractNode {
             }
             parts.add(labels);
         }
-        if (this.properties != null) {
+        if (this.getProperties() != null) {
             if (parts.size() > 0) {
                 parts.add(" ");
             }
@@ -73,7 +120,14 @@ public class AbstractNode {
         return "(" + StringUtils.join(parts, "") + ")";
     }
 
+    /**
+     * The name of this node. An anonymous node is only given a name, in
+     * the form of a UUID, when first asked for it.
+     */
     public String getName() {
+        if (this.name == null) {
+            this.name = new UUID(ANONYMOUS_PREFIX, this.id).toString();
+        }
         return this.name;
     }
 
@@ -90,15 +144,41 @@ public class AbstractNode {
     }
 
     public Map<String, Object> getProperties() {
+        this.decodeProperties();
         return this.properties;
     }
 
+    /**
+     * Properties still held as raw text, or null if there are none.
+     */
+    public RawPropertyMap getRawProperties() {
+        return this.rawProperties;
+    }
+
+    private void decodeProperties() {
+        if (this.rawProperties != null) {
+            RawPropertyMap rawProperties = this.rawProperties;
+            this.rawProperties = null;
+            this.mergeProperties(rawProperties.decode());
+        }
+    }
+
     public void mergeNode(AbstractNode node) {
+        if (node == this) {
+            return;
+        }
         if (node.name != null) {
             this.name = node.name;
         }
+        if (node.labels == null && node.properties == null && node.rawProperties == null
+                && node.uniqueLabel == null) {
+            // a bare reference by name, as most nodes in a path are
+            return;
+        }
         this.mergeLabels(node.labels);
+        this.mergeRawProperties(node.rawProperties);
         this.mergeProperties(node.properties);
+        this.setUnique(node.uniqueLabel, node.uniqueKey);
     }
 
     public void mergeLabels(Set<String> labels) {
@@ -113,23 +193,39 @@ public class AbstractNode {
 
     public void mergeProperties(Map<String, Object> properties) {
         if (properties != null) {
+            this.decodeProperties();
             if (this.properties == null) {
-                this.properties = new HashMap<>(properties);
+                this.properties = new ShapedPropertyMap(properties);
             } else {
                 this.properties.putAll(properties);
             }
         }
     }
 
+    /**
+     * Merge properties that are still raw text, leaving them undecoded
+     * if this node has no other properties yet.
+     */
+    public void mergeRawProperties(RawPropertyMap properties) {
+        if (properties != null) {
+            if (this.properties == null && this.rawProperties == null) {
+                this.rawProperties = properties;
+            } else {
+                this.mergeProperties(properties.decode());
+            }
+        }
+    }
+
     public void setUnique(String label, String key) {
         if (label != null && key != null) {
+            this.decodeProperties();
             if (this.labels == null) {
                 this.labels = new HashSet<>();
             }
             this.labels.add(label);
             this.uniqueLabel = label;
             if (this.properties == null) {
-                this.properties = new HashMap<>();
+                this.properties = new ShapedPropertyMap();
             }
             if (!this.properties.containsKey(key)) {
                 this.properties.put(key, null);
@@ -146,7 +242,19 @@ public class AbstractNode {
         return this.uniqueKey;
     }
 
+    /**
+     * A rough estimate of the heap taken by this node, in bytes.
+     */
+    public long estimateSize() {
+        long size = HeapSize.OBJECT + 6 * HeapSize.REFERENCE + 8 + HeapSize.of(this.name) + HeapSize.of(this.labels);
+        if (this.rawProperties != null) {
+            size += HeapSize.OBJECT + HeapSize.of(this.rawProperties.getText());
+        }
+        return size + HeapSize.of(this.properties);
+    }
+
     public Object getUniqueValue() {
+        this.decodeProperties();
         if (this.properties.containsKey(uniqueKey)) {
             return this.properties.get(uniqueKey);
         } else {
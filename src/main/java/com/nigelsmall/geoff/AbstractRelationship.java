@@ -16,12 +16,12 @@
 
 package com.nigelsmall.geoff;
 
+import com.nigelsmall.geoff.reader.RawPropertyMap;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
 public class AbstractRelationship {
@@ -30,7 +30,8 @@ public class AbstractRelationship {
 
     private AbstractNode startNode;
     private String type;
-    private HashMap<String, Object> properties;
+    private ShapedPropertyMap properties;
+    private RawPropertyMap rawProperties;
     private AbstractNode endNode;
     private boolean unique;
     private String uniqueKey;
@@ -64,7 +65,7 @@ public class AbstractRelationship {
                 parts.add(this.uniqueKey);
             }
         }
-        if (this.properties != null) {
+        if (this.getProperties() != null) {
             if (parts.size() > 0) {
                 parts.add(" ");
             }
@@ -89,19 +90,50 @@ public class AbstractRelationship {
     }
 
     public Map<String, Object> getProperties() {
+        this.decodeProperties();
         return this.properties;
     }
 
+    /**
+     * Properties still held as raw text, or null if there are none.
+     */
+    public RawPropertyMap getRawProperties() {
+        return this.rawProperties;
+    }
+
+    private void decodeProperties() {
+        if (this.rawProperties != null) {
+            RawPropertyMap rawProperties = this.rawProperties;
+            this.rawProperties = null;
+            this.mergeProperties(rawProperties.decode());
+        }
+    }
+
     public void mergeProperties(Map<String, Object> properties) {
         if (properties != null) {
+            this.decodeProperties();
             if (this.properties == null) {
-                this.properties = new HashMap<>(properties);
+                this.properties = new ShapedPropertyMap(properties);
             } else {
                 this.properties.putAll(properties);
             }
         }
     }
 
+    /**
+     * Merge properties that are still raw text, leaving them undecoded
+     * if this relationship has no other properties yet.
+     */
+    public void mergeRawProperties(RawPropertyMap properties) {
+        if (properties != null) {
+            if (this.properties == null && this.rawProperties == null) {
+                this.rawProperties = properties;
+            } else {
+                this.mergeProperties(properties.decode());
+            }
+        }
+    }
+
     public AbstractNode getEndNode() {
         return this.endNode;
     }
@@ -114,7 +146,20 @@ public class AbstractRelationship {
         return this.uniqueKey;
     }
 
+    /**
+     * A rough estimate of the heap taken by this relationship, in bytes,
+     * not counting its nodes.
+     */
+    public long estimateSize() {
+        long size = HeapSize.OBJECT + 6 * HeapSize.REFERENCE + HeapSize.of(this.type);
+        if (this.rawProperties != null) {
+            size += HeapSize.OBJECT + HeapSize.of(this.rawProperties.getText());
+        }
+        return size + HeapSize.of(this.properties);
+    }
+
     public Object getUniqueValue() {
+        this.decodeProperties();
         if (this.properties.containsKey(uniqueKey)) {
             return this.properties.get(uniqueKey);
         } else {
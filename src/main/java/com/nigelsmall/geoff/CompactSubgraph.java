@@ -0,0 +1,725 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.*;
+
+/**
+ * A Subgraph held in columns rather than as an object per element. Nodes
+ * are numbered densely from zero in the order they are first seen, and
+ * labels, types and keys are numbered through dictionaries. Each node
+ * keeps an array of label ids plus arrays of property keys and values,
+ * with identical label and key arrays shared between nodes. Each
+ * relationship is just an entry in parallel start, end and type columns,
+ * plus its properties. A single table maps names to node ids.
+ *
+ * Nodes and relationships are merged exactly as by Subgraph, and the same
+ * read API is available through views that build AbstractNode and
+ * AbstractRelationship objects on demand. The nodes of relationships seen
+ * through these views carry their names only.
+ *
+ * The same anonymous node object may be added again in the relationship
+ * that immediately follows, as happens along a path, and is recognised
+ * as the same node. Anonymous nodes are otherwise not kept as objects,
+ * so any other repeat counts as a new node.
+ */
+public class CompactSubgraph {
+
+    final private static int[] NO_IDS = new int[0];
+
+    final private ArrayList<String> comments = new ArrayList<>();
+    final private Dictionary labelDictionary = new Dictionary();
+    final private Dictionary typeDictionary = new Dictionary();
+    final private Dictionary keyDictionary = new Dictionary();
+    final private HashMap<IdArray, int[]> idArrays = new HashMap<>();
+    final private NameTable nameTable = new NameTable();
+
+    // node columns
+    private int order;
+    private String[] names = new String[16];
+    final private BitSet named = new BitSet();
+    private int[][] labels = new int[16][];
+    private int[] uniqueLabels = new int[16];
+    private int[] uniqueKeys = new int[16];
+    private int[][] propertyKeys = new int[16][];
+    private Object[][] propertyValues = new Object[16][];
+
+    // relationship columns
+    private int size;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] types = new int[16];
+    final private BitSet uniqueRelationships = new BitSet();
+    private int[] relationshipUniqueKeys = new int[16];
+    private int[][] relationshipPropertyKeys = new int[16][];
+    private Object[][] relationshipPropertyValues = new Object[16][];
+
+    // anonymous nodes of the last relationship added
+    private AbstractNode lastStartNode;
+    private int lastStartId;
+    private AbstractNode lastEndNode;
+    private int lastEndId;
+
+    public int order() {
+        return this.order;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public List<String> getComments() {
+        return this.comments;
+    }
+
+    public void addComment(String comment) {
+        this.comments.add(comment);
+    }
+
+    /**
+     * @return the id of the node, or -1 if there is no node of that name
+     */
+    public int getNodeId(String name) {
+        return this.nameTable.get(name);
+    }
+
+    public boolean isNamed(int node) {
+        return this.named.get(node);
+    }
+
+    /**
+     * The name of a node. An anonymous node is given a name the first
+     * time it is asked for.
+     */
+    public String getNodeName(int node) {
+        String name = this.names[node];
+        if (name == null) {
+            name = new AbstractNode(null, null, null).getName();
+            this.names[node] = name;
+            this.nameTable.put(name, node);
+        }
+        return name;
+    }
+
+    public int[] getLabelIds(int node) {
+        return this.labels[node];
+    }
+
+    public String getLabel(int labelId) {
+        return this.labelDictionary.get(labelId);
+    }
+
+    public String getUniqueLabel(int node) {
+        return this.labelDictionary.get(this.uniqueLabels[node]);
+    }
+
+    public String getUniqueKey(int node) {
+        return this.keyDictionary.get(this.uniqueKeys[node]);
+    }
+
+    public Object getUniqueValue(int node) {
+        int[] keys = this.propertyKeys[node];
+        int i = keys == null ? -1 : indexOf(keys, this.uniqueKeys[node]);
+        return i < 0 ? null : this.propertyValues[node][i];
+    }
+
+    public String getKey(int keyId) {
+        return this.keyDictionary.get(keyId);
+    }
+
+    /**
+     * The key ids of the properties of a node, in ascending order, or
+     * null if it has no properties. The array may be shared with other
+     * nodes and must not be changed.
+     */
+    public int[] getPropertyKeyIds(int node) {
+        return this.propertyKeys[node];
+    }
+
+    /**
+     * The property values of a node, in the same order as its key ids.
+     */
+    public Object[] getPropertyValues(int node) {
+        return this.propertyValues[node];
+    }
+
+    /**
+     * A new map of the properties of a node, or null if it has none.
+     */
+    public Map<String, Object> getProperties(int node) {
+        return this.toMap(this.propertyKeys[node], this.propertyValues[node]);
+    }
+
+    public int getStartNode(int rel) {
+        return this.starts[rel];
+    }
+
+    public int getEndNode(int rel) {
+        return this.ends[rel];
+    }
+
+    public int getTypeId(int rel) {
+        return this.types[rel];
+    }
+
+    public String getType(int typeId) {
+        return this.typeDictionary.get(typeId);
+    }
+
+    public boolean isUnique(int rel) {
+        return this.uniqueRelationships.get(rel);
+    }
+
+    public String getRelationshipUniqueKey(int rel) {
+        return this.keyDictionary.get(this.relationshipUniqueKeys[rel]);
+    }
+
+    public Object getRelationshipUniqueValue(int rel) {
+        int[] keys = this.relationshipPropertyKeys[rel];
+        int i = keys == null ? -1 : indexOf(keys, this.relationshipUniqueKeys[rel]);
+        return i < 0 ? null : this.relationshipPropertyValues[rel][i];
+    }
+
+    public int[] getRelationshipPropertyKeyIds(int rel) {
+        return this.relationshipPropertyKeys[rel];
+    }
+
+    public Object[] getRelationshipPropertyValues(int rel) {
+        return this.relationshipPropertyValues[rel];
+    }
+
+    /**
+     * A new map of the properties of a relationship, or null if it has
+     * none.
+     */
+    public Map<String, Object> getRelationshipProperties(int rel) {
+        return this.toMap(this.relationshipPropertyKeys[rel], this.relationshipPropertyValues[rel]);
+    }
+
+    /**
+     * A view of a node as an AbstractNode. Changes to the view are not
+     * reflected here.
+     */
+    public AbstractNode getNode(int node) {
+        Set<String> labels = null;
+        int[] labelIds = this.labels[node];
+        if (labelIds != null) {
+            labels = new HashSet<>(2 * labelIds.length);
+            for (int labelId : labelIds) {
+                labels.add(this.labelDictionary.get(labelId));
+            }
+        }
+        return new AbstractNode(this.getNodeName(node), this.named.get(node), labels, this.getProperties(node),
+                this.getUniqueLabel(node), this.getUniqueKey(node));
+    }
+
+    /**
+     * A view of a relationship as an AbstractRelationship, whose nodes
+     * carry their names only.
+     */
+    public AbstractRelationship getRelationship(int rel) {
+        AbstractNode startNode = this.getNameOnly(this.starts[rel]);
+        AbstractNode endNode = this.getNameOnly(this.ends[rel]);
+        String type = this.typeDictionary.get(this.types[rel]);
+        Map<String, Object> properties = this.getRelationshipProperties(rel);
+        if (!this.uniqueRelationships.get(rel)) {
+            return new AbstractRelationship(startNode, type, properties, endNode);
+        }
+        String uniqueKey = this.getRelationshipUniqueKey(rel);
+        if (uniqueKey == null) {
+            return new AbstractRelationship(startNode, type, properties, endNode, true);
+        } else {
+            return new AbstractRelationship(startNode, type, properties, endNode, uniqueKey);
+        }
+    }
+
+    private AbstractNode getNameOnly(int node) {
+        return new AbstractNode(this.getNodeName(node), this.named.get(node), null, null, null, null);
+    }
+
+    /**
+     * All nodes by name, as views.
+     */
+    public Map<String, AbstractNode> getNodes() {
+        return new AbstractMap<String, AbstractNode>() {
+
+            @Override
+            public int size() {
+                return order;
+            }
+
+            @Override
+            public AbstractNode get(Object name) {
+                int node = name instanceof String ? getNodeId((String) name) : -1;
+                return node < 0 ? null : getNode(node);
+            }
+
+            @Override
+            public boolean containsKey(Object name) {
+                return name instanceof String && getNodeId((String) name) >= 0;
+            }
+
+            @Override
+            public Set<Entry<String, AbstractNode>> entrySet() {
+                return new AbstractSet<Entry<String, AbstractNode>>() {
+
+                    @Override
+                    public Iterator<Entry<String, AbstractNode>> iterator() {
+                        return new Iterator<Entry<String, AbstractNode>>() {
+
+                            private int node;
+
+                            @Override
+                            public boolean hasNext() {
+                                return this.node < order;
+                            }
+
+                            @Override
+                            public Entry<String, AbstractNode> next() {
+                                if (this.node >= order) {
+                                    throw new NoSuchElementException();
+                                }
+                                int node = this.node++;
+                                return new SimpleImmutableEntry<>(getNodeName(node), getNode(node));
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return order;
+                    }
+
+                };
+            }
+
+        };
+    }
+
+    /**
+     * All relationships, in the order they were added, as views.
+     */
+    public List<AbstractRelationship> getRelationships() {
+        return new AbstractList<AbstractRelationship>() {
+
+            @Override
+            public AbstractRelationship get(int rel) {
+                if (rel < 0 || rel >= size) {
+                    throw new IndexOutOfBoundsException("No relationship " + rel);
+                }
+                return getRelationship(rel);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        ArrayList<String> s = new ArrayList<>();
+        for (int node = 0; node < this.order; node++) {
+            s.add(this.getNode(node).toString());
+        }
+        for (int rel = 0; rel < this.size; rel++) {
+            s.add(this.getRelationship(rel).toString());
+        }
+        return StringUtils.join(s, "\n");
+    }
+
+    /**
+     * Merge a node by name, exactly as Subgraph.mergeNode would.
+     *
+     * @return the id of the merged node
+     */
+    public int mergeNode(AbstractNode node) {
+        int id = -1;
+        if (node.isNamed()) {
+            id = this.nameTable.get(node.getName());
+        } else if (node == this.lastStartNode) {
+            id = this.lastStartId;
+        } else if (node == this.lastEndNode) {
+            id = this.lastEndId;
+        }
+        if (id < 0) {
+            return this.addNode(node);
+        }
+        this.mergeLabels(id, node.getLabels());
+        this.mergeProperties(id, node);
+        this.setUnique(id, node.getUniqueLabel(), node.getUniqueKey());
+        return id;
+    }
+
+    /**
+     * Merge a node and make it unique, as for a hook.
+     */
+    public int mergeNode(AbstractNode node, String uniqueLabel, String uniqueKey) {
+        int id = this.mergeNode(node);
+        this.setUnique(id, uniqueLabel, uniqueKey);
+        return id;
+    }
+
+    public void addRelationship(AbstractRelationship rel) {
+        AbstractNode startNode = rel.getStartNode();
+        AbstractNode endNode = rel.getEndNode();
+        int start = this.mergeNode(startNode);
+        int end = this.mergeNode(endNode);
+        this.addRelationship(rel, start, end);
+        this.lastStartNode = startNode.isNamed() ? null : startNode;
+        this.lastStartId = start;
+        this.lastEndNode = endNode.isNamed() ? null : endNode;
+        this.lastEndId = end;
+    }
+
+    /**
+     * Merge in a subgraph that followed this one in the same document.
+     */
+    public void merge(Subgraph subgraph) {
+        this.comments.addAll(subgraph.getComments());
+        IdentityHashMap<AbstractNode, Integer> anonymousIds = new IdentityHashMap<>();
+        for (AbstractNode node : subgraph.getNodes().values()) {
+            int id = this.mergeNode(node);
+            if (!node.isNamed()) {
+                anonymousIds.put(node, id);
+            }
+        }
+        for (AbstractRelationship rel : subgraph.getRelationships()) {
+            this.addRelationship(rel, this.idOf(rel.getStartNode(), anonymousIds),
+                    this.idOf(rel.getEndNode(), anonymousIds));
+        }
+    }
+
+    private int idOf(AbstractNode node, IdentityHashMap<AbstractNode, Integer> anonymousIds) {
+        if (node.isNamed()) {
+            return this.nameTable.get(node.getName());
+        }
+        Integer id = anonymousIds.get(node);
+        return id == null ? this.mergeNode(node) : id;
+    }
+
+    private int addNode(AbstractNode node) {
+        int id = this.order;
+        if (id == this.names.length) {
+            int capacity = 2 * id;
+            this.names = Arrays.copyOf(this.names, capacity);
+            this.labels = Arrays.copyOf(this.labels, capacity);
+            this.uniqueLabels = Arrays.copyOf(this.uniqueLabels, capacity);
+            this.uniqueKeys = Arrays.copyOf(this.uniqueKeys, capacity);
+            this.propertyKeys = Arrays.copyOf(this.propertyKeys, capacity);
+            this.propertyValues = Arrays.copyOf(this.propertyValues, capacity);
+        }
+        this.order++;
+        this.uniqueLabels[id] = -1;
+        this.uniqueKeys[id] = -1;
+        if (node.isNamed()) {
+            this.names[id] = node.getName();
+            this.named.set(id);
+            this.nameTable.put(node.getName(), id);
+        }
+        this.mergeLabels(id, node.getLabels());
+        this.mergeProperties(id, node);
+        this.uniqueLabels[id] = this.labelDictionary.find(node.getUniqueLabel());
+        this.uniqueKeys[id] = this.keyDictionary.find(node.getUniqueKey());
+        return id;
+    }
+
+    private void addRelationship(AbstractRelationship rel, int start, int end) {
+        int id = this.size;
+        if (id == this.starts.length) {
+            int capacity = 2 * id;
+            this.starts = Arrays.copyOf(this.starts, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.relationshipUniqueKeys = Arrays.copyOf(this.relationshipUniqueKeys, capacity);
+            this.relationshipPropertyKeys = Arrays.copyOf(this.relationshipPropertyKeys, capacity);
+            this.relationshipPropertyValues = Arrays.copyOf(this.relationshipPropertyValues, capacity);
+        }
+        this.size++;
+        this.starts[id] = start;
+        this.ends[id] = end;
+        this.types[id] = this.typeDictionary.id(rel.getType());
+        if (rel.isUnique()) {
+            this.uniqueRelationships.set(id);
+        }
+        this.relationshipUniqueKeys[id] = this.keyDictionary.find(rel.getUniqueKey());
+        Map<String, Object> properties = rel.getProperties();
+        if (properties != null) {
+            int[] keys = new int[properties.size()];
+            Object[] values = new Object[keys.length];
+            this.fill(properties, keys, values);
+            this.relationshipPropertyKeys[id] = this.share(keys);
+            this.relationshipPropertyValues[id] = values;
+        }
+    }
+
+    private void mergeLabels(int node, Set<String> labels) {
+        if (labels == null) {
+            return;
+        }
+        int[] ids = this.labels[node];
+        int[] merged = ids == null ? NO_IDS : ids;
+        for (String label : labels) {
+            int labelId = this.labelDictionary.id(label);
+            if (Arrays.binarySearch(merged, labelId) < 0) {
+                merged = Arrays.copyOf(merged, merged.length + 1);
+                merged[merged.length - 1] = labelId;
+                Arrays.sort(merged);
+            }
+        }
+        if (merged != ids) {
+            this.labels[node] = this.share(merged);
+        }
+    }
+
+    /**
+     * Merge properties with later ones taking precedence, as putAll does.
+     */
+    private void mergeProperties(int node, AbstractNode abstractNode) {
+        Map<String, Object> properties = abstractNode.getProperties();
+        if (properties == null) {
+            return;
+        }
+        int[] keys = this.propertyKeys[node];
+        Object[] values = this.propertyValues[node];
+        if (keys == null) {
+            keys = new int[properties.size()];
+            values = new Object[keys.length];
+            this.fill(properties, keys, values);
+        } else {
+            boolean grown = false;
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                int keyId = this.keyDictionary.id(entry.getKey());
+                int i = indexOf(keys, keyId);
+                if (i < 0) {
+                    keys = Arrays.copyOf(keys, keys.length + 1);
+                    values = Arrays.copyOf(values, values.length + 1);
+                    i = keys.length - 1;
+                    keys[i] = keyId;
+                    grown = true;
+                }
+                values[i] = entry.getValue();
+            }
+            if (grown) {
+                sort(keys, values);
+            }
+        }
+        this.propertyKeys[node] = this.share(keys);
+        this.propertyValues[node] = values;
+    }
+
+    private void setUnique(int node, String label, String key) {
+        if (label == null || key == null) {
+            return;
+        }
+        this.mergeLabels(node, Collections.singleton(label));
+        this.uniqueLabels[node] = this.labelDictionary.id(label);
+        int keyId = this.keyDictionary.id(key);
+        this.uniqueKeys[node] = keyId;
+        int[] keys = this.propertyKeys[node];
+        if (keys == null) {
+            keys = NO_IDS;
+            this.propertyValues[node] = new Object[0];
+        }
+        if (indexOf(keys, keyId) < 0) {
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            keys[keys.length - 1] = keyId;
+            Object[] values = Arrays.copyOf(this.propertyValues[node], keys.length);
+            sort(keys, values);
+            this.propertyValues[node] = values;
+        }
+        this.propertyKeys[node] = this.share(keys);
+    }
+
+    private void fill(Map<String, Object> properties, int[] keys, Object[] values) {
+        int i = 0;
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            keys[i] = this.keyDictionary.id(entry.getKey());
+            values[i] = entry.getValue();
+            i++;
+        }
+        sort(keys, values);
+    }
+
+    /**
+     * Sort keys into order, moving values with them, so that maps with
+     * the same keys share a single key array.
+     */
+    private static void sort(int[] keys, Object[] values) {
+        for (int i = 1; i < keys.length; i++) {
+            int key = keys[i];
+            Object value = values[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private int[] share(int[] ids) {
+        IdArray key = new IdArray(ids);
+        int[] shared = this.idArrays.get(key);
+        if (shared == null) {
+            this.idArrays.put(key, ids);
+            shared = ids;
+        }
+        return shared;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Map<String, Object> toMap(int[] keys, Object[] values) {
+        if (keys == null) {
+            return null;
+        }
+        ShapedPropertyMap map = new ShapedPropertyMap();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(this.keyDictionary.get(keys[i]), values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * Numbers strings in the order they are first seen.
+     */
+    private static class Dictionary {
+
+        final private HashMap<String, Integer> ids = new HashMap<>();
+        final private ArrayList<String> strings = new ArrayList<>();
+
+        int id(String s) {
+            Integer id = this.ids.get(s);
+            if (id == null) {
+                id = this.strings.size();
+                this.ids.put(s, id);
+                this.strings.add(s);
+            }
+            return id;
+        }
+
+        /**
+         * As id, but with -1 for null.
+         */
+        int find(String s) {
+            return s == null ? -1 : this.id(s);
+        }
+
+        String get(int id) {
+            return id < 0 ? null : this.strings.get(id);
+        }
+
+    }
+
+    /**
+     * Content equality for shared id arrays.
+     */
+    private static class IdArray {
+
+        final private int[] ids;
+        final private int hash;
+
+        IdArray(int[] ids) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdArray && Arrays.equals(this.ids, ((IdArray) other).ids);
+        }
+
+    }
+
+    /**
+     * Open addressing table of node ids by name, without an object per
+     * entry.
+     */
+    private static class NameTable {
+
+        private String[] keys = new String[64];
+        private int[] values = new int[64];
+        private int count;
+
+        private static int slot(String name, int mask) {
+            int h = name.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int get(String name) {
+            int mask = this.keys.length - 1;
+            for (int i = slot(name, mask); this.keys[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i].equals(name)) {
+                    return this.values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String name, int id) {
+            if (2 * (this.count + 1) > this.keys.length) {
+                String[] keys = this.keys;
+                int[] values = this.values;
+                this.keys = new String[2 * keys.length];
+                this.values = new int[2 * keys.length];
+                this.count = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        this.put(keys[i], values[i]);
+                    }
+                }
+            }
+            int mask = this.keys.length - 1;
+            int i = slot(name, mask);
+            while (this.keys[i] != null && !this.keys[i].equals(name)) {
+                i = (i + 1) & mask;
+            }
+            if (this.keys[i] == null) {
+                this.count++;
+            }
+            this.keys[i] = name;
+            this.values[i] = id;
+        }
+
+    }
+
+}
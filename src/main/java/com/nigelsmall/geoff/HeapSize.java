@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rough estimates of the heap taken by model objects, for keeping within
+ * a memory budget. These assume a 64-bit JVM with compressed references,
+ * and count shared strings once for every holder.
+ */
+final class HeapSize {
+
+    final static int OBJECT = 16;
+    final static int REFERENCE = 4;
+    final static int ARRAY = 16;
+    final static int MAP_ENTRY = 32;
+
+    private HeapSize() {
+    }
+
+    static long of(String s) {
+        return s == null ? 0 : OBJECT + 8 + ARRAY + 2L * s.length();
+    }
+
+    static long of(Set<String> set) {
+        if (set == null) {
+            return 0;
+        }
+        long size = 3 * OBJECT + ARRAY + (long) (MAP_ENTRY + 2 * REFERENCE) * set.size();
+        for (String s : set) {
+            size += of(s);
+        }
+        return size;
+    }
+
+    static long of(Map<String, Object> map) {
+        if (map == null) {
+            return 0;
+        }
+        long size = 2 * OBJECT + ARRAY + (long) (MAP_ENTRY + 2 * REFERENCE) * map.size();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            size += of(entry.getKey()) + ofValue(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Keys are shared with every map of the same shape, so only the
+     * values are counted.
+     */
+    static long of(ShapedPropertyMap map) {
+        if (map == null) {
+            return 0;
+        }
+        long size = 2 * OBJECT + ARRAY + (long) REFERENCE * map.size();
+        for (int i = 0; i < map.size(); i++) {
+            size += ofValue(map.getValue(i));
+        }
+        return size;
+    }
+
+    static long ofValue(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 0;
+        } else if (value instanceof String) {
+            return of((String) value);
+        } else if (value instanceof Integer) {
+            return OBJECT;
+        } else if (value instanceof Number) {
+            return OBJECT + 8;
+        } else if (value instanceof int[]) {
+            return ARRAY + 4L * ((int[]) value).length;
+        } else if (value instanceof long[]) {
+            return ARRAY + 8L * ((long[]) value).length;
+        } else if (value instanceof double[]) {
+            return ARRAY + 8L * ((double[]) value).length;
+        } else if (value instanceof boolean[]) {
+            return ARRAY + ((boolean[]) value).length;
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            long size = ARRAY + (long) REFERENCE * array.length;
+            for (Object item : array) {
+                size += ofValue(item);
+            }
+            return size;
+        } else {
+            return OBJECT;
+        }
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A property map that holds its keys in a shared Shape and only its
+ * values itself. Every map that gains the same keys in the same order
+ * ends up with the same Shape, so thousands of nodes with one key set
+ * cost one key array between them plus one value array each. Keys are
+ * found by a linear scan of the Shape, with no hashing, unless it has
+ * more than a few of them.
+ *
+ * Maps behave like a HashMap, null values included, except that entries
+ * are iterated in the order their keys were first added.
+ *
+ * Copying one shaped map into an empty one shares its values too, until
+ * either map is next changed, so passing a map from parser to node to
+ * subgraph copies nothing on the way.
+ */
+public final class ShapedPropertyMap extends AbstractMap<String, Object> {
+
+    /**
+     * Shapes with more keys than this look them up by hash.
+     */
+    final private static int LINEAR_LIMIT = 8;
+
+    /**
+     * No more Shapes are shared once this many exist, so that key sets
+     * which never repeat cannot grow the tree without bound. Maps still
+     * work beyond that, each with Shapes of its own.
+     */
+    final private static int MAX_SHAPES = 1 << 16;
+
+    final private static AtomicInteger shapeCount = new AtomicInteger();
+
+    final private static Shape EMPTY = new Shape(new String[0]);
+
+    private Shape shape;
+    private Object[] values;
+    private boolean shared;
+    private int modCount;
+
+    public ShapedPropertyMap() {
+        this.shape = EMPTY;
+        this.values = null;
+    }
+
+    public ShapedPropertyMap(Map<String, Object> map) {
+        this();
+        this.putAll(map);
+    }
+
+    /**
+     * The key at a position, from 0 to size() - 1, in the order keys were
+     * added.
+     */
+    public String getKey(int i) {
+        return this.shape.keys[i];
+    }
+
+    /**
+     * The value at a position, from 0 to size() - 1.
+     */
+    public Object getValue(int i) {
+        if (i >= this.shape.keys.length) {
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+        }
+        return this.values[i];
+    }
+
+    /**
+     * Whether this map has exactly the same keys, in the same order, as
+     * another map.
+     */
+    public boolean hasSameShape(ShapedPropertyMap other) {
+        return this.shape == other.shape;
+    }
+
+    @Override
+    public int size() {
+        return this.shape.keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.shape.keys.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.shape.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = this.shape.indexOf(key);
+        return i < 0 ? null : this.values[i];
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int i = this.shape.indexOf(key);
+        if (i >= 0) {
+            this.own();
+            Object previous = this.values[i];
+            this.values[i] = value;
+            return previous;
+        }
+        if (key == null) {
+            throw new NullPointerException("Property keys cannot be null");
+        }
+        Shape shape = this.shape.with(key);
+        int size = shape.keys.length;
+        if (this.values == null) {
+            this.values = new Object[Math.max(size, 2)];
+        } else if (this.values.length < size) {
+            this.values = Arrays.copyOf(this.values, 2 * this.values.length);
+            this.shared = false;
+        } else {
+            this.own();
+        }
+        this.values[size - 1] = value;
+        this.shape = shape;
+        this.modCount++;
+        return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        if (map instanceof ShapedPropertyMap) {
+            ShapedPropertyMap other = (ShapedPropertyMap) map;
+            if (this.shape == EMPTY) {
+                // take the other shape as is, with no transitions at all,
+                // and share its values until either map is changed
+                this.shape = other.shape;
+                if (other.shape.keys.length == 0) {
+                    this.values = null;
+                } else {
+                    this.values = other.values;
+                    this.shared = other.shared = true;
+                }
+                this.modCount++;
+            } else {
+                for (int i = 0; i < other.shape.keys.length; i++) {
+                    this.put(other.shape.keys[i], other.values[i]);
+                }
+            }
+        } else {
+            for (Map.Entry<? extends String, ?> entry : map.entrySet()) {
+                this.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int i = this.shape.indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object previous = this.values[i];
+        this.removeAt(i);
+        return previous;
+    }
+
+    /**
+     * Rebuilds the Shape without the key at a position, which is slow but
+     * rare for property maps.
+     */
+    private void removeAt(int i) {
+        this.own();
+        String[] keys = this.shape.keys;
+        Shape shape = EMPTY;
+        for (int j = 0; j < keys.length; j++) {
+            if (j != i) {
+                shape = shape.with(keys[j]);
+            }
+        }
+        System.arraycopy(this.values, i + 1, this.values, i, keys.length - i - 1);
+        this.values[keys.length - 1] = null;
+        this.shape = shape;
+        this.modCount++;
+    }
+
+    @Override
+    public void clear() {
+        this.shape = EMPTY;
+        this.values = null;
+        this.shared = false;
+        this.modCount++;
+    }
+
+    /**
+     * Takes a copy of shared values before they are written to.
+     */
+    private void own() {
+        if (this.shared) {
+            this.values = Arrays.copyOf(this.values, this.values.length);
+            this.shared = false;
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return ShapedPropertyMap.this.size();
+            }
+
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        private int expectedModCount = modCount;
+        private int next = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < size();
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (this.next >= size()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next++;
+            return new ShapedEntry(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+            this.expectedModCount = modCount;
+        }
+
+    }
+
+    private class ShapedEntry implements Entry<String, Object> {
+
+        final private int index;
+        final private String key;
+
+        ShapedEntry(int index) {
+            this.index = index;
+            this.key = shape.keys[index];
+        }
+
+        @Override
+        public String getKey() {
+            return this.key;
+        }
+
+        @Override
+        public Object getValue() {
+            return values[this.index];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            own();
+            Object previous = values[this.index];
+            values[this.index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) other;
+            Object value = this.getValue();
+            return this.key.equals(entry.getKey())
+                    && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = this.getValue();
+            return this.key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "=" + this.getValue();
+        }
+
+    }
+
+    /**
+     * An immutable, ordered set of keys shared by every map that has
+     * them, with transitions to the Shapes that add one more key.
+     */
+    private static final class Shape {
+
+        final private String[] keys;
+        final private HashMap<String, Integer> index;
+        private volatile ConcurrentHashMap<String, Shape> transitions;
+
+        Shape(String[] keys) {
+            this.keys = keys;
+            if (keys.length > LINEAR_LIMIT) {
+                this.index = new HashMap<>(2 * keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    this.index.put(keys[i], i);
+                }
+            } else {
+                this.index = null;
+            }
+        }
+
+        int indexOf(Object key) {
+            if (this.index != null) {
+                Integer i = this.index.get(key);
+                return i == null ? -1 : i;
+            }
+            String[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                // pooled keys are usually the very same instance
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            if (key != null) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i].equals(key)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        Shape with(String key) {
+            ConcurrentHashMap<String, Shape> transitions = this.transitions;
+            if (transitions == null) {
+                // most Shapes are leaves, so only make the map when needed
+                synchronized (this) {
+                    transitions = this.transitions;
+                    if (transitions == null) {
+                        transitions = this.transitions = new ConcurrentHashMap<>(4, 0.75f, 1);
+                    }
+                }
+            }
+            Shape shape = transitions.get(key);
+            if (shape == null) {
+                String[] keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+                keys[this.keys.length] = key;
+                shape = new Shape(keys);
+                if (shapeCount.get() < MAX_SHAPES) {
+                    Shape existing = transitions.putIfAbsent(key, shape);
+                    if (existing != null) {
+                        shape = existing;
+                    } else {
+                        shapeCount.incrementAndGet();
+                    }
+                }
+            }
+            return shape;
+        }
+
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary records for nodes and relationships spilled to disk by a
+ * SpillingSubgraph. Relationships are written with the names of their
+ * nodes only.
+ */
+final class SpillFormat {
+
+    final private static Charset UTF_8 = Charset.forName("UTF-8");
+
+    final private static int NULL = 0;
+    final private static int STRING = 1;
+    final private static int INTEGER = 2;
+    final private static int LONG = 3;
+    final private static int DOUBLE = 4;
+    final private static int BOOLEAN = 5;
+    final private static int STRING_ARRAY = 6;
+    final private static int INT_ARRAY = 7;
+    final private static int LONG_ARRAY = 8;
+    final private static int DOUBLE_ARRAY = 9;
+    final private static int BOOLEAN_ARRAY = 10;
+    final private static int OBJECT_ARRAY = 11;
+
+    private SpillFormat() {
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    static void writeStrings(DataOutput out, Set<String> strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    static HashSet<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        HashSet<String> strings = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    static void writeNode(DataOutput out, AbstractNode node) throws IOException {
+        writeString(out, node.getName());
+        out.writeBoolean(node.isNamed());
+        writeStrings(out, node.getLabels());
+        writeString(out, node.getUniqueLabel());
+        writeString(out, node.getUniqueKey());
+        writeProperties(out, node.getProperties());
+    }
+
+    /**
+     * Reads a node exactly as it was written, without filling in a
+     * missing unique value.
+     */
+    static AbstractNode readNode(DataInput in) throws IOException {
+        String name = readString(in);
+        boolean named = in.readBoolean();
+        HashSet<String> labels = readStrings(in);
+        String uniqueLabel = readString(in);
+        String uniqueKey = readString(in);
+        Map<String, Object> properties = readProperties(in);
+        return new AbstractNode(name, named, labels, properties, uniqueLabel, uniqueKey);
+    }
+
+    static void writeRelationship(DataOutput out, AbstractRelationship rel) throws IOException {
+        writeString(out, rel.getStartNode().getName());
+        out.writeBoolean(rel.getStartNode().isNamed());
+        writeString(out, rel.getType());
+        writeString(out, rel.getEndNode().getName());
+        out.writeBoolean(rel.getEndNode().isNamed());
+        out.writeBoolean(rel.isUnique());
+        writeString(out, rel.getUniqueKey());
+        writeProperties(out, rel.getProperties());
+    }
+
+    /**
+     * Reads a relationship whose nodes carry their names only.
+     */
+    static AbstractRelationship readRelationship(DataInput in) throws IOException {
+        AbstractNode startNode = new AbstractNode(readString(in), in.readBoolean(), null, null, null, null);
+        String type = readString(in);
+        AbstractNode endNode = new AbstractNode(readString(in), in.readBoolean(), null, null, null, null);
+        boolean unique = in.readBoolean();
+        String uniqueKey = readString(in);
+        Map<String, Object> properties = readProperties(in);
+        if (uniqueKey == null) {
+            return new AbstractRelationship(startNode, type, properties, endNode, unique);
+        } else {
+            return new AbstractRelationship(startNode, type, properties, endNode, uniqueKey);
+        }
+    }
+
+    private static void writeProperties(DataOutput out, Map<String, Object> properties) throws IOException {
+        if (properties == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(properties.size());
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, Object> readProperties(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        ShapedPropertyMap properties = new ShapedPropertyMap();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            properties.put(key, readValue(in));
+        }
+        return properties;
+    }
+
+    private static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String item : array) {
+                writeString(out, item);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(array.length);
+            for (int item : array) {
+                out.writeInt(item);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long item : array) {
+                out.writeLong(item);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double item : array) {
+                out.writeDouble(item);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean item : array) {
+                out.writeBoolean(item);
+            }
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            out.writeByte(OBJECT_ARRAY);
+            out.writeInt(array.length);
+            for (Object item : array) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new IOException("Unable to spill value of " + value.getClass());
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING_ARRAY: {
+                String[] array = new String[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readString(in);
+                }
+                return array;
+            }
+            case INT_ARRAY: {
+                int[] array = new int[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readInt();
+                }
+                return array;
+            }
+            case LONG_ARRAY: {
+                long[] array = new long[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readLong();
+                }
+                return array;
+            }
+            case DOUBLE_ARRAY: {
+                double[] array = new double[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readDouble();
+                }
+                return array;
+            }
+            case BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readBoolean();
+                }
+                return array;
+            }
+            case OBJECT_ARRAY: {
+                Object[] array = new Object[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in);
+                }
+                return array;
+            }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A subgraph that keeps within a memory budget by spilling to disk. Nodes
+ * and relationships are gathered in memory, exactly as in a Subgraph,
+ * until their estimated size reaches the budget. The nodes gathered so far
+ * are then written out, sorted by name, to a run file of their own and the
+ * relationships are appended to a single log, after which memory is
+ * cleared and gathering starts over.
+ *
+ * Once spilled, nodes are read back by merging all runs in name order,
+ * combining the parts of each node in the order they were read, so that
+ * every node comes out as it would have been merged in memory. Nodes are
+ * then returned in name order rather than in no order at all, and the
+ * nodes of each relationship read back carry their names only.
+ *
+ * Spilled data stays on disk until the subgraph is closed.
+ */
+public class SpillingSubgraph implements Closeable {
+
+    final public static long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    final private long budget;
+    final private File directory;
+    final private ArrayList<String> comments;
+    final private ArrayList<File> runs;
+    private HashMap<String, AbstractNode> nodes;
+    private HashMap<String, Set<String>> weakKeys;
+    private ArrayList<AbstractRelationship> relationships;
+    private long estimatedSize;
+    private File relationshipFile;
+    private DataOutputStream relationshipLog;
+    private long relationshipCount;
+    private long order;
+
+    public SpillingSubgraph() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public SpillingSubgraph(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * @param budget    the estimated heap, in bytes, that nodes and
+     *                  relationships may take before they are spilled
+     * @param directory where to write spilled data, or null for the
+     *                  default temporary directory
+     */
+    public SpillingSubgraph(long budget, File directory) {
+        this.budget = budget;
+        this.directory = directory;
+        this.comments = new ArrayList<>();
+        this.runs = new ArrayList<>();
+        this.nodes = new HashMap<>();
+        this.weakKeys = new HashMap<>();
+        this.relationships = new ArrayList<>();
+        this.order = -1;
+    }
+
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * The estimated heap taken by the nodes and relationships held in
+     * memory, in bytes.
+     */
+    public long getEstimatedSize() {
+        return this.estimatedSize;
+    }
+
+    public boolean isSpilled() {
+        return this.runs.size() > 0 || this.relationshipFile != null;
+    }
+
+    /**
+     * The number of distinct nodes. Once spilled, this takes a pass
+     * through every run.
+     */
+    public long order() throws IOException {
+        if (!this.isSpilled()) {
+            return this.nodes.size();
+        }
+        if (this.order < 0) {
+            this.spill();
+            long order = 0;
+            try (NodeIterator nodes = new NodeIterator()) {
+                while (nodes.hasNext()) {
+                    nodes.next();
+                    order++;
+                }
+            }
+            this.order = order;
+        }
+        return this.order;
+    }
+
+    public long size() {
+        return this.relationshipCount;
+    }
+
+    public List<String> getComments() {
+        return this.comments;
+    }
+
+    /**
+     * The nodes, merged by name, as they stand when this is called. Once
+     * spilled, everything in memory is written out first. Any error in reading spilled nodes back
+     * is thrown as an IllegalStateException with the original IOException
+     * as its cause.
+     */
+    public Iterable<AbstractNode> getNodes() throws IOException {
+        if (!this.isSpilled()) {
+            return Collections.unmodifiableCollection(this.nodes.values());
+        }
+        this.spill();
+        return new Iterable<AbstractNode>() {
+            @Override
+            public Iterator<AbstractNode> iterator() {
+                try {
+                    return new NodeIterator();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read spilled nodes", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The relationships added so far, in the order they were added. Any
+     * error in
+     * reading spilled relationships back is thrown as an
+     * IllegalStateException with the original IOException as its cause.
+     */
+    public Iterable<AbstractRelationship> getRelationships() throws IOException {
+        if (this.relationshipFile == null) {
+            return Collections.unmodifiableList(this.relationships);
+        }
+        this.spillRelationships();
+        final long count = this.relationshipCount;
+        return new Iterable<AbstractRelationship>() {
+            @Override
+            public Iterator<AbstractRelationship> iterator() {
+                try {
+                    return new RelationshipIterator(count);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read spilled relationships", e);
+                }
+            }
+        };
+    }
+
+    public void addComment(String comment) {
+        this.comments.add(comment);
+    }
+
+    public void mergeNode(AbstractNode node) throws IOException {
+        this.merge(node);
+        this.checkBudget();
+    }
+
+    /**
+     * Merge a node and make it unique, as for a hook.
+     */
+    public void mergeNode(AbstractNode node, String uniqueLabel, String uniqueKey) throws IOException {
+        AbstractNode mergedNode = this.merge(node);
+        if (uniqueLabel != null && uniqueKey != null) {
+            Map<String, Object> properties = mergedNode.getProperties();
+            if (properties == null || !properties.containsKey(uniqueKey)) {
+                // only a placeholder, which must not replace a value
+                // already spilled for this node
+                this.addWeakKey(mergedNode.getName(), uniqueKey);
+            }
+            mergedNode.setUnique(uniqueLabel, uniqueKey);
+        }
+        this.checkBudget();
+    }
+
+    public void addRelationship(AbstractRelationship rel) throws IOException {
+        this.merge(rel.getStartNode());
+        this.merge(rel.getEndNode());
+        this.relationships.add(rel);
+        this.relationshipCount++;
+        this.estimatedSize += rel.estimateSize() + HeapSize.REFERENCE;
+        this.checkBudget();
+    }
+
+    /**
+     * Merge in a subgraph that followed this one in the same document.
+     */
+    public void merge(Subgraph subgraph) throws IOException {
+        this.comments.addAll(subgraph.getComments());
+        for (AbstractNode node : subgraph.getNodes().values()) {
+            Set<String> keys = node.isNamed() ? subgraph.getWeakKeys(node.getName()) : null;
+            if (keys == null) {
+                this.mergeNode(node);
+            } else {
+                this.mergeHookedNode(node, keys);
+                this.checkBudget();
+            }
+        }
+        for (AbstractRelationship rel : subgraph.getRelationships()) {
+            this.relationships.add(rel);
+            this.relationshipCount++;
+            this.estimatedSize += rel.estimateSize() + HeapSize.REFERENCE;
+            this.checkBudget();
+        }
+    }
+
+    private AbstractNode merge(AbstractNode node) {
+        this.order = -1;
+        this.estimatedSize += node.estimateSize();
+        String name = node.getName();
+        AbstractNode existingNode = this.nodes.get(name);
+        if (existingNode == null) {
+            this.nodes.put(name, node);
+            this.estimatedSize += HeapSize.MAP_ENTRY;
+            return node;
+        } else {
+            Set<String> keys = this.weakKeys.get(name);
+            if (keys != null && node.getProperties() != null) {
+                // a placeholder replaced by a real value is no longer weak
+                keys.removeAll(node.getProperties().keySet());
+            }
+            existingNode.mergeNode(node);
+            return existingNode;
+        }
+    }
+
+    /**
+     * Merge in a node from another subgraph whose placeholder keys must
+     * not replace values held here or already spilled.
+     */
+    private void mergeHookedNode(AbstractNode node, Set<String> keys) {
+        String name = node.getName();
+        AbstractNode existingNode = this.nodes.get(name);
+        HashMap<String, Object> kept = new HashMap<>();
+        Set<String> existingKeys = null;
+        if (existingNode != null) {
+            Map<String, Object> properties = existingNode.getProperties();
+            for (String key : keys) {
+                if (properties != null && properties.containsKey(key)) {
+                    kept.put(key, properties.get(key));
+                }
+            }
+            existingKeys = this.weakKeys.get(name);
+            existingKeys = existingKeys == null ? null : new HashSet<>(existingKeys);
+        }
+        AbstractNode mergedNode = this.merge(node);
+        mergedNode.mergeProperties(kept);
+        for (String key : keys) {
+            if (!kept.containsKey(key) || (existingKeys != null && existingKeys.contains(key))) {
+                this.addWeakKey(name, key);
+            }
+        }
+    }
+
+    private void addWeakKey(String name, String key) {
+        Set<String> keys = this.weakKeys.get(name);
+        if (keys == null) {
+            keys = new HashSet<>();
+            this.weakKeys.put(name, keys);
+        }
+        keys.add(key);
+    }
+
+    private void checkBudget() throws IOException {
+        if (this.estimatedSize >= this.budget) {
+            this.spill();
+        }
+    }
+
+    /**
+     * Write out everything held in memory and start over.
+     */
+    public void spill() throws IOException {
+        if (this.nodes.size() > 0) {
+            String[] names = this.nodes.keySet().toArray(new String[this.nodes.size()]);
+            Arrays.sort(names);
+            File run = File.createTempFile("geoff-nodes-", ".run", this.directory);
+            this.runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+                out.writeInt(names.length);
+                for (String name : names) {
+                    SpillFormat.writeNode(out, this.nodes.get(name));
+                    SpillFormat.writeStrings(out, this.weakKeys.get(name));
+                }
+            }
+            this.nodes = new HashMap<>();
+            this.weakKeys = new HashMap<>();
+        }
+        this.spillRelationships();
+        this.estimatedSize = 0;
+    }
+
+    private void spillRelationships() throws IOException {
+        if (this.relationships.size() > 0) {
+            if (this.relationshipLog == null) {
+                this.relationshipFile = File.createTempFile("geoff-relationships-", ".log", this.directory);
+                this.relationshipLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.relationshipFile)));
+            }
+            for (AbstractRelationship rel : this.relationships) {
+                SpillFormat.writeRelationship(this.relationshipLog, rel);
+            }
+            this.relationships = new ArrayList<>();
+        }
+        if (this.relationshipLog != null) {
+            this.relationshipLog.flush();
+        }
+    }
+
+    /**
+     * Deletes all spilled data.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.relationshipLog != null) {
+            this.relationshipLog.close();
+            this.relationshipLog = null;
+        }
+        if (this.relationshipFile != null) {
+            this.relationshipFile.delete();
+        }
+        for (File run : this.runs) {
+            run.delete();
+        }
+        this.runs.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SpillingSubgraph(" + this.runs.size() + " runs, " + this.relationshipCount + " relationships)";
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * The next node of a run, with the keys of any placeholders it holds.
+     */
+    private static class RunCursor implements Comparable<RunCursor> {
+
+        final private int run;
+        final private DataInputStream in;
+        private int remaining;
+        private AbstractNode node;
+        private Set<String> weakKeys;
+
+        RunCursor(int run, File file) throws IOException {
+            this.run = run;
+            this.in = open(file);
+            this.remaining = this.in.readInt();
+        }
+
+        boolean advance() throws IOException {
+            if (this.remaining == 0) {
+                this.in.close();
+                return false;
+            }
+            this.remaining--;
+            this.node = SpillFormat.readNode(this.in);
+            this.weakKeys = SpillFormat.readStrings(this.in);
+            Map<String, Object> properties = this.node.getProperties();
+            if (this.weakKeys != null && properties != null) {
+                properties.keySet().removeAll(this.weakKeys);
+            }
+            return true;
+        }
+
+        /**
+         * Put back any placeholders that nothing earlier has filled.
+         */
+        void fillPlaceholders(AbstractNode node) {
+            if (this.weakKeys != null) {
+                Map<String, Object> properties = node.getProperties();
+                if (properties == null) {
+                    node.mergeProperties(new ShapedPropertyMap());
+                    properties = node.getProperties();
+                }
+                for (String key : this.weakKeys) {
+                    if (!properties.containsKey(key)) {
+                        properties.put(key, null);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(RunCursor other) {
+            int c = this.node.getName().compareTo(other.node.getName());
+            return c != 0 ? c : this.run - other.run;
+        }
+
+    }
+
+    private class NodeIterator implements Iterator<AbstractNode>, Closeable {
+
+        final private PriorityQueue<RunCursor> queue;
+
+        NodeIterator() throws IOException {
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()));
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunCursor cursor = new RunCursor(i, runs.get(i));
+                    if (cursor.advance()) {
+                        this.queue.add(cursor);
+                    }
+                }
+            } catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.queue.isEmpty();
+        }
+
+        @Override
+        public AbstractNode next() {
+            if (this.queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                RunCursor cursor = this.queue.poll();
+                AbstractNode node = cursor.node;
+                cursor.fillPlaceholders(node);
+                this.advance(cursor);
+                while (!this.queue.isEmpty() && this.queue.peek().node.getName().equals(node.getName())) {
+                    cursor = this.queue.poll();
+                    node.mergeNode(cursor.node);
+                    cursor.fillPlaceholders(node);
+                    this.advance(cursor);
+                }
+                return node;
+            } catch (IOException e) {
+                this.close();
+                throw new IllegalStateException("Unable to read spilled nodes", e);
+            }
+        }
+
+        private void advance(RunCursor cursor) throws IOException {
+            if (cursor.advance()) {
+                this.queue.add(cursor);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            for (RunCursor cursor : this.queue) {
+                try {
+                    cursor.in.close();
+                } catch (IOException e) {
+                    // nothing more can be read anyway
+                }
+            }
+            this.queue.clear();
+        }
+
+    }
+
+    private class RelationshipIterator implements Iterator<AbstractRelationship> {
+
+        final private DataInputStream in;
+        private long remaining;
+
+        RelationshipIterator(long count) throws IOException {
+            this.in = open(relationshipFile);
+            this.remaining = count;
+            if (this.remaining == 0) {
+                this.in.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        @Override
+        public AbstractRelationship next() {
+            if (this.remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                AbstractRelationship rel = SpillFormat.readRelationship(this.in);
+                if (--this.remaining == 0) {
+                    this.in.close();
+                }
+                return rel;
+            } catch (IOException e) {
+                try {
+                    this.in.close();
+                } catch (IOException e2) {
+                    // reported below
+                }
+                this.remaining = 0;
+                throw new IllegalStateException("Unable to read spilled relationships", e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -24,17 +24,26 @@ public class Subgraph {
 
     private ArrayList<String> comments;
     private HashMap<String, AbstractNode> nodes;
+    private Set<AbstractNode> anonymousNodes;
+    private NodeMap nodeMap;
     private ArrayList<AbstractRelationship> relationships;
+    // unique keys given only placeholder values by hooks, by node name
+    private HashMap<String, Set<String>> weakKeys;
 
     public Subgraph() {
         super();
         this.comments = new ArrayList<>();
         this.nodes = new HashMap<>();
+        // anonymous nodes can never be merged, so need not be looked up
+        // by name
+        this.anonymousNodes = Collections.newSetFromMap(new IdentityHashMap<AbstractNode, Boolean>());
+        this.nodeMap = new NodeMap();
         this.relationships = new ArrayList<>();
+        this.weakKeys = new HashMap<>();
     }
 
     public int order() {
-        return this.nodes.size();
+        return this.nodes.size() + this.anonymousNodes.size();
     }
 
     public int size() {
@@ -45,8 +54,13 @@ public class Subgraph {
         return this.comments;
     }
 
+    /**
+     * All nodes by name. Anonymous nodes are included, but are only given
+     * names if they are looked up or listed by name. Changes to the map
+     * change the subgraph.
+     */
     public Map<String, AbstractNode> getNodes() {
-        return this.nodes;
+        return this.nodeMap;
     }
 
     public List<AbstractRelationship> getRelationships() {
@@ -55,7 +69,7 @@ public class Subgraph {
 
     public String toString() {
         ArrayList<String> s = new ArrayList<>();
-        for (AbstractNode node : this.nodes.values()) {
+        for (AbstractNode node : this.nodeMap.values()) {
             s.add(node.toString());
         }
         for (AbstractRelationship rel : this.relationships) {
@@ -69,12 +83,59 @@ public class Subgraph {
     }
 
     public AbstractNode mergeNode(AbstractNode node) {
-        if (this.nodes.containsKey(node.getName())) {
-            this.nodes.get(node.getName()).mergeNode(node);
-        } else {
+        if (!node.isNamed()) {
+            if (this.anonymousNodes.add(node)) {
+                this.nodeMap.anonymousIndex = null;
+            }
+            return node;
+        }
+        AbstractNode existingNode = this.nodes.get(node.getName());
+        if (existingNode == null) {
             this.nodes.put(node.getName(), node);
+            return node;
+        } else {
+            Set<String> keys = this.weakKeys.get(node.getName());
+            if (keys != null && node.getProperties() != null) {
+                // a placeholder replaced by a real value is no longer weak
+                keys.removeAll(node.getProperties().keySet());
+            }
+            existingNode.mergeNode(node);
+            return existingNode;
+        }
+    }
+
+    /**
+     * Merge a node and make it unique, as for a hook.
+     */
+    public AbstractNode mergeNode(AbstractNode node, String uniqueLabel, String uniqueKey) {
+        AbstractNode mergedNode = this.mergeNode(node);
+        if (uniqueLabel != null && uniqueKey != null) {
+            Map<String, Object> properties = mergedNode.getProperties();
+            if (mergedNode.isNamed() && (properties == null || !properties.containsKey(uniqueKey))) {
+                // only a placeholder, which must not replace a value
+                // merged in from an earlier subgraph
+                this.addWeakKey(mergedNode.getName(), uniqueKey);
+            }
+            mergedNode.setUnique(uniqueLabel, uniqueKey);
+        }
+        return mergedNode;
+    }
+
+    /**
+     * The unique keys of a named node that hold only placeholders left
+     * by hooks, or null if there are none.
+     */
+    Set<String> getWeakKeys(String name) {
+        return this.weakKeys.get(name);
+    }
+
+    private void addWeakKey(String name, String key) {
+        Set<String> keys = this.weakKeys.get(name);
+        if (keys == null) {
+            keys = new HashSet<>();
+            this.weakKeys.put(name, keys);
         }
-        return this.nodes.get(node.getName());
+        keys.add(key);
     }
 
     public void addRelationship(AbstractRelationship rel) {
@@ -83,4 +144,236 @@ public class Subgraph {
         this.relationships.add(rel);
     }
 
+    /**
+     * Merge in a subgraph that followed this one in the same document.
+     * Nodes are merged by name, exactly as if every element of the other
+     * subgraph had been read into this one in turn.
+     */
+    public void merge(Subgraph subgraph) {
+        this.comments.addAll(subgraph.comments);
+        for (AbstractNode node : subgraph.nodes.values()) {
+            Set<String> keys = subgraph.weakKeys.get(node.getName());
+            if (keys == null) {
+                this.mergeNode(node);
+            } else {
+                this.mergeHookedNode(node, keys);
+            }
+        }
+        for (AbstractNode node : subgraph.anonymousNodes) {
+            this.mergeNode(node);
+        }
+        this.relationships.addAll(subgraph.relationships);
+    }
+
+    /**
+     * Merge in a node from another subgraph whose placeholder keys must
+     * not replace values already held here.
+     */
+    private void mergeHookedNode(AbstractNode node, Set<String> keys) {
+        String name = node.getName();
+        AbstractNode existingNode = this.nodes.get(name);
+        if (existingNode == null) {
+            this.nodes.put(name, node);
+            this.weakKeys.put(name, new HashSet<>(keys));
+            return;
+        }
+        Map<String, Object> properties = existingNode.getProperties();
+        Set<String> existingKeys = this.weakKeys.get(name);
+        HashMap<String, Object> kept = new HashMap<>();
+        for (String key : keys) {
+            if (properties != null && properties.containsKey(key)) {
+                kept.put(key, properties.get(key));
+            }
+        }
+        existingNode.mergeNode(node);
+        existingNode.mergeProperties(kept);
+        if (existingKeys != null && node.getProperties() != null) {
+            for (String key : node.getProperties().keySet()) {
+                if (!keys.contains(key)) {
+                    existingKeys.remove(key);
+                }
+            }
+        }
+        for (String key : keys) {
+            if (!kept.containsKey(key)) {
+                this.addWeakKey(name, key);
+            }
+        }
+    }
+
+    /**
+     * View of named and anonymous nodes together. Nodes put into it are
+     * held by the name they are put under.
+     */
+    private class NodeMap extends AbstractMap<String, AbstractNode> {
+
+        private HashMap<String, AbstractNode> anonymousIndex;
+
+        private AbstractNode getAnonymous(Object name) {
+            if (anonymousNodes.isEmpty()) {
+                return null;
+            }
+            if (this.anonymousIndex == null) {
+                this.anonymousIndex = new HashMap<>(anonymousNodes.size());
+                for (AbstractNode node : anonymousNodes) {
+                    this.anonymousIndex.put(node.getName(), node);
+                }
+            }
+            return this.anonymousIndex.get(name);
+        }
+
+        @Override
+        public int size() {
+            return order();
+        }
+
+        @Override
+        public AbstractNode get(Object name) {
+            AbstractNode node = nodes.get(name);
+            return node == null ? this.getAnonymous(name) : node;
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return this.get(name) != null;
+        }
+
+        @Override
+        public AbstractNode put(String name, AbstractNode node) {
+            if (node == null) {
+                throw new NullPointerException("Null nodes cannot be added");
+            }
+            AbstractNode anonymousNode = nodes.containsKey(name) ? null : this.getAnonymous(name);
+            if (anonymousNode != null) {
+                this.removeAnonymous(anonymousNode);
+            }
+            weakKeys.remove(name);
+            AbstractNode previous = nodes.put(name, node);
+            return previous == null ? anonymousNode : previous;
+        }
+
+        @Override
+        public AbstractNode remove(Object name) {
+            AbstractNode node = nodes.remove(name);
+            if (node != null) {
+                weakKeys.remove(name);
+                return node;
+            }
+            node = this.getAnonymous(name);
+            if (node != null) {
+                this.removeAnonymous(node);
+            }
+            return node;
+        }
+
+        @Override
+        public void clear() {
+            nodes.clear();
+            anonymousNodes.clear();
+            weakKeys.clear();
+            this.anonymousIndex = null;
+        }
+
+        private void removeAnonymous(AbstractNode node) {
+            anonymousNodes.remove(node);
+            this.anonymousIndex = null;
+        }
+
+        @Override
+        public Collection<AbstractNode> values() {
+            return new AbstractCollection<AbstractNode>() {
+                @Override
+                public Iterator<AbstractNode> iterator() {
+                    return new JoinedIterator<AbstractNode>() {
+                        @Override
+                        AbstractNode named(Entry<String, AbstractNode> entry) {
+                            return entry.getValue();
+                        }
+
+                        @Override
+                        AbstractNode anonymous(AbstractNode node) {
+                            return node;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return order();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, AbstractNode>> entrySet() {
+            return new AbstractSet<Entry<String, AbstractNode>>() {
+                @Override
+                public Iterator<Entry<String, AbstractNode>> iterator() {
+                    return new JoinedIterator<Entry<String, AbstractNode>>() {
+                        @Override
+                        Entry<String, AbstractNode> named(Entry<String, AbstractNode> entry) {
+                            return entry;
+                        }
+
+                        @Override
+                        Entry<String, AbstractNode> anonymous(AbstractNode node) {
+                            return new SimpleImmutableEntry<>(node.getName(), node);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return order();
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Iterates through named nodes and then through anonymous nodes.
+     */
+    private abstract class JoinedIterator<T> implements Iterator<T> {
+
+        final private Iterator<Map.Entry<String, AbstractNode>> named = nodes.entrySet().iterator();
+        final private Iterator<AbstractNode> anonymous = anonymousNodes.iterator();
+        // the name of the last named node returned, or null after an
+        // anonymous one
+        private String lastName;
+
+        abstract T named(Map.Entry<String, AbstractNode> entry);
+
+        abstract T anonymous(AbstractNode node);
+
+        @Override
+        public boolean hasNext() {
+            return this.named.hasNext() || this.anonymous.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (this.named.hasNext()) {
+                Map.Entry<String, AbstractNode> entry = this.named.next();
+                this.lastName = entry.getKey();
+                return this.named(entry);
+            } else {
+                this.lastName = null;
+                return this.anonymous(this.anonymous.next());
+            }
+        }
+
+        @Override
+        public void remove() {
+            if (this.lastName != null) {
+                this.named.remove();
+                weakKeys.remove(this.lastName);
+            } else {
+                this.anonymous.remove();
+                nodeMap.anonymousIndex = null;
+            }
+        }
+
+    }
+
 }
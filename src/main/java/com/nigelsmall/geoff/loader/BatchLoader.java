@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk loader for a new store, built on the non-transactional batch
+ * inserter. Subgraphs are loaded as by NeoLoader, but unique nodes are
+ * found in an in-memory map of (label, key, value) to node id rather
+ * than by index lookups.
+ *
+ * Only nodes loaded by this loader are in that map, so the store should
+ * hold no unique nodes beforehand. Every node loaded is mapped under each
+ * of its labels and keys that any node is made unique on, including
+ * nodes loaded before that happens, so a unique node finds a plain node
+ * with its label and value just as NeoLoader would. The ids of nodes are
+ * kept by label for this. The inserter is not shut down by the loader.
+ */
+public class BatchLoader {
+
+    final private Logger logger = LoggerFactory.getLogger(BatchLoader.class);
+    final private BatchInserter inserter;
+    final private HashMap<String, Label> labelCache;
+    final private HashMap<String, RelationshipType> typeCache;
+    final private HashMap<String, Set<String>> uniqueKeys;
+    final private HashMap<UniqueValue, Long> uniqueNodes;
+    final private HashMap<String, IdList> labelledNodes;
+
+    public BatchLoader(BatchInserter inserter) {
+        this.inserter = inserter;
+        this.labelCache = new HashMap<>();
+        this.typeCache = new HashMap<>();
+        this.uniqueKeys = new HashMap<>();
+        this.uniqueNodes = new HashMap<>();
+        this.labelledNodes = new HashMap<>();
+    }
+
+    private Label getLabel(String name) {
+        Label label = this.labelCache.get(name);
+        if (label == null) {
+            label = DynamicLabel.label(name);
+            this.labelCache.put(name, label);
+        }
+        return label;
+    }
+
+    private RelationshipType getType(String name) {
+        RelationshipType type = this.typeCache.get(name);
+        if (type == null) {
+            type = DynamicRelationshipType.withName(name);
+            this.typeCache.put(name, type);
+        }
+        return type;
+    }
+
+    /**
+     * Load a subgraph into the store.
+     *
+     * @param subgraph the subgraph to load
+     * @return a Map of the ids of named nodes that have been loaded
+     */
+    public Map<String, Long> load(Subgraph subgraph) {
+        int order = subgraph.order();
+        int size = subgraph.size();
+        HashMap<String, Long> namedNodes = new HashMap<>(order);
+        IdentityHashMap<AbstractNode, Long> anonymousNodes = new IdentityHashMap<>();
+        logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
+                    order, size));
+        long t0 = System.currentTimeMillis();
+        // every unique label and key must be known before any node is
+        // loaded, so that earlier nodes can be found by later ones
+        for (AbstractNode abstractNode : subgraph.getNodes().values()) {
+            if (abstractNode.isUnique()) {
+                Set<String> keys = this.uniqueKeys.get(abstractNode.getUniqueLabel());
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    this.uniqueKeys.put(abstractNode.getUniqueLabel(), keys);
+                }
+                if (keys.add(abstractNode.getUniqueKey())) {
+                    this.addUniqueValues(abstractNode.getUniqueLabel(), abstractNode.getUniqueKey());
+                }
+            }
+        }
+        for (AbstractNode abstractNode : subgraph.getNodes().values()) {
+            long id = this.loadNode(abstractNode);
+            if (abstractNode.isNamed()) {
+                namedNodes.put(abstractNode.getName(), id);
+            } else {
+                anonymousNodes.put(abstractNode, id);
+            }
+        }
+        for (AbstractRelationship abstractRelationship : subgraph.getRelationships()) {
+            AbstractNode startNode = abstractRelationship.getStartNode();
+            AbstractNode endNode = abstractRelationship.getEndNode();
+            this.loadRelationship(abstractRelationship,
+                    startNode.isNamed() ? namedNodes.get(startNode.getName()) : anonymousNodes.get(startNode),
+                    endNode.isNamed() ? namedNodes.get(endNode.getName()) : anonymousNodes.get(endNode));
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded subgraph with %d nodes and %d relationships in %dms", order, size, t1));
+        return namedNodes;
+    }
+
+    /**
+     * Create or merge a node. If this is a unique node that has already
+     * been loaded, it is merged into, otherwise a new node is created.
+     *
+     * @param abstractNode an abstract node specification
+     * @return the id of the node that is either merged into or created
+     */
+    public long loadNode(AbstractNode abstractNode) {
+        Long id = null;
+        if (abstractNode.isUnique() && abstractNode.getUniqueValue() != null) {
+            id = this.uniqueNodes.get(new UniqueValue(abstractNode.getUniqueLabel(), abstractNode.getUniqueKey(),
+                    abstractNode.getUniqueValue()));
+        }
+        Set<String> labels = abstractNode.getLabels();
+        Map<String, Object> properties = withoutNulls(abstractNode.getProperties());
+        if (id == null) {
+            Label[] created = this.getLabels(labels, null);
+            id = this.inserter.createNode(properties, created);
+            this.addLabelledNode(id, created, 0);
+            this.addUniqueValues(id, created, properties);
+        } else {
+            Label[] merged = this.mergeLabels(id, labels);
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                this.inserter.setNodeProperty(id, entry.getKey(), entry.getValue());
+            }
+            this.addUniqueValues(id, merged, properties);
+        }
+        return id;
+    }
+
+    /**
+     * Add labels to an existing node.
+     *
+     * @return all labels of the node
+     */
+    private Label[] mergeLabels(long id, Set<String> labels) {
+        ArrayList<Label> existing = new ArrayList<>();
+        for (Label label : this.inserter.getNodeLabels(id)) {
+            existing.add(label);
+        }
+        Label[] merged = this.getLabels(labels, existing);
+        if (merged.length > existing.size()) {
+            this.inserter.setNodeLabels(id, merged);
+            this.addLabelledNode(id, merged, existing.size());
+        }
+        return merged;
+    }
+
+    private void addLabelledNode(long id, Label[] labels, int start) {
+        for (int i = start; i < labels.length; i++) {
+            IdList ids = this.labelledNodes.get(labels[i].name());
+            if (ids == null) {
+                ids = new IdList();
+                this.labelledNodes.put(labels[i].name(), ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    /**
+     * The labels of the given names, added to any existing labels not
+     * already among them.
+     */
+    private Label[] getLabels(Set<String> names, ArrayList<Label> existing) {
+        ArrayList<Label> labels = existing == null ? new ArrayList<Label>() : new ArrayList<>(existing);
+        HashSet<String> seen = new HashSet<>();
+        for (Label label : labels) {
+            seen.add(label.name());
+        }
+        if (names != null) {
+            for (String name : names) {
+                if (seen.add(name)) {
+                    labels.add(this.getLabel(name));
+                }
+            }
+        }
+        return labels.toArray(new Label[labels.size()]);
+    }
+
+    /**
+     * Map a node under every unique label and key it has a value for.
+     */
+    private void addUniqueValues(long id, Label[] labels, Map<String, Object> properties) {
+        for (Label label : labels) {
+            Set<String> keys = this.uniqueKeys.get(label.name());
+            if (keys != null) {
+                for (String key : keys) {
+                    this.addUniqueValue(id, label.name(), key, properties.get(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Map every node already loaded with a label under a key that has
+     * just been made unique, in the order they were created.
+     */
+    private void addUniqueValues(String label, String key) {
+        IdList ids = this.labelledNodes.get(label);
+        if (ids != null) {
+            for (int i = 0; i < ids.size; i++) {
+                if (this.inserter.nodeHasProperty(ids.ids[i], key)) {
+                    this.addUniqueValue(ids.ids[i], label, key, this.inserter.getNodeProperties(ids.ids[i]).get(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Map a node under a unique label, key and value, unless another node
+     * is already mapped there, as the "first" node found is the one that
+     * is merged into.
+     */
+    private void addUniqueValue(long id, String label, String key, Object value) {
+        if (value != null) {
+            UniqueValue uniqueValue = new UniqueValue(label, key, value);
+            if (!this.uniqueNodes.containsKey(uniqueValue)) {
+                this.uniqueNodes.put(uniqueValue, id);
+            }
+        }
+    }
+
+    public long loadRelationship(AbstractRelationship abstractRelationship, long startNode, long endNode) {
+        RelationshipType type = this.getType(abstractRelationship.getType());
+        Map<String, Object> properties = withoutNulls(abstractRelationship.getProperties());
+        Long id = null;
+        if (abstractRelationship.isUnique()) {
+            id = this.findRelationship(startNode, endNode, type, abstractRelationship.getUniqueKey(),
+                    abstractRelationship.getUniqueValue());
+        }
+        if (id == null) {
+            id = this.inserter.createRelationship(startNode, endNode, type, properties);
+        } else {
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                this.inserter.setRelationshipProperty(id, entry.getKey(), entry.getValue());
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Find an existing relationship to merge into, from the relationships
+     * of the start node, or return null if there is none.
+     */
+    private Long findRelationship(long startNode, long endNode, RelationshipType type, String key, Object value) {
+        for (BatchRelationship rel : this.inserter.getRelationships(startNode)) {
+            if (rel.getStartNode() == startNode && rel.getEndNode() == endNode
+                    && rel.getType().name().equals(type.name())) {
+                if (key == null) {
+                    return rel.getId();
+                }
+                Object existingValue = this.inserter.getRelationshipProperties(rel.getId()).get(key);
+                if (existingValue != null && existingValue.equals(value)) {
+                    return rel.getId();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The inserter takes no null values, which here are only ever
+     * placeholders for missing unique values.
+     */
+    private static Map<String, Object> withoutNulls(Map<String, Object> properties) {
+        if (properties == null) {
+            return Collections.emptyMap();
+        }
+        if (!properties.containsValue(null)) {
+            return properties;
+        }
+        HashMap<String, Object> copy = new HashMap<>(properties);
+        copy.values().removeAll(Collections.singleton(null));
+        return copy;
+    }
+
+    /**
+     * A growable list of node ids, without boxing.
+     */
+    private static final class IdList {
+
+        private long[] ids = new long[16];
+        private int size;
+
+        void add(long id) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, 2 * this.ids.length);
+            }
+            this.ids[this.size++] = id;
+        }
+
+    }
+
+}
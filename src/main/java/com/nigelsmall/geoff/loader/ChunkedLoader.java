@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Loader that owns its transactions, committing after every chunk of
+ * nodes and relationships instead of holding a whole subgraph in one
+ * transaction. The size of each chunk is adapted to the time its commit
+ * took, aiming for a target commit time.
+ *
+ * Nodes are held by id between chunks, and looked up again for each
+ * relationship. Loads must not be started within a transaction of the
+ * caller's. If a load fails, chunks that have already been committed
+ * stay committed.
+ */
+public class ChunkedLoader {
+
+    final public static int DEFAULT_CHUNK_SIZE = 10000;
+    final public static long DEFAULT_TARGET_COMMIT_TIME = 250;
+    final public static int DEFAULT_MIN_CHUNK_SIZE = 100;
+    final public static int DEFAULT_MAX_CHUNK_SIZE = 1000000;
+
+    final private Logger logger = LoggerFactory.getLogger(ChunkedLoader.class);
+    final private GraphDatabaseService database;
+    final private NeoLoader loader;
+    private long targetCommitTime = DEFAULT_TARGET_COMMIT_TIME;
+    private int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+    private int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private long commitCount;
+    private Transaction transaction;
+    private int pending;
+
+    public ChunkedLoader(GraphDatabaseService database) {
+        this(database, null);
+    }
+
+    /**
+     * @param uniqueNodeCache a cache of unique nodes to consult before
+     *                        looking them up in the database, or null
+     */
+    public ChunkedLoader(GraphDatabaseService database, UniqueNodeCache uniqueNodeCache) {
+        this.database = database;
+        this.loader = new NeoLoader(database, uniqueNodeCache);
+    }
+
+    /**
+     * The commit time to aim for, in milliseconds.
+     */
+    public long getTargetCommitTime() {
+        return this.targetCommitTime;
+    }
+
+    public void setTargetCommitTime(long targetCommitTime) {
+        if (targetCommitTime <= 0) {
+            throw new IllegalArgumentException("Target commit time must be positive");
+        }
+        this.targetCommitTime = targetCommitTime;
+    }
+
+    /**
+     * Set the bounds within which the chunk size is adapted.
+     */
+    public void setChunkSizeLimits(int minChunkSize, int maxChunkSize) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Chunk size limits must be positive and in order");
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, this.chunkSize));
+    }
+
+    /**
+     * The number of nodes and relationships that the next chunk will hold.
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(this.minChunkSize, Math.min(this.maxChunkSize, chunkSize));
+    }
+
+    /**
+     * The number of transactions committed so far.
+     */
+    public long getCommitCount() {
+        return this.commitCount;
+    }
+
+    /**
+     * Load a subgraph into the database in as many transactions as it
+     * takes.
+     *
+     * @param subgraph the subgraph to load
+     * @return a Map of the ids of named nodes that have been loaded
+     */
+    public Map<String, Long> load(Subgraph subgraph) {
+        int order = subgraph.order();
+        int size = subgraph.size();
+        HashMap<String, Long> namedNodes = new HashMap<>(order);
+        IdentityHashMap<AbstractNode, Long> anonymousNodes = new IdentityHashMap<>();
+        logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
+                    order, size));
+        long t0 = System.currentTimeMillis();
+        long commitCount = this.commitCount;
+        this.transaction = this.database.beginTx();
+        try {
+            for (AbstractNode abstractNode : subgraph.getNodes().values()) {
+                long id = this.loader.loadNode(abstractNode).getId();
+                if (abstractNode.isNamed()) {
+                    namedNodes.put(abstractNode.getName(), id);
+                } else {
+                    anonymousNodes.put(abstractNode, id);
+                }
+                this.step();
+            }
+            for (AbstractRelationship abstractRelationship : subgraph.getRelationships()) {
+                AbstractNode startNode = abstractRelationship.getStartNode();
+                AbstractNode endNode = abstractRelationship.getEndNode();
+                long startId = startNode.isNamed() ? namedNodes.get(startNode.getName()) : anonymousNodes.get(startNode);
+                long endId = endNode.isNamed() ? namedNodes.get(endNode.getName()) : anonymousNodes.get(endNode);
+                this.loader.loadRelationship(abstractRelationship,
+                        this.database.getNodeById(startId), this.database.getNodeById(endId));
+                this.step();
+            }
+            this.commit();
+        } finally {
+            if (this.transaction != null) {
+                this.transaction.failure();
+                this.transaction.close();
+                this.transaction = null;
+                this.pending = 0;
+            }
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded subgraph with %d nodes and %d relationships in %d transactions in %dms",
+                order, size, this.commitCount - commitCount, t1));
+        return namedNodes;
+    }
+
+    private void step() {
+        this.pending++;
+        if (this.pending >= this.chunkSize) {
+            this.commit();
+            this.transaction = this.database.beginTx();
+        }
+    }
+
+    private void commit() {
+        Transaction transaction = this.transaction;
+        this.transaction = null;
+        long t0 = System.nanoTime();
+        transaction.success();
+        transaction.close();
+        long commitTime = (System.nanoTime() - t0) / 1000000;
+        this.commitCount++;
+        if (this.pending >= this.chunkSize) {
+            // only full chunks say anything about how big they should be
+            this.adapt(commitTime);
+        }
+        this.pending = 0;
+    }
+
+    /**
+     * Scale the chunk size by how far the last commit was from the
+     * target, by no more than a factor of two either way.
+     */
+    private void adapt(long commitTime) {
+        double ratio = (double) this.targetCommitTime / Math.max(commitTime, 1);
+        ratio = Math.max(0.5, Math.min(2.0, ratio));
+        int chunkSize = (int) Math.max(this.minChunkSize, Math.min(this.maxChunkSize, this.chunkSize * ratio));
+        if (chunkSize != this.chunkSize) {
+            logger.debug(String.format("Commit of %d took %dms, next chunk size %d",
+                    this.chunkSize, commitTime, chunkSize));
+            this.chunkSize = chunkSize;
+        }
+    }
+
+}
@@ -18,14 +18,20 @@ package com.nigelsmall.geoff.loader;
 
 import com.nigelsmall.geoff.AbstractNode;
 import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.CompactSubgraph;
+import com.nigelsmall.geoff.ShapedPropertyMap;
+import com.nigelsmall.geoff.SpillingSubgraph;
 import com.nigelsmall.geoff.Subgraph;
 import org.neo4j.graphdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class NeoLoader {
@@ -34,11 +40,21 @@ public class NeoLoader {
     final private GraphDatabaseService database;
     final private HashMap<String, Label> labelCache;
     final private HashMap<String, RelationshipType> typeCache;
+    final private UniqueNodeCache uniqueNodeCache;
 
     public NeoLoader(GraphDatabaseService database) {
+        this(database, null);
+    }
+
+    /**
+     * @param uniqueNodeCache a cache of unique nodes to consult before
+     *                        looking them up in the database, or null
+     */
+    public NeoLoader(GraphDatabaseService database, UniqueNodeCache uniqueNodeCache) {
         this.database = database;
         this.labelCache = new HashMap<>();
         this.typeCache = new HashMap<>();
+        this.uniqueNodeCache = uniqueNodeCache;
     }
 
     private Label getLabel(String name) {
@@ -67,23 +83,21 @@ public class NeoLoader {
         List<AbstractRelationship> abstractRelationships = subgraph.getRelationships();
         int order = subgraph.order();
         int size = subgraph.size();
-        HashMap<String, Node> nodes = new HashMap<>(order);
         HashMap<String, Node> namedNodes = new HashMap<>(order);
+        IdentityHashMap<AbstractNode, Node> anonymousNodes = new IdentityHashMap<>();
         // start load
         logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
                     order, size));
         long t0 = System.currentTimeMillis();
         // load nodes
         for (AbstractNode abstractNode : abstractNodes.values()) {
-            Node node = this.loadNode(abstractNode);
-            nodes.put(abstractNode.getName(), node);
-            if (abstractNode.isNamed()) {
-                namedNodes.put(abstractNode.getName(), node);
-            }
+            this.putNode(abstractNode, this.loadNode(abstractNode), namedNodes, anonymousNodes);
         }
         // load relationships
         for (AbstractRelationship abstractRelationship : abstractRelationships) {
-            this.loadRelationship(abstractRelationship, nodes);
+            this.loadRelationship(abstractRelationship,
+                    getNode(abstractRelationship.getStartNode(), namedNodes, anonymousNodes),
+                    getNode(abstractRelationship.getEndNode(), namedNodes, anonymousNodes));
         }
         // finish load
         long t1 = System.currentTimeMillis() - t0;
@@ -91,6 +105,147 @@ public class NeoLoader {
         return namedNodes;
     }
 
+    /**
+     * Load a subgraph that may have been spilled to disk. Once spilled,
+     * nodes are loaded in name order and the ids of those loaded are
+     * written to a table on disk, from which the nodes of each
+     * relationship are then looked up. Named nodes are not returned, as
+     * there may be too many of them to hold.
+     *
+     * @param subgraph the subgraph to load
+     */
+    public void load(SpillingSubgraph subgraph) throws IOException {
+        long order = subgraph.order();
+        long size = subgraph.size();
+        logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
+                    order, size));
+        long t0 = System.currentTimeMillis();
+        if (subgraph.isSpilled()) {
+            try (NodeIdTable ids = new NodeIdTable(null)) {
+                for (AbstractNode abstractNode : subgraph.getNodes()) {
+                    ids.add(abstractNode.getName(), this.loadNode(abstractNode).getId());
+                }
+                ids.seal();
+                for (AbstractRelationship abstractRelationship : subgraph.getRelationships()) {
+                    Node startNode = this.database.getNodeById(ids.get(abstractRelationship.getStartNode().getName()));
+                    Node endNode = this.database.getNodeById(ids.get(abstractRelationship.getEndNode().getName()));
+                    this.loadRelationship(abstractRelationship, startNode, endNode);
+                }
+            }
+        } else {
+            HashMap<String, Node> namedNodes = new HashMap<>((int) order);
+            IdentityHashMap<AbstractNode, Node> anonymousNodes = new IdentityHashMap<>();
+            for (AbstractNode abstractNode : subgraph.getNodes()) {
+                this.putNode(abstractNode, this.loadNode(abstractNode), namedNodes, anonymousNodes);
+            }
+            for (AbstractRelationship abstractRelationship : subgraph.getRelationships()) {
+                this.loadRelationship(abstractRelationship,
+                        getNode(abstractRelationship.getStartNode(), namedNodes, anonymousNodes),
+                        getNode(abstractRelationship.getEndNode(), namedNodes, anonymousNodes));
+            }
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded subgraph with %d nodes and %d relationships in %dms", order, size, t1));
+    }
+
+    /**
+     * Load a compact subgraph straight from its columns. Nodes are held
+     * in an array by id while relationships are loaded, so no lookup by
+     * name is needed.
+     *
+     * @param subgraph the subgraph to load
+     * @return a Map of named Nodes that have been loaded
+     */
+    public Map<String, Node> load(CompactSubgraph subgraph) {
+        int order = subgraph.order();
+        int size = subgraph.size();
+        Node[] nodes = new Node[order];
+        HashMap<String, Node> namedNodes = new HashMap<>(order);
+        logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
+                    order, size));
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < order; i++) {
+            Node node = null;
+            String uniqueLabel = subgraph.getUniqueLabel(i);
+            String uniqueKey = subgraph.getUniqueKey(i);
+            if (uniqueLabel != null && uniqueKey != null) {
+                Object uniqueValue = subgraph.getUniqueValue(i);
+                node = this.findNode(uniqueLabel, uniqueKey, uniqueValue);
+                if (node == null) {
+                    node = database.createNode();
+                    this.cacheNode(uniqueLabel, uniqueKey, uniqueValue, node);
+                }
+            }
+            if (node == null) {
+                node = database.createNode();
+            }
+            int[] labelIds = subgraph.getLabelIds(i);
+            if (labelIds != null) {
+                for (int labelId : labelIds) {
+                    node.addLabel(this.getLabel(subgraph.getLabel(labelId)));
+                }
+            }
+            this.setProperties(node, subgraph, subgraph.getPropertyKeyIds(i), subgraph.getPropertyValues(i));
+            nodes[i] = node;
+            if (subgraph.isNamed(i)) {
+                namedNodes.put(subgraph.getNodeName(i), node);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            Node startNode = nodes[subgraph.getStartNode(i)];
+            Node endNode = nodes[subgraph.getEndNode(i)];
+            RelationshipType type = this.getType(subgraph.getType(subgraph.getTypeId(i)));
+            Relationship rel;
+            if (subgraph.isUnique(i)) {
+                String uniqueKey = subgraph.getRelationshipUniqueKey(i);
+                if (uniqueKey == null) {
+                    rel = mergeRelationship(startNode, endNode, type);
+                } else {
+                    rel = mergeRelationship(startNode, endNode, type, uniqueKey, subgraph.getRelationshipUniqueValue(i));
+                }
+            } else {
+                rel = startNode.createRelationshipTo(endNode, type);
+            }
+            this.setProperties(rel, subgraph, subgraph.getRelationshipPropertyKeyIds(i),
+                    subgraph.getRelationshipPropertyValues(i));
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded subgraph with %d nodes and %d relationships in %dms", order, size, t1));
+        return namedNodes;
+    }
+
+    private void setProperties(PropertyContainer entity, CompactSubgraph subgraph, int[] keyIds, Object[] values) {
+        if (keyIds == null)
+            return;
+        for (int i = 0; i < keyIds.length; i++) {
+            if (values[i] != null) {
+                entity.setProperty(subgraph.getKey(keyIds[i]), values[i]);
+            }
+        }
+    }
+
+    /**
+     * Anonymous nodes are kept by identity, as the nodes of relationships
+     * are the very same objects, so that they never need names.
+     */
+    private void putNode(AbstractNode abstractNode, Node node,
+                         HashMap<String, Node> namedNodes, IdentityHashMap<AbstractNode, Node> anonymousNodes) {
+        if (abstractNode.isNamed()) {
+            namedNodes.put(abstractNode.getName(), node);
+        } else {
+            anonymousNodes.put(abstractNode, node);
+        }
+    }
+
+    private static Node getNode(AbstractNode abstractNode,
+                                HashMap<String, Node> namedNodes, IdentityHashMap<AbstractNode, Node> anonymousNodes) {
+        if (abstractNode.isNamed()) {
+            return namedNodes.get(abstractNode.getName());
+        } else {
+            return anonymousNodes.get(abstractNode);
+        }
+    }
+
     /**
      * Create or merge a node. If this is a unique node, a merge will occur,
      * otherwise a new node will be created.
@@ -101,14 +256,12 @@ public class NeoLoader {
     public Node loadNode(AbstractNode abstractNode) {
         Node node = null;
         if (abstractNode.isUnique()) {
-            // determine the label, key and value to look up
-            Label label = this.getLabel(abstractNode.getUniqueLabel());
-            String uniqueKey = abstractNode.getUniqueKey();
-            Object uniqueValue = abstractNode.getUniqueValue();
-            // find the "first" node with the given label, key and value
-            for (Node foundNode : database.findNodesByLabelAndProperty(label, uniqueKey, uniqueValue)) {
-                node = foundNode;
-                break;
+            node = this.findNode(abstractNode.getUniqueLabel(), abstractNode.getUniqueKey(),
+                    abstractNode.getUniqueValue());
+            if (node == null) {
+                node = database.createNode();
+                this.cacheNode(abstractNode.getUniqueLabel(), abstractNode.getUniqueKey(),
+                        abstractNode.getUniqueValue(), node);
             }
         }
         // if not unique, or cannot find, create anew
@@ -120,9 +273,64 @@ public class NeoLoader {
         return node;
     }
 
+    /**
+     * Find the "first" node with the given label, key and value, from the
+     * cache if there is one and it holds a node that still matches.
+     */
+    private Node findNode(String uniqueLabel, String uniqueKey, Object uniqueValue) {
+        Label label = this.getLabel(uniqueLabel);
+        UniqueValue cacheKey = null;
+        if (this.uniqueNodeCache != null && uniqueValue != null) {
+            cacheKey = new UniqueValue(uniqueLabel, uniqueKey, uniqueValue);
+            Long id = this.uniqueNodeCache.get(cacheKey);
+            if (id != null) {
+                Node cachedNode = this.getMatchingNode(id, label, uniqueKey, uniqueValue);
+                if (cachedNode != null) {
+                    this.uniqueNodeCache.hit();
+                    return cachedNode;
+                }
+                this.uniqueNodeCache.remove(cacheKey);
+            }
+            this.uniqueNodeCache.miss();
+        }
+        for (Node foundNode : database.findNodesByLabelAndProperty(label, uniqueKey, uniqueValue)) {
+            if (cacheKey != null) {
+                this.uniqueNodeCache.put(cacheKey, foundNode.getId());
+            }
+            return foundNode;
+        }
+        return null;
+    }
+
+    /**
+     * The node with a cached id, if it still exists and still has the
+     * label and value it was cached under, or null otherwise.
+     */
+    private Node getMatchingNode(long id, Label label, String key, Object value) {
+        try {
+            Node node = database.getNodeById(id);
+            if (node.hasLabel(label) && Objects.deepEquals(node.getProperty(key, null), value)) {
+                return node;
+            }
+        } catch (NotFoundException e) {
+            // created by a transaction since rolled back, or deleted
+        }
+        return null;
+    }
+
+    private void cacheNode(String uniqueLabel, String uniqueKey, Object uniqueValue, Node node) {
+        if (this.uniqueNodeCache != null && uniqueValue != null) {
+            this.uniqueNodeCache.put(new UniqueValue(uniqueLabel, uniqueKey, uniqueValue), node.getId());
+        }
+    }
+
     public void loadRelationship(AbstractRelationship abstractRelationship, HashMap<String, Node> nodes) {
         Node startNode = nodes.get(abstractRelationship.getStartNode().getName());
         Node endNode = nodes.get(abstractRelationship.getEndNode().getName());
+        this.loadRelationship(abstractRelationship, startNode, endNode);
+    }
+
+    public void loadRelationship(AbstractRelationship abstractRelationship, Node startNode, Node endNode) {
         RelationshipType type = this.getType(abstractRelationship.getType());
         Map<String, Object> properties = abstractRelationship.getProperties();
         Relationship rel;
@@ -192,6 +400,17 @@ public class NeoLoader {
     public void setProperties(PropertyContainer entity, Map<String, Object> properties) {
         if (properties == null)
             return;
+        if (properties instanceof ShapedPropertyMap) {
+            // walk the key and value arrays, with no entries to create
+            ShapedPropertyMap shaped = (ShapedPropertyMap) properties;
+            for (int i = 0; i < shaped.size(); i++) {
+                Object value = shaped.getValue(i);
+                if (value != null) {
+                    entity.setProperty(shaped.getKey(i), value);
+                }
+            }
+            return;
+        }
         for (Map.Entry<String, Object> entry : properties.entrySet()) {
             if (entry.getValue() != null) {
                 entity.setProperty(entry.getKey(), entry.getValue());
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * On-disk table of node ids by name, for looking up the nodes of
+ * relationships when there are too many nodes to keep in memory. Names
+ * must be added in ascending order, after which the table is mapped into
+ * memory and searched by bisection.
+ *
+ * A file may be larger than a single mapping can hold, so each is mapped
+ * in segments. Entries are padded so that none straddles two segments.
+ */
+final class NodeIdTable implements Closeable {
+
+    final private static Charset UTF_8 = Charset.forName("UTF-8");
+
+    final static int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    final private File entryFile;
+    final private File offsetFile;
+    final private int segmentSize;
+    private DataOutputStream entries;
+    private DataOutputStream offsets;
+    private MappedByteBuffer[] entrySegments;
+    private MappedByteBuffer[] offsetSegments;
+    private byte[] bytes = new byte[64];
+    private long offset;
+    private long count;
+
+    NodeIdTable(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize the most bytes mapped at once, which must be a
+     *                    multiple of 8
+     */
+    NodeIdTable(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize % 8 != 0) {
+            throw new IllegalArgumentException("Segment size must be a positive multiple of 8");
+        }
+        this.segmentSize = segmentSize;
+        this.entryFile = File.createTempFile("geoff-ids-", ".tab", directory);
+        this.offsetFile = File.createTempFile("geoff-ids-", ".off", directory);
+        this.entries = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.entryFile)));
+        this.offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.offsetFile)));
+    }
+
+    void add(String name, long id) throws IOException {
+        byte[] bytes = name.getBytes(UTF_8);
+        int size = 4 + bytes.length + 8;
+        if (size > this.segmentSize) {
+            throw new IOException("Name too long for node id table: " + name);
+        }
+        int room = this.segmentSize - (int) (this.offset % this.segmentSize);
+        if (size > room) {
+            // start the entry in the next segment
+            this.entries.write(new byte[room]);
+            this.offset += room;
+        }
+        this.offsets.writeLong(this.offset);
+        this.entries.writeInt(bytes.length);
+        this.entries.write(bytes);
+        this.entries.writeLong(id);
+        this.offset += size;
+        this.count++;
+    }
+
+    /**
+     * Finish adding names and make the table ready for lookups.
+     */
+    void seal() throws IOException {
+        this.entries.close();
+        this.offsets.close();
+        this.entries = null;
+        this.offsets = null;
+        this.entrySegments = this.map(this.entryFile);
+        this.offsetSegments = this.map(this.offsetFile);
+    }
+
+    private MappedByteBuffer[] map(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            int count = (int) ((length + this.segmentSize - 1) / this.segmentSize);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i * this.segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(this.segmentSize, length - position));
+            }
+            // mappings stay valid once the channel is closed
+            return segments;
+        }
+    }
+
+    /**
+     * @return the id of the named node, or -1 if there is none
+     */
+    long get(String name) {
+        long low = 0;
+        long high = this.count - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long position = 8 * middle;
+            long offset = this.offsetSegments[(int) (position / this.segmentSize)]
+                    .getLong((int) (position % this.segmentSize));
+            MappedByteBuffer segment = this.entrySegments[(int) (offset / this.segmentSize)];
+            int index = (int) (offset % this.segmentSize);
+            int length = segment.getInt(index);
+            if (length > this.bytes.length) {
+                this.bytes = new byte[Math.max(length, 2 * this.bytes.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                this.bytes[i] = segment.get(index + 4 + i);
+            }
+            int c = new String(this.bytes, 0, length, UTF_8).compareTo(name);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return segment.getLong(index + 4 + length);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.entries != null) {
+                this.entries.close();
+                this.offsets.close();
+            }
+        } finally {
+            this.entrySegments = null;
+            this.offsetSegments = null;
+            this.entryFile.delete();
+            this.offsetFile.delete();
+        }
+    }
+
+}
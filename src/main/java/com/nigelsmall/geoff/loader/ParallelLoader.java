@@ -0,0 +1,371 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader that splits a subgraph into groups of connected components and
+ * loads the groups concurrently, each in a transaction of its own.
+ *
+ * Nodes that share a unique label, key and value are put in the same
+ * component, as they would merge into the same node, so no two groups
+ * ever race to create the same unique node. So too is any node whose
+ * labels and properties a unique node could look up, as an uncommitted
+ * node in another group would not be found. Groups may still contend for
+ * nodes already in the database, so a group whose transaction is rolled
+ * back by deadlock detection is retried. Loads must not be started
+ * within a transaction of the caller's, and groups that have already
+ * been committed stay committed if another fails.
+ */
+public class ParallelLoader {
+
+    /**
+     * Components are gathered into groups of at least this many nodes
+     * and relationships, so that transactions are not too small.
+     */
+    final public static int DEFAULT_GROUP_SIZE = 5000;
+
+    final public static int DEFAULT_MAX_ATTEMPTS = 10;
+
+    final private Logger logger = LoggerFactory.getLogger(ParallelLoader.class);
+    final private GraphDatabaseService database;
+    final private UniqueNodeCache uniqueNodeCache;
+    private int groupSize = DEFAULT_GROUP_SIZE;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    public ParallelLoader(GraphDatabaseService database) {
+        this(database, null);
+    }
+
+    /**
+     * @param uniqueNodeCache a cache of unique nodes to consult before
+     *                        looking them up in the database, or null
+     */
+    public ParallelLoader(GraphDatabaseService database, UniqueNodeCache uniqueNodeCache) {
+        this.database = database;
+        this.uniqueNodeCache = uniqueNodeCache;
+    }
+
+    public int getGroupSize() {
+        return this.groupSize;
+    }
+
+    public void setGroupSize(int groupSize) {
+        if (groupSize <= 0) {
+            throw new IllegalArgumentException("Group size must be positive");
+        }
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * The number of times a group is tried before a deadlock is given up
+     * on.
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Attempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Load a subgraph on a pool of one worker for each processor.
+     *
+     * @param subgraph the subgraph to load
+     * @return a Map of the ids of named nodes that have been loaded
+     */
+    public Map<String, Long> load(Subgraph subgraph) {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return this.load(subgraph, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Load a subgraph on the workers of an executor.
+     *
+     * @param subgraph the subgraph to load
+     * @param executor the executor on which to load groups
+     * @return a Map of the ids of named nodes that have been loaded
+     */
+    public Map<String, Long> load(Subgraph subgraph, ExecutorService executor) {
+        int order = subgraph.order();
+        int size = subgraph.size();
+        logger.info(String.format("Loading subgraph with %d nodes and %d relationships...",
+                    order, size));
+        long t0 = System.currentTimeMillis();
+        List<Group> groups = partition(subgraph, this.groupSize);
+        ConcurrentHashMap<String, Long> namedNodes = new ConcurrentHashMap<>(order);
+        ArrayList<LoadTask> tasks = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            tasks.add(new LoadTask(group, namedNodes));
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading subgraph", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to load subgraph", e.getCause());
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded subgraph with %d nodes and %d relationships in %d groups in %dms",
+                order, size, groups.size(), t1));
+        return namedNodes;
+    }
+
+    /**
+     * Split a subgraph into groups of whole connected components, in the
+     * order in which components are first seen.
+     */
+    static List<Group> partition(Subgraph subgraph, int groupSize) {
+        ArrayList<AbstractNode> nodes = new ArrayList<>(subgraph.getNodes().values());
+        HashMap<String, Integer> namedIndex = new HashMap<>(2 * nodes.size());
+        IdentityHashMap<AbstractNode, Integer> anonymousIndex = new IdentityHashMap<>();
+        int[] parents = new int[nodes.size()];
+        HashMap<UniqueValue, Integer> uniqueNodes = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            AbstractNode node = nodes.get(i);
+            parents[i] = i;
+            if (node.isNamed()) {
+                namedIndex.put(node.getName(), i);
+            } else {
+                anonymousIndex.put(node, i);
+            }
+            if (node.isUnique() && node.getUniqueValue() != null) {
+                UniqueValue uniqueValue = new UniqueValue(node.getUniqueLabel(), node.getUniqueKey(),
+                        node.getUniqueValue());
+                Integer other = uniqueNodes.get(uniqueValue);
+                if (other == null) {
+                    uniqueNodes.put(uniqueValue, i);
+                } else {
+                    union(parents, i, other);
+                }
+            }
+        }
+        if (!uniqueNodes.isEmpty()) {
+            // a unique node may also find any other node that carries its
+            // label and value, so both must share a transaction
+            for (int i = 0; i < nodes.size(); i++) {
+                AbstractNode node = nodes.get(i);
+                Set<String> labels = node.getLabels();
+                Map<String, Object> properties = node.getProperties();
+                if (labels != null && properties != null) {
+                    for (String label : labels) {
+                        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                            if (entry.getValue() != null) {
+                                Integer other = uniqueNodes.get(new UniqueValue(label, entry.getKey(),
+                                        entry.getValue()));
+                                if (other != null) {
+                                    union(parents, i, other);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        List<AbstractRelationship> relationships = subgraph.getRelationships();
+        int[] starts = new int[relationships.size()];
+        for (int i = 0; i < relationships.size(); i++) {
+            AbstractRelationship rel = relationships.get(i);
+            starts[i] = indexOf(rel.getStartNode(), namedIndex, anonymousIndex);
+            union(parents, starts[i], indexOf(rel.getEndNode(), namedIndex, anonymousIndex));
+        }
+        // number the components in the order they are first seen
+        int[] components = new int[nodes.size()];
+        ArrayList<Group> componentGroups = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            int root = find(parents, i);
+            if (root == i) {
+                components[i] = componentGroups.size();
+                componentGroups.add(new Group());
+            }
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            componentGroups.get(components[find(parents, i)]).nodes.add(nodes.get(i));
+        }
+        for (int i = 0; i < relationships.size(); i++) {
+            componentGroups.get(components[find(parents, starts[i])]).relationships.add(relationships.get(i));
+        }
+        // then pack them into groups
+        ArrayList<Group> groups = new ArrayList<>();
+        Group group = null;
+        for (Group component : componentGroups) {
+            if (group == null) {
+                group = component;
+            } else {
+                group.nodes.addAll(component.nodes);
+                group.relationships.addAll(component.relationships);
+            }
+            if (group.size() >= groupSize) {
+                groups.add(group);
+                group = null;
+            }
+        }
+        if (group != null) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static int indexOf(AbstractNode node, HashMap<String, Integer> namedIndex,
+                               IdentityHashMap<AbstractNode, Integer> anonymousIndex) {
+        return node.isNamed() ? namedIndex.get(node.getName()) : anonymousIndex.get(node);
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int i, int j) {
+        int a = find(parents, i);
+        int b = find(parents, j);
+        if (a != b) {
+            // the lower index stays root, so components keep their order
+            if (a < b) {
+                parents[b] = a;
+            } else {
+                parents[a] = b;
+            }
+        }
+    }
+
+    private static boolean isDeadlock(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlockDetectedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Nodes and relationships that are loaded in one transaction. Every
+     * relationship has both of its nodes in the same group.
+     */
+    static final class Group {
+
+        final ArrayList<AbstractNode> nodes = new ArrayList<>();
+        final ArrayList<AbstractRelationship> relationships = new ArrayList<>();
+
+        int size() {
+            return this.nodes.size() + this.relationships.size();
+        }
+
+    }
+
+    private final class LoadTask implements Callable<Void> {
+
+        final private Group group;
+        final private Map<String, Long> namedNodes;
+
+        LoadTask(Group group, Map<String, Long> namedNodes) {
+            this.group = group;
+            this.namedNodes = namedNodes;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            Random random = new Random();
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    this.load();
+                    return null;
+                } catch (RuntimeException e) {
+                    if (!isDeadlock(e) || attempt >= maxAttempts) {
+                        throw e;
+                    }
+                    // back off for a random while, growing with each attempt
+                    long delay = random.nextInt(10 << Math.min(attempt, 10));
+                    logger.debug(String.format("Deadlock loading group of %d, retrying in %dms",
+                            this.group.size(), delay));
+                    Thread.sleep(delay);
+                }
+            }
+        }
+
+        private void load() {
+            // loaders cache labels and types, so are not shared by workers
+            NeoLoader loader = new NeoLoader(database, uniqueNodeCache);
+            HashMap<String, Node> named = new HashMap<>(2 * this.group.nodes.size());
+            IdentityHashMap<AbstractNode, Node> anonymous = new IdentityHashMap<>();
+            try (Transaction tx = database.beginTx()) {
+                for (AbstractNode abstractNode : this.group.nodes) {
+                    Node node = loader.loadNode(abstractNode);
+                    if (abstractNode.isNamed()) {
+                        named.put(abstractNode.getName(), node);
+                    } else {
+                        anonymous.put(abstractNode, node);
+                    }
+                }
+                for (AbstractRelationship rel : this.group.relationships) {
+                    AbstractNode startNode = rel.getStartNode();
+                    AbstractNode endNode = rel.getEndNode();
+                    loader.loadRelationship(rel,
+                            startNode.isNamed() ? named.get(startNode.getName()) : anonymous.get(startNode),
+                            endNode.isNamed() ? named.get(endNode.getName()) : anonymous.get(endNode));
+                }
+                tx.success();
+            }
+            // only once committed, so a retry leaves nothing behind
+            for (Map.Entry<String, Node> entry : named.entrySet()) {
+                this.namedNodes.put(entry.getKey(), entry.getValue().getId());
+            }
+        }
+
+    }
+
+}
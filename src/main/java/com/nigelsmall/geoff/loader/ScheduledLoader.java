@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.Subgraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loader for a stream of subgraphs that loads those that cannot affect
+ * one another concurrently, each in a transaction of its own, and holds
+ * back those that could until the earlier ones they conflict with have
+ * been loaded. The database ends up as if the subgraphs had been loaded
+ * one at a time, in order.
+ *
+ * Subgraphs are compared by their footprints. A subgraph reads the
+ * (label, key, value) of each of its unique nodes, as those are looked
+ * up, and writes the (label, key, value) of every label and property of
+ * every node it loads, as any of those might be looked up later. A
+ * subgraph waits for every earlier one still in flight that writes what
+ * it reads or reads what it writes. Unique relationships need nothing
+ * more: they only merge with a relationship between two nodes that were
+ * found by unique value, and those are in the footprint already.
+ *
+ * If a subgraph fails to load, no more are started and the failure is
+ * thrown once those already running have finished. Subgraphs that have
+ * been committed stay committed.
+ */
+public class ScheduledLoader {
+
+    /**
+     * No more subgraphs are read from the stream while this many are
+     * waiting or loading.
+     */
+    final public static int DEFAULT_MAX_PENDING = 1024;
+
+    final private Logger logger = LoggerFactory.getLogger(ScheduledLoader.class);
+    final private GraphDatabaseService database;
+    final private UniqueNodeCache uniqueNodeCache;
+    private int maxPending = DEFAULT_MAX_PENDING;
+
+    // all below are guarded by this
+    final private HashMap<UniqueValue, List<Task>> readers = new HashMap<>();
+    final private HashMap<UniqueValue, List<Task>> writers = new HashMap<>();
+    private ExecutorService executor;
+    private int pending;
+    private int running;
+    private RuntimeException failure;
+
+    public ScheduledLoader(GraphDatabaseService database) {
+        this(database, null);
+    }
+
+    /**
+     * @param uniqueNodeCache a cache of unique nodes to consult before
+     *                        looking them up in the database, or null
+     */
+    public ScheduledLoader(GraphDatabaseService database, UniqueNodeCache uniqueNodeCache) {
+        this.database = database;
+        this.uniqueNodeCache = uniqueNodeCache;
+    }
+
+    public int getMaxPending() {
+        return this.maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("Maximum pending must be positive");
+        }
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Load a stream of subgraphs on a pool of one worker for each
+     * processor.
+     *
+     * @param subgraphs the subgraphs to load, in document order
+     * @return the number of subgraphs loaded
+     */
+    public long load(Iterable<Subgraph> subgraphs) {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return this.load(subgraphs, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Load a stream of subgraphs on the workers of an executor.
+     *
+     * @param subgraphs the subgraphs to load, in document order
+     * @param executor the executor on which to load subgraphs
+     * @return the number of subgraphs loaded
+     */
+    public long load(Iterable<Subgraph> subgraphs, ExecutorService executor) {
+        synchronized (this) {
+            if (this.executor != null) {
+                throw new IllegalStateException("Already loading");
+            }
+            this.executor = executor;
+            this.failure = null;
+        }
+        logger.info("Loading subgraphs...");
+        long t0 = System.currentTimeMillis();
+        long count = 0;
+        long waited = 0;
+        RuntimeException failure = null;
+        try {
+            // subgraphs are read and their footprints worked out while
+            // not holding the lock, so that workers can finish meanwhile
+            Iterator<Subgraph> iterator = subgraphs.iterator();
+            while (this.awaitRoom() && iterator.hasNext()) {
+                Task task = new Task(iterator.next());
+                synchronized (this) {
+                    if (this.failure != null) {
+                        break;
+                    }
+                    if (this.schedule(task)) {
+                        waited++;
+                    }
+                }
+                count++;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            if (failure != null && this.failure == null) {
+                this.failure = failure;
+            }
+            // nothing is left behind, even if interrupted
+            boolean interrupted = false;
+            while (this.failure == null ? this.pending > 0 : this.running > 0) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (this.failure == null) {
+                        this.failure = new IllegalStateException("Interrupted while loading subgraphs", e);
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            this.readers.clear();
+            this.writers.clear();
+            this.pending = 0;
+            this.executor = null;
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Loaded %d subgraphs, %d held back by conflicts, in %dms", count, waited, t1));
+        return count;
+    }
+
+    /**
+     * Wait until fewer than the maximum number of subgraphs are pending.
+     *
+     * @return false if loading has failed and should stop
+     */
+    private synchronized boolean awaitRoom() {
+        while (this.failure == null && this.pending >= this.maxPending) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.failure = new IllegalStateException("Interrupted while loading subgraphs", e);
+            }
+        }
+        return this.failure == null;
+    }
+
+    /**
+     * Register a task against its footprint and start it, unless it must
+     * wait for others.
+     *
+     * @return true if the task has to wait
+     */
+    private boolean schedule(Task task) {
+        HashSet<Task> dependencies = new HashSet<>();
+        for (UniqueValue value : task.writes) {
+            addAll(dependencies, this.readers.get(value));
+        }
+        for (UniqueValue value : task.reads) {
+            addAll(dependencies, this.writers.get(value));
+        }
+        for (Task dependency : dependencies) {
+            dependency.dependents.add(task);
+        }
+        task.waiting = dependencies.size();
+        register(this.readers, task.reads, task);
+        register(this.writers, task.writes, task);
+        this.pending++;
+        if (task.waiting == 0) {
+            this.start(task);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private void start(Task task) {
+        this.running++;
+        this.executor.execute(task);
+    }
+
+    private synchronized void finish(Task task, RuntimeException failure) {
+        this.running--;
+        this.pending--;
+        unregister(this.readers, task.reads, task);
+        unregister(this.writers, task.writes, task);
+        if (failure != null && this.failure == null) {
+            this.failure = failure;
+        }
+        if (this.failure == null) {
+            for (Task dependent : task.dependents) {
+                if (--dependent.waiting == 0) {
+                    this.start(dependent);
+                }
+            }
+        }
+        this.notifyAll();
+    }
+
+    private static void addAll(Set<Task> tasks, List<Task> more) {
+        if (more != null) {
+            tasks.addAll(more);
+        }
+    }
+
+    private static void register(Map<UniqueValue, List<Task>> tasks, Set<UniqueValue> values, Task task) {
+        for (UniqueValue value : values) {
+            List<Task> list = tasks.get(value);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                tasks.put(value, list);
+            }
+            list.add(task);
+        }
+    }
+
+    private static void unregister(Map<UniqueValue, List<Task>> tasks, Set<UniqueValue> values, Task task) {
+        for (UniqueValue value : values) {
+            List<Task> list = tasks.get(value);
+            if (list != null) {
+                list.remove(task);
+                if (list.isEmpty()) {
+                    tasks.remove(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * A subgraph with its footprint and its place in the schedule. Tasks
+     * are compared by identity.
+     */
+    private final class Task implements Runnable {
+
+        final private Subgraph subgraph;
+        final private HashSet<UniqueValue> reads = new HashSet<>();
+        final private HashSet<UniqueValue> writes = new HashSet<>();
+        final private ArrayList<Task> dependents = new ArrayList<>();
+        private int waiting;
+
+        Task(Subgraph subgraph) {
+            this.subgraph = subgraph;
+            for (AbstractNode node : subgraph.getNodes().values()) {
+                if (node.isUnique() && node.getUniqueValue() != null) {
+                    this.reads.add(new UniqueValue(node.getUniqueLabel(), node.getUniqueKey(),
+                            node.getUniqueValue()));
+                }
+                Set<String> labels = node.getLabels();
+                Map<String, Object> properties = node.getProperties();
+                if (labels != null && properties != null) {
+                    for (String label : labels) {
+                        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                            if (entry.getValue() != null) {
+                                this.writes.add(new UniqueValue(label, entry.getKey(), entry.getValue()));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            RuntimeException failure = null;
+            try {
+                try (Transaction tx = database.beginTx()) {
+                    new NeoLoader(database, uniqueNodeCache).load(this.subgraph);
+                    tx.success();
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                finish(this, failure);
+            }
+        }
+
+    }
+
+}
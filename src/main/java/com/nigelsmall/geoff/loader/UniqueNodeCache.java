@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the ids of unique nodes by label, key and value, kept
+ * in least recently used order, that loaders consult before looking a
+ * unique node up in the database. A cache may be shared by any number
+ * of loaders and threads.
+ *
+ * An id may be cached by a transaction that is later rolled back, and
+ * the id of a rolled back or deleted node may be reused by another. So
+ * loaders check that a cached node still exists and still has the label
+ * and value before using it, and otherwise drop it and look it up as
+ * usual.
+ */
+public class UniqueNodeCache {
+
+    final public static int DEFAULT_CAPACITY = 1000000;
+
+    final private int capacity;
+    final private LinkedHashMap<UniqueValue, Long> ids;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public UniqueNodeCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UniqueNodeCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.ids = new LinkedHashMap<UniqueValue, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UniqueValue, Long> eldest) {
+                if (size() > UniqueNodeCache.this.capacity) {
+                    evictions++;
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized int size() {
+        return this.ids.size();
+    }
+
+    /**
+     * The number of lookups that found a node still valid, each of which
+     * saved a lookup in the database.
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * The number of lookups that found nothing or a node no longer valid.
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * The number of ids dropped to stay within capacity.
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized void clear() {
+        this.ids.clear();
+    }
+
+    /**
+     * Fill the cache with every node of a label that has a value for a
+     * key, reading them in a transaction of its own, until the cache is
+     * full. Where nodes share a value, the first found is cached.
+     *
+     * @return the number of nodes added
+     */
+    public int prewarm(GraphDatabaseService database, String label, String key) {
+        int count = 0;
+        try (Transaction tx = database.beginTx()) {
+            try (ResourceIterator<Node> nodes = GlobalGraphOperations.at(database)
+                    .getAllNodesWithLabel(DynamicLabel.label(label)).iterator()) {
+                while (nodes.hasNext() && this.size() < this.capacity) {
+                    Node node = nodes.next();
+                    if (node.hasProperty(key)) {
+                        if (this.putIfAbsent(new UniqueValue(label, key, node.getProperty(key)), node.getId())) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+        return count;
+    }
+
+    /**
+     * The cached id for a label, key and value, or null if there is none.
+     * Whether the id is still valid is for the caller to check and to
+     * report as a hit or miss.
+     */
+    synchronized Long get(UniqueValue value) {
+        return this.ids.get(value);
+    }
+
+    synchronized void hit() {
+        this.hits++;
+    }
+
+    synchronized void miss() {
+        this.misses++;
+    }
+
+    synchronized void put(UniqueValue value, long id) {
+        this.ids.put(value, id);
+    }
+
+    private synchronized boolean putIfAbsent(UniqueValue value, long id) {
+        if (this.ids.containsKey(value)) {
+            return false;
+        }
+        this.ids.put(value, id);
+        return true;
+    }
+
+    synchronized void remove(UniqueValue value) {
+        this.ids.remove(value);
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.loader;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A label, key and value by which a unique node is found. Array values
+ * are compared by content.
+ */
+final class UniqueValue {
+
+    final private String label;
+    final private String key;
+    final private Object value;
+
+    UniqueValue(String label, String key, Object value) {
+        this.label = label;
+        this.key = key;
+        this.value = value;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 31 * this.label.hashCode() + this.key.hashCode();
+        return 31 * hash + Arrays.deepHashCode(new Object[] {this.value});
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof UniqueValue)) {
+            return false;
+        }
+        UniqueValue that = (UniqueValue) other;
+        return this.label.equals(that.label) && this.key.equals(that.key)
+                && Objects.deepEquals(this.value, that.value);
+    }
+
+}
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Lexer over a large window of UTF-8 bytes. All Geoff syntax is ASCII so
+ * bytes are only decoded into Strings at the end of each name, string or
+ * comment; non-ASCII characters elsewhere are decoded just far enough to
+ * classify them.
+ */
+final class ByteLexer extends GeoffLexer {
+
+    /**
+     * Where the bytes in the window come from.
+     */
+    private static abstract class Source {
+
+        abstract int read(byte[] b, int off, int len) throws IOException;
+
+        void close() throws IOException {
+            // nothing to close
+        }
+
+    }
+
+    final private static class StreamSource extends Source {
+
+        final private InputStream stream;
+
+        StreamSource(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        int read(byte[] b, int off, int len) throws IOException {
+            return this.stream.read(b, off, len);
+        }
+
+        @Override
+        void close() throws IOException {
+            this.stream.close();
+        }
+
+    }
+
+    final private static class ChannelSource extends Source {
+
+        final private ReadableByteChannel channel;
+
+        ChannelSource(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        int read(byte[] b, int off, int len) throws IOException {
+            return this.channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        void close() throws IOException {
+            this.channel.close();
+        }
+
+    }
+
+    final private static class BufferSource extends Source {
+
+        final private ByteBuffer buffer;
+
+        BufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        int read(byte[] b, int off, int len) {
+            int n = Math.min(len, this.buffer.remaining());
+            if (n == 0) {
+                return -1;
+            }
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+    }
+
+    final private Source source;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private int mark;
+    private boolean exhausted;
+    private int lineStart;
+    private int lineStartColumn;
+
+    ByteLexer(InputStream stream) {
+        this(new StreamSource(stream), DEFAULT_BUFFER_SIZE);
+    }
+
+    ByteLexer(ReadableByteChannel channel) {
+        this(new ChannelSource(channel), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Heap buffers are scanned in place; direct buffers are copied into
+     * the window in bulk as they are consumed.
+     */
+    ByteLexer(ByteBuffer buffer) {
+        this.mark = -1;
+        if (buffer.hasArray()) {
+            this.source = null;
+            this.buffer = buffer.array();
+            this.position = buffer.arrayOffset() + buffer.position();
+            this.limit = buffer.arrayOffset() + buffer.limit();
+            this.lineStart = this.position;
+            this.exhausted = true;
+            buffer.position(buffer.limit());
+        } else {
+            this.source = new BufferSource(buffer);
+            this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * Lex a buffer that starts partway through a larger document, so that
+     * errors are reported at their position within the whole document.
+     */
+    ByteLexer(ByteBuffer buffer, int lineNo, int column) {
+        this(buffer);
+        this.lineNo = lineNo;
+        this.lineStartColumn = column;
+    }
+
+    ByteLexer(InputStream stream, int bufferSize) {
+        this(new StreamSource(stream), bufferSize);
+    }
+
+    private ByteLexer(Source source, int bufferSize) {
+        this.source = source;
+        this.buffer = new byte[bufferSize];
+        this.mark = -1;
+    }
+
+    @Override
+    int getColumn() {
+        return this.lineStartColumn + this.countChars(this.lineStart, this.position);
+    }
+
+    /**
+     * Counts the UTF-16 chars encoded by a range of the window.
+     */
+    private int countChars(int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            count += Utf8.charCount(this.buffer[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Read more data into the window, discarding everything before the
+     * current position (or the mark, if one is set). Returns false if no
+     * more data is available.
+     */
+    private boolean fill() throws IOException {
+        if (this.exhausted) {
+            return false;
+        }
+        int keep = this.mark >= 0 ? this.mark : this.position;
+        if (keep > 0) {
+            if (this.lineStart < keep) {
+                this.lineStartColumn += this.countChars(this.lineStart, keep);
+                this.lineStart = keep;
+            }
+            System.arraycopy(this.buffer, keep, this.buffer, 0, this.limit - keep);
+            this.limit -= keep;
+            this.position -= keep;
+            this.lineStart -= keep;
+            if (this.mark >= 0) {
+                this.mark -= keep;
+            }
+        }
+        if (this.limit == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        }
+        int n;
+        do {
+            n = this.source.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        } while (n == 0);
+        if (n < 0) {
+            this.exhausted = true;
+            return false;
+        }
+        this.limit += n;
+        return true;
+    }
+
+    /**
+     * Makes sure that at least n bytes are available from the current
+     * position, if the data allows.
+     */
+    private int available(int n) throws IOException {
+        while (this.limit - this.position < n && this.fill()) {
+            // keep filling
+        }
+        return this.limit - this.position;
+    }
+
+    /**
+     * Decodes the non-ASCII character at the current position far enough
+     * to classify it. Characters outside the BMP are reported as their
+     * high surrogate, just as a char-based reader would see them.
+     *
+     * @return the decoded char in the low 16 bits and the number of bytes
+     *         it occupies in the high bits
+     */
+    private int decode() throws IOException {
+        int lead = this.buffer[this.position] & 0xFF;
+        int length = Utf8.sequenceLength(lead);
+        if (length == 1) {
+            return (1 << 16) | Utf8.MALFORMED;
+        }
+        if (this.available(length) < length) {
+            return (1 << 16) | Utf8.MALFORMED;
+        }
+        int cp = lead & (0xFF >> (length + 1));
+        for (int i = 1; i < length; i++) {
+            int b = this.buffer[this.position + i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                return (1 << 16) | Utf8.MALFORMED;
+            }
+            cp = (cp << 6) | (b & 0x3F);
+        }
+        if (cp > 0xFFFF) {
+            return (length << 16) | Character.highSurrogate(cp);
+        } else {
+            return (length << 16) | cp;
+        }
+    }
+
+    @Override
+    int peek() throws IOException {
+        if (this.position < this.limit || this.fill()) {
+            int b = this.buffer[this.position];
+            if (b >= 0) {
+                return b;
+            } else {
+                return this.decode() & 0xFFFF;
+            }
+        } else {
+            return END_OF_DATA;
+        }
+    }
+
+    @Override
+    boolean hasMore() throws IOException {
+        return this.position < this.limit || this.fill();
+    }
+
+    @Override
+    boolean nextCharEquals(char ch) throws IOException {
+        return (this.position < this.limit || this.fill()) && this.buffer[this.position] == ch;
+    }
+
+    @Override
+    void readChar(char ch) throws IOException {
+        if (this.nextCharEquals(ch)) {
+            this.position++;
+        } else {
+            throw error("Unexpected character");
+        }
+    }
+
+    @Override
+    void skipWhitespace() throws IOException {
+        do {
+            while (this.position < this.limit) {
+                int b = this.buffer[this.position];
+                if (b == '\n') {
+                    this.position++;
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                    this.lineStartColumn = 0;
+                } else if (b >= 0) {
+                    if (isWhitespace((char) b)) {
+                        this.position++;
+                    } else {
+                        return;
+                    }
+                } else {
+                    int decoded = this.decode();
+                    if (isWhitespace((char) decoded)) {
+                        this.position += decoded >>> 16;
+                    } else {
+                        return;
+                    }
+                }
+            }
+        } while (this.fill());
+    }
+
+    @Override
+    String readWhitespace() throws IOException {
+        this.mark = this.position;
+        this.skipWhitespace();
+        return this.release();
+    }
+
+    private void skipDigits() throws IOException {
+        do {
+            while (this.position < this.limit) {
+                int b = this.buffer[this.position];
+                if (b >= '0' && b <= '9') {
+                    this.position++;
+                } else if (b < 0) {
+                    int decoded = this.decode();
+                    if (Character.isDigit((char) decoded)) {
+                        this.position += decoded >>> 16;
+                    } else {
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        } while (this.fill());
+    }
+
+    @Override
+    String readName() throws IOException {
+        if (this.nextCharEquals('"')) {
+            return this.readString(this.namePool);
+        }
+        this.mark = this.position;
+        do {
+            while (this.position < this.limit) {
+                int b = this.buffer[this.position];
+                if (b >= 0) {
+                    if (isNameChar((char) b)) {
+                        this.position++;
+                    } else {
+                        return this.release(this.namePool);
+                    }
+                } else {
+                    int decoded = this.decode();
+                    if (Character.isLetterOrDigit((char) decoded)) {
+                        this.position += decoded >>> 16;
+                    } else {
+                        return this.release(this.namePool);
+                    }
+                }
+            }
+        } while (this.fill());
+        return this.release(this.namePool);
+    }
+
+    /**
+     * Strings without escapes are decoded straight out of the window;
+     * others are unescaped through a reusable buffer. Multi-byte sequences never contain ASCII bytes so they can be
+     * skipped over without decoding.
+     */
+    @Override
+    String readString(StringPool pool) throws IOException {
+        if (!this.nextCharEquals('"')) {
+            throw error("Unexpected character");
+        }
+        this.mark = this.position;
+        this.position++;
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                int b = this.buffer[this.position];
+                if (b == '"') {
+                    this.position++;
+                    if (escaped) {
+                        int start = this.mark + 1;
+                        this.mark = -1;
+                        return this.unescape(start, this.position - 1, pool);
+                    } else {
+                        String s = this.newString(this.buffer, this.mark + 1, this.position - 1, pool);
+                        this.mark = -1;
+                        return s;
+                    }
+                } else if (b == '\\') {
+                    escaped = true;
+                    this.position += 2;
+                } else if (b >= 0 && b < ' ') {
+                    throw error("Unable to parse JSON string");
+                } else {
+                    this.position++;
+                }
+            }
+        } while (this.fill());
+        throw error("Unable to parse JSON string");
+    }
+
+    @Override
+    Number readNumber() throws IOException {
+        this.mark = this.position;
+        boolean isReal = false;
+        if (this.nextCharEquals('-')) {
+            this.position++;
+        }
+        this.skipDigits();
+        if (this.nextCharEquals('.')) {
+            isReal = true;
+            this.position++;
+            this.skipDigits();
+        }
+        int ch = this.peek();
+        if (ch == 'E' || ch == 'e') {
+            isReal = true;
+            this.position++;
+            ch = this.peek();
+            if (ch == '+' || ch == '-') {
+                this.position++;
+            }
+            this.skipDigits();
+        }
+        Number n = Json.parseNumber(this.buffer, this.mark, this.position, this.chars(32));
+        if (n != null) {
+            this.mark = -1;
+            return n;
+        }
+        return parseNumber(this.release(), isReal);
+    }
+
+    @Override
+    String readRawPropertyMap() throws IOException {
+        if (!this.nextCharEquals('{')) {
+            throw error("Unexpected character");
+        }
+        this.mark = this.position;
+        this.scanNested();
+        return this.release();
+    }
+
+    @Override
+    void skipNested() throws IOException {
+        int ch = this.peek();
+        if (ch != '{' && ch != '[') {
+            throw error("Unexpected character");
+        }
+        this.scanNested();
+    }
+
+    /**
+     * Moves past the end of the property map or array that starts at the
+     * current position.
+     */
+    private void scanNested() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                byte ch = this.buffer[this.position++];
+                if (ch == '\n') {
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                    this.lineStartColumn = 0;
+                }
+                if (escaped) {
+                    escaped = false;
+                } else if (inString) {
+                    if (ch == '\\') {
+                        escaped = true;
+                    } else if (ch == '"') {
+                        inString = false;
+                    }
+                } else if (ch == '"') {
+                    inString = true;
+                } else if (ch == '{' || ch == '[') {
+                    depth++;
+                } else if (ch == '}' || ch == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+        } while (this.fill());
+        throw error("Unterminated property map");
+    }
+
+    @Override
+    void skipString() throws IOException {
+        this.readChar('"');
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                byte ch = this.buffer[this.position++];
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    return;
+                } else if (ch >= 0 && ch < ' ') {
+                    this.position--;
+                    throw error("Unable to parse JSON string");
+                }
+            }
+        } while (this.fill());
+        throw error("Unable to parse JSON string");
+    }
+
+    @Override
+    String readComment() throws IOException {
+        this.readChar('/');
+        this.readChar('*');
+        this.mark = this.position;
+        this.scanComment();
+        int start = this.mark;
+        int end = this.position - 2;
+        this.mark = -1;
+        while (start < end && (this.buffer[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (this.buffer[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return new String(this.buffer, start, end - start, Utf8.UTF_8);
+    }
+
+    @Override
+    void skipComment() throws IOException {
+        this.readChar('/');
+        this.readChar('*');
+        this.scanComment();
+    }
+
+    /**
+     * Moves past the end of a comment whose opening delimiter has been
+     * read.
+     */
+    private void scanComment() throws IOException {
+        boolean star = false;
+        do {
+            while (this.position < this.limit) {
+                byte ch = this.buffer[this.position++];
+                if (ch == '/' && star) {
+                    return;
+                }
+                star = ch == '*';
+                if (ch == '\n') {
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                    this.lineStartColumn = 0;
+                }
+            }
+        } while (this.fill());
+        this.mark = -1;
+        throw error("Unterminated comment");
+    }
+
+    private String unescape(int start, int end, StringPool pool) throws GeoffReaderException {
+        char[] chars = this.chars(end - start);
+        int n = Json.unescape(this.buffer, start, end, chars);
+        if (n < 0) {
+            throw error("Unable to parse JSON string");
+        }
+        return newString(chars, 0, n, pool);
+    }
+
+    @Override
+    void close() throws IOException {
+        if (this.source != null) {
+            this.source.close();
+        }
+    }
+
+    /**
+     * Decodes the bytes between the mark and the current position, and
+     * clears the mark.
+     */
+    private String release() {
+        return this.release(null);
+    }
+
+    private String release(StringPool pool) {
+        String s = this.newString(this.buffer, this.mark, this.position, pool);
+        this.mark = -1;
+        return s;
+    }
+
+}
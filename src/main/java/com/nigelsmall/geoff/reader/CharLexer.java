@@ -0,0 +1,408 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Lexer over a large char[] window, refilled from a Reader. A token that
+ * straddles a refill is preserved by marking its start position.
+ */
+final class CharLexer extends GeoffLexer {
+
+    final private Reader reader;
+    private char[] buffer;
+    private int position;
+    private int limit;
+    private int mark;
+    private boolean exhausted;
+    private int lineStart;
+
+    CharLexer(Reader reader) {
+        this(reader, DEFAULT_BUFFER_SIZE);
+    }
+
+    CharLexer(Reader reader, int bufferSize) {
+        this.reader = reader;
+        this.buffer = new char[bufferSize];
+        this.mark = -1;
+    }
+
+    /**
+     * Lex a whole string, held in a window of exactly its own size.
+     */
+    CharLexer(String string) {
+        this.reader = null;
+        this.buffer = string.toCharArray();
+        this.limit = this.buffer.length;
+        this.mark = -1;
+        this.exhausted = true;
+    }
+
+    @Override
+    int getColumn() {
+        return this.position - this.lineStart;
+    }
+
+    /**
+     * Read more data into the window, discarding everything before the
+     * current position (or the mark, if one is set). Returns false if no
+     * more data is available.
+     */
+    private boolean fill() throws IOException {
+        if (this.exhausted) {
+            return false;
+        }
+        int keep = this.mark >= 0 ? this.mark : this.position;
+        if (keep > 0) {
+            System.arraycopy(this.buffer, keep, this.buffer, 0, this.limit - keep);
+            this.limit -= keep;
+            this.position -= keep;
+            this.lineStart -= keep;
+            if (this.mark >= 0) {
+                this.mark -= keep;
+            }
+        }
+        if (this.limit == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        }
+        int n;
+        do {
+            n = this.reader.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        } while (n == 0);
+        if (n < 0) {
+            this.exhausted = true;
+            return false;
+        }
+        this.limit += n;
+        return true;
+    }
+
+    @Override
+    int peek() throws IOException {
+        if (this.position < this.limit || this.fill()) {
+            return this.buffer[this.position];
+        } else {
+            return END_OF_DATA;
+        }
+    }
+
+    @Override
+    boolean hasMore() throws IOException {
+        return this.position < this.limit || this.fill();
+    }
+
+    @Override
+    boolean nextCharEquals(char ch) throws IOException {
+        return (this.position < this.limit || this.fill()) && this.buffer[this.position] == ch;
+    }
+
+    @Override
+    void readChar(char ch) throws IOException {
+        if (this.nextCharEquals(ch)) {
+            this.position++;
+        } else {
+            throw error("Unexpected character");
+        }
+    }
+
+    @Override
+    void skipWhitespace() throws IOException {
+        do {
+            while (this.position < this.limit) {
+                char ch = this.buffer[this.position];
+                if (ch == '\n') {
+                    this.position++;
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                } else if (isWhitespace(ch)) {
+                    this.position++;
+                } else {
+                    return;
+                }
+            }
+        } while (this.fill());
+    }
+
+    @Override
+    String readWhitespace() throws IOException {
+        this.mark = this.position;
+        this.skipWhitespace();
+        String s = new String(this.buffer, this.mark, this.position - this.mark);
+        this.mark = -1;
+        return s;
+    }
+
+    private void skipDigits() throws IOException {
+        do {
+            while (this.position < this.limit) {
+                if (isDigit(this.buffer[this.position])) {
+                    this.position++;
+                } else {
+                    return;
+                }
+            }
+        } while (this.fill());
+    }
+
+    @Override
+    String readName() throws IOException {
+        if (this.nextCharEquals('"')) {
+            return this.readString(this.namePool);
+        }
+        this.mark = this.position;
+        do {
+            while (this.position < this.limit) {
+                if (isNameChar(this.buffer[this.position])) {
+                    this.position++;
+                } else {
+                    return this.release(this.namePool);
+                }
+            }
+        } while (this.fill());
+        return this.release(this.namePool);
+    }
+
+    /**
+     * Strings without escapes are copied straight out of the window;
+     * others are unescaped through a reusable buffer.
+     */
+    @Override
+    String readString(StringPool pool) throws IOException {
+        if (!this.nextCharEquals('"')) {
+            throw error("Unexpected character");
+        }
+        this.mark = this.position;
+        this.position++;
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                char ch = this.buffer[this.position];
+                if (ch == '"') {
+                    this.position++;
+                    if (escaped) {
+                        int start = this.mark + 1;
+                        this.mark = -1;
+                        return this.unescape(start, this.position - 1, pool);
+                    } else {
+                        String s = newString(this.buffer, this.mark + 1, this.position - this.mark - 2, pool);
+                        this.mark = -1;
+                        return s;
+                    }
+                } else if (ch == '\\') {
+                    escaped = true;
+                    this.position += 2;
+                } else if (ch < ' ') {
+                    throw error("Unable to parse JSON string");
+                } else {
+                    this.position++;
+                }
+            }
+        } while (this.fill());
+        throw error("Unable to parse JSON string");
+    }
+
+    @Override
+    Number readNumber() throws IOException {
+        this.mark = this.position;
+        boolean isReal = false;
+        if (this.nextCharEquals('-')) {
+            this.position++;
+        }
+        this.skipDigits();
+        if (this.nextCharEquals('.')) {
+            isReal = true;
+            this.position++;
+            this.skipDigits();
+        }
+        int ch = this.peek();
+        if (ch == 'E' || ch == 'e') {
+            isReal = true;
+            this.position++;
+            ch = this.peek();
+            if (ch == '+' || ch == '-') {
+                this.position++;
+            }
+            this.skipDigits();
+        }
+        Number n = Json.parseNumber(this.buffer, this.mark, this.position);
+        if (n != null) {
+            this.mark = -1;
+            return n;
+        }
+        return parseNumber(this.release(), isReal);
+    }
+
+    @Override
+    String readRawPropertyMap() throws IOException {
+        if (!this.nextCharEquals('{')) {
+            throw error("Unexpected character");
+        }
+        this.mark = this.position;
+        this.scanNested();
+        return this.release();
+    }
+
+    @Override
+    void skipNested() throws IOException {
+        int ch = this.peek();
+        if (ch != '{' && ch != '[') {
+            throw error("Unexpected character");
+        }
+        this.scanNested();
+    }
+
+    /**
+     * Moves past the end of the property map or array that starts at the
+     * current position.
+     */
+    private void scanNested() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                char ch = this.buffer[this.position++];
+                if (ch == '\n') {
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                }
+                if (escaped) {
+                    escaped = false;
+                } else if (inString) {
+                    if (ch == '\\') {
+                        escaped = true;
+                    } else if (ch == '"') {
+                        inString = false;
+                    }
+                } else if (ch == '"') {
+                    inString = true;
+                } else if (ch == '{' || ch == '[') {
+                    depth++;
+                } else if (ch == '}' || ch == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+        } while (this.fill());
+        throw error("Unterminated property map");
+    }
+
+    @Override
+    void skipString() throws IOException {
+        this.readChar('"');
+        boolean escaped = false;
+        do {
+            while (this.position < this.limit) {
+                char ch = this.buffer[this.position++];
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    return;
+                } else if (ch < ' ') {
+                    this.position--;
+                    throw error("Unable to parse JSON string");
+                }
+            }
+        } while (this.fill());
+        throw error("Unable to parse JSON string");
+    }
+
+    @Override
+    String readComment() throws IOException {
+        this.readChar('/');
+        this.readChar('*');
+        this.mark = this.position;
+        this.scanComment();
+        int start = this.mark;
+        int end = this.position - 2;
+        this.mark = -1;
+        while (start < end && this.buffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && this.buffer[end - 1] <= ' ') {
+            end--;
+        }
+        return new String(this.buffer, start, end - start);
+    }
+
+    @Override
+    void skipComment() throws IOException {
+        this.readChar('/');
+        this.readChar('*');
+        this.scanComment();
+    }
+
+    /**
+     * Moves past the end of a comment whose opening delimiter has been
+     * read.
+     */
+    private void scanComment() throws IOException {
+        boolean star = false;
+        do {
+            while (this.position < this.limit) {
+                char ch = this.buffer[this.position++];
+                if (ch == '/' && star) {
+                    return;
+                }
+                star = ch == '*';
+                if (ch == '\n') {
+                    this.lineNo++;
+                    this.lineStart = this.position;
+                }
+            }
+        } while (this.fill());
+        this.mark = -1;
+        throw error("Unterminated comment");
+    }
+
+    private String unescape(int start, int end, StringPool pool) throws GeoffReaderException {
+        char[] chars = this.chars(end - start);
+        int n = Json.unescape(this.buffer, start, end, chars);
+        if (n < 0) {
+            throw error("Unable to parse JSON string");
+        }
+        return newString(chars, 0, n, pool);
+    }
+
+    @Override
+    void close() throws IOException {
+        if (this.reader != null) {
+            this.reader.close();
+        }
+    }
+
+    /**
+     * Returns the text between the mark and the current position, and
+     * clears the mark.
+     */
+    private String release() {
+        return this.release(null);
+    }
+
+    private String release(StringPool pool) {
+        String s = newString(this.buffer, this.mark, this.position - this.mark, pool);
+        this.mark = -1;
+        return s;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.CompactSubgraph;
+
+/**
+ * Handler that gathers elements into a CompactSubgraph. As with
+ * SubgraphBuilder, boundaries are ignored.
+ */
+public class CompactSubgraphBuilder implements GeoffHandler {
+
+    final private CompactSubgraph subgraph;
+
+    public CompactSubgraphBuilder() {
+        this(new CompactSubgraph());
+    }
+
+    public CompactSubgraphBuilder(CompactSubgraph subgraph) {
+        this.subgraph = subgraph;
+    }
+
+    public CompactSubgraph getSubgraph() {
+        return this.subgraph;
+    }
+
+    @Override
+    public void onNode(AbstractNode node) {
+        this.subgraph.mergeNode(node);
+    }
+
+    @Override
+    public void onRelationship(AbstractRelationship relationship) {
+        this.subgraph.addRelationship(relationship);
+    }
+
+    @Override
+    public void onHook(String label, String key, AbstractNode node) {
+        this.subgraph.mergeNode(node, label, key);
+    }
+
+    @Override
+    public void onComment(String comment) {
+        this.subgraph.addComment(comment);
+    }
+
+    @Override
+    public void onBoundary() {
+        // a subgraph ends here but there is nothing to finish off
+    }
+
+}
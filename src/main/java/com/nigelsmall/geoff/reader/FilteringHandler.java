@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Passes on only the elements that a GeoffFilter keeps. A named node
+ * that is not kept is held back until the end of its subgraph, in case
+ * a kept relationship turns out to need it, and is then passed on ahead
+ * of that relationship so that elements arrive in document order.
+ */
+final class FilteringHandler implements GeoffHandler {
+
+    /**
+     * A node or hook held back.
+     */
+    final private static class Deferred {
+
+        final private String label;
+        final private String key;
+        final private AbstractNode node;
+
+        Deferred(String label, String key, AbstractNode node) {
+            this.label = label;
+            this.key = key;
+            this.node = node;
+        }
+
+    }
+
+    final private GeoffFilter filter;
+    final private GeoffHandler handler;
+    final private HashSet<String> keptNames = new HashSet<>();
+    final private HashMap<String, List<Deferred>> deferred = new HashMap<>();
+
+    FilteringHandler(GeoffFilter filter, GeoffHandler handler) {
+        this.filter = filter;
+        this.handler = handler;
+    }
+
+    /**
+     * Keep a node from now on, passing on anything held back for it.
+     */
+    private void keep(AbstractNode node) throws IOException {
+        if (node.isNamed() && this.keptNames.add(node.getName())) {
+            List<Deferred> held = this.deferred.remove(node.getName());
+            if (held != null) {
+                for (Deferred d : held) {
+                    if (d.label == null) {
+                        this.handler.onNode(d.node);
+                    } else {
+                        this.handler.onHook(d.label, d.key, d.node);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Either keep a node, returning true, or hold it back.
+     */
+    private boolean keepOrDefer(String label, String key, AbstractNode node) throws IOException {
+        boolean accepted = this.filter.acceptsLabels(node.getLabels())
+                || (label != null && this.filter.acceptsLabels(Collections.singleton(label)));
+        if (accepted || (node.isNamed() && this.keptNames.contains(node.getName()))) {
+            this.keep(node);
+            return true;
+        }
+        if (node.isNamed()) {
+            List<Deferred> held = this.deferred.get(node.getName());
+            if (held == null) {
+                held = new ArrayList<>();
+                this.deferred.put(node.getName(), held);
+            }
+            held.add(new Deferred(label, key, node));
+        }
+        return false;
+    }
+
+    @Override
+    public void onNode(AbstractNode node) throws IOException {
+        if (this.keepOrDefer(null, null, node)) {
+            this.handler.onNode(node);
+        }
+    }
+
+    @Override
+    public void onRelationship(AbstractRelationship relationship) throws IOException {
+        if (this.filter.acceptsType(relationship.getType())) {
+            this.keep(relationship.getStartNode());
+            this.keep(relationship.getEndNode());
+            this.handler.onRelationship(relationship);
+        } else {
+            this.onNode(relationship.getStartNode());
+            this.onNode(relationship.getEndNode());
+        }
+    }
+
+    @Override
+    public void onHook(String label, String key, AbstractNode node) throws IOException {
+        if (this.keepOrDefer(label, key, node)) {
+            this.handler.onHook(label, key, node);
+        }
+    }
+
+    @Override
+    public void onComment(String comment) throws IOException {
+        if (this.filter.getComments()) {
+            this.handler.onComment(comment);
+        }
+    }
+
+    @Override
+    public void onBoundary() throws IOException {
+        this.keptNames.clear();
+        this.deferred.clear();
+        this.handler.onBoundary();
+    }
+
+}
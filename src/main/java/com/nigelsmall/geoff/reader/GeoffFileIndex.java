@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The byte offset, line and column at which each subgraph of a Geoff file
+ * starts, built in a single scan of the file. The index can be saved
+ * alongside the file and is rebuilt automatically if the file changes.
+ */
+public class GeoffFileIndex {
+
+    final public static String SUFFIX = ".idx";
+
+    final private static int MAGIC = 0x47656f66;  // "Geof"
+    final private static int VERSION = 1;
+
+    final private long fileLength;
+    final private long lastModified;
+    private long[] offsets;
+    private int[] lineNos;
+    private int[] columns;
+    private int count;
+
+    private GeoffFileIndex(long fileLength, long lastModified, int capacity) {
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.offsets = new long[capacity];
+        this.lineNos = new int[capacity];
+        this.columns = new int[capacity];
+    }
+
+    /**
+     * Load the saved index for a file if it is up to date, otherwise
+     * build a new one and save it.
+     */
+    public static GeoffFileIndex open(File file) throws IOException {
+        File indexFile = new File(file.getPath() + SUFFIX);
+        if (indexFile.exists()) {
+            GeoffFileIndex index = read(indexFile);
+            if (index != null && index.fileLength == file.length() && index.lastModified == file.lastModified()) {
+                return index;
+            }
+        }
+        GeoffFileIndex index = build(file);
+        index.write(indexFile);
+        return index;
+    }
+
+    /**
+     * Scan a file for subgraph boundaries, ignoring anything within
+     * strings and comments.
+     */
+    public static GeoffFileIndex build(File file) throws IOException {
+        GeoffFileIndex index = new GeoffFileIndex(file.length(), file.lastModified(), 16);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            new Scanner(index).scan(channel);
+        }
+        return index;
+    }
+
+    /**
+     * Read a saved index, or return null if it is not one this version
+     * understands.
+     */
+    public static GeoffFileIndex read(File indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long fileLength = in.readLong();
+            long lastModified = in.readLong();
+            int count = in.readInt();
+            GeoffFileIndex index = new GeoffFileIndex(fileLength, lastModified, Math.max(count, 1));
+            for (int i = 0; i < count; i++) {
+                index.add(in.readLong(), in.readInt(), in.readInt());
+            }
+            return index;
+        }
+    }
+
+    public void write(File indexFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.fileLength);
+            out.writeLong(this.lastModified);
+            out.writeInt(this.count);
+            for (int i = 0; i < this.count; i++) {
+                out.writeLong(this.offsets[i]);
+                out.writeInt(this.lineNos[i]);
+                out.writeInt(this.columns[i]);
+            }
+        }
+    }
+
+    private void add(long offset, int lineNo, int column) {
+        if (this.count == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, 2 * this.count);
+            this.lineNos = Arrays.copyOf(this.lineNos, 2 * this.count);
+            this.columns = Arrays.copyOf(this.columns, 2 * this.count);
+        }
+        this.offsets[this.count] = offset;
+        this.lineNos[this.count] = lineNo;
+        this.columns[this.count] = column;
+        this.count++;
+    }
+
+    /**
+     * The number of subgraphs in the file.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public long getFileLength() {
+        return this.fileLength;
+    }
+
+    public long getOffset(int subgraph) {
+        return this.offsets[subgraph];
+    }
+
+    /**
+     * The offset just past the end of a subgraph, including its boundary.
+     */
+    public long getEndOffset(int subgraph) {
+        return subgraph + 1 < this.count ? this.offsets[subgraph + 1] : this.fileLength;
+    }
+
+    public int getLineNo(int subgraph) {
+        return this.lineNos[subgraph];
+    }
+
+    public int getColumn(int subgraph) {
+        return this.columns[subgraph];
+    }
+
+    /**
+     * Byte-at-a-time state machine that follows strings and comments, and
+     * records the start of each subgraph. A subgraph starts just after
+     * each boundary, unless only whitespace follows it.
+     */
+    static class Scanner {
+
+        final private GeoffFileIndex index;
+        private boolean inString;
+        private boolean escapeNext;
+        private boolean inComment;
+        private boolean commentStar;
+        private boolean slash;
+        private int tildes;
+        private boolean pending;
+        private long pendingOffset;
+        private int pendingLineNo;
+        private int pendingColumn;
+        private int lineNo;
+        private int column;
+
+        Scanner(GeoffFileIndex index) {
+            this(index, 0, 0);
+        }
+
+        /**
+         * Scan from the start of a subgraph at the given line and column.
+         */
+        Scanner(GeoffFileIndex index, int lineNo, int column) {
+            this.index = index;
+            this.lineNo = lineNo;
+            this.column = column;
+        }
+
+        void scan(FileChannel channel) throws IOException {
+            if (this.index.fileLength > 0) {
+                this.index.add(0, 0, 0);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            byte[] bytes = buffer.array();
+            long offset = 0;
+            int n;
+            while ((n = channel.read(buffer)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    this.next(bytes[i], offset + i);
+                }
+                offset += n;
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Called at the first byte after a boundary, which is also the
+         * first byte after the end of the subgraph it ends.
+         */
+        void onBoundary(long offset, int lineNo, int column) {
+            this.pending = true;
+            this.pendingOffset = offset;
+            this.pendingLineNo = lineNo;
+            this.pendingColumn = column;
+        }
+
+        void next(byte b, long offset) {
+            if (this.inComment) {
+                if (b == '/' && this.commentStar) {
+                    this.inComment = false;
+                }
+                this.commentStar = b == '*';
+            } else if (this.inString) {
+                if (this.escapeNext) {
+                    this.escapeNext = false;
+                } else if (b == '\\') {
+                    this.escapeNext = true;
+                } else if (b == '"') {
+                    this.inString = false;
+                }
+            } else {
+                if (b == '~') {
+                    this.tildes++;
+                } else {
+                    if (this.tildes >= 4) {
+                        this.onBoundary(offset, this.lineNo, this.column);
+                    }
+                    this.tildes = 0;
+                    if (this.pending && !(b >= 0 && GeoffLexer.isWhitespace((char) b))) {
+                        this.index.add(this.pendingOffset, this.pendingLineNo, this.pendingColumn);
+                        this.pending = false;
+                    }
+                }
+                if (b == '"') {
+                    this.inString = true;
+                } else if (b == '*' && this.slash) {
+                    this.inComment = true;
+                    this.commentStar = false;
+                }
+                this.slash = b == '/' && !this.inComment;
+            }
+            if (b == '\n') {
+                this.lineNo++;
+                this.column = 0;
+            } else {
+                this.column += Utf8.charCount(b);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the subgraphs of a Geoff file. Each subgraph is read
+ * from a memory-mapped region of the file found from a GeoffFileIndex,
+ * without reading anything before it. Errors are reported at their line
+ * and column within the whole file.
+ */
+public class GeoffFileReader implements Closeable {
+
+    final private RandomAccessFile file;
+    final private FileChannel channel;
+    final private GeoffFileIndex index;
+    final private StringPool namePool = new StringPool();
+
+    /**
+     * Open a file, using its saved index if that is up to date and
+     * otherwise building and saving a new one.
+     */
+    public GeoffFileReader(File file) throws IOException {
+        this(file, GeoffFileIndex.open(file));
+    }
+
+    public GeoffFileReader(File file, GeoffFileIndex index) throws IOException {
+        if (index.getFileLength() != file.length()) {
+            throw new IOException("Index does not match " + file);
+        }
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.index = index;
+    }
+
+    public GeoffFileIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * The number of subgraphs in the file.
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Read the nth subgraph of the file, counting from zero.
+     */
+    public Subgraph readSubgraph(int n) throws IOException {
+        if (n < 0 || n >= this.index.size()) {
+            throw new IndexOutOfBoundsException("No subgraph " + n);
+        }
+        long start = this.index.getOffset(n);
+        long length = this.index.getEndOffset(n) - start;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Subgraph " + n + " is too large to map");
+        }
+        MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        GeoffReader reader = new GeoffReader(buffer, this.index.getLineNo(n), this.index.getColumn(n));
+        reader.setNamePool(this.namePool);
+        return reader.readSubgraph();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which elements of a document a GeoffReader should keep, so that the
+ * rest can be skipped while reading rather than built and dropped.
+ *
+ * A node is kept if it has one of the labels given, or always if no
+ * labels are given, and a relationship is kept if it has one of the
+ * types given, or always if no types are given. The nodes of every kept
+ * relationship are kept too, as is everything else written about those
+ * nodes within the same subgraph; nodes of dropped relationships are
+ * treated as if written on their own. To keep only the nodes of kept
+ * relationships, give an empty set of labels.
+ *
+ * Property keys can also be limited to a given set, although a unique
+ * key is always kept in the element that declares it. Keys named only by
+ * a later hook must be included explicitly. Comments can be dropped
+ * altogether.
+ */
+public class GeoffFilter {
+
+    private Set<String> labels;
+    private Set<String> types;
+    private Set<String> propertyKeys;
+    private boolean comments = true;
+
+    public Set<String> getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * Keep only nodes with one of these labels; null to keep all.
+     */
+    public void setLabels(Collection<String> labels) {
+        this.labels = labels == null ? null : new HashSet<>(labels);
+    }
+
+    public Set<String> getTypes() {
+        return this.types;
+    }
+
+    /**
+     * Keep only relationships of these types; null to keep all.
+     */
+    public void setTypes(Collection<String> types) {
+        this.types = types == null ? null : new HashSet<>(types);
+    }
+
+    public Set<String> getPropertyKeys() {
+        return this.propertyKeys;
+    }
+
+    /**
+     * Keep only properties with these keys; null to keep all.
+     */
+    public void setPropertyKeys(Collection<String> propertyKeys) {
+        this.propertyKeys = propertyKeys == null ? null : new HashSet<>(propertyKeys);
+    }
+
+    public boolean getComments() {
+        return this.comments;
+    }
+
+    public void setComments(boolean comments) {
+        this.comments = comments;
+    }
+
+    public boolean acceptsLabels(Set<String> labels) {
+        if (this.labels == null) {
+            return true;
+        }
+        if (labels != null) {
+            for (String label : labels) {
+                if (this.labels.contains(label)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean acceptsType(String type) {
+        return this.types == null || this.types.contains(type);
+    }
+
+    public boolean acceptsPropertyKey(String key) {
+        return this.propertyKeys == null || this.propertyKeys.contains(key);
+    }
+
+}
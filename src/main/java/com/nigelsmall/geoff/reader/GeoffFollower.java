@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reads subgraphs from a Geoff file that is still being appended to,
+ * returning each one as soon as its boundary has been written. Data after
+ * the last boundary is held back until its boundary arrives, however
+ * long that takes, so a subgraph is never read before it is complete.
+ * A boundary is only known to be complete once the byte after it, such
+ * as a newline, has also been written.
+ *
+ * The offset of the next subgraph to read is saved alongside the file,
+ * so that following can resume there after a restart. The end of a
+ * subgraph is saved only when the next one is asked for, or when the
+ * follower is closed, so that a subgraph that was still being handled
+ * when a process stopped is read again by the next.
+ */
+public class GeoffFollower implements Closeable {
+
+    final public static String SUFFIX = ".offset";
+    final public static long DEFAULT_POLL_INTERVAL = 500;
+
+    final private static int MAGIC = 0x47656f66;  // "Geof"
+    final private static int VERSION = 1;
+    final private static int BLOCK_SIZE = 65536;
+    // the largest array most JVMs will allocate
+    final private static int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    final private File file;
+    final private File offsetFile;
+    final private FileChannel channel;
+    final private BoundaryScanner scanner;
+    final private ArrayDeque<long[]> boundaries;
+    final private StringPool namePool = new StringPool();
+    private long pollInterval;
+    private byte[] buffer;
+    private int length;
+    private long offset;
+    private int lineNo;
+    private int column;
+    private long savedOffset;
+
+    /**
+     * Follow a file, resuming from its saved offset if there is one.
+     */
+    public GeoffFollower(File file) throws IOException {
+        this(file, new File(file.getPath() + SUFFIX));
+    }
+
+    /**
+     * @param offsetFile where to save the offset reached, which is read
+     *                   on opening if it exists
+     */
+    public GeoffFollower(File file, File offsetFile) throws IOException {
+        this.file = file;
+        this.offsetFile = offsetFile;
+        this.pollInterval = DEFAULT_POLL_INTERVAL;
+        if (offsetFile.exists()) {
+            this.readOffset();
+        }
+        if (file.length() < this.offset) {
+            throw new IOException(file + " is shorter than its saved offset");
+        }
+        this.savedOffset = this.offset;
+        this.channel = new FileInputStream(file).getChannel();
+        this.scanner = new BoundaryScanner(this.lineNo, this.column);
+        this.boundaries = new ArrayDeque<>();
+        this.buffer = new byte[8192];
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * The offset of the first byte not yet returned in a subgraph.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * The number of bytes read but not yet returned in a subgraph.
+     */
+    int getBufferedLength() {
+        return this.length;
+    }
+
+    public long getPollInterval() {
+        return this.pollInterval;
+    }
+
+    /**
+     * @param pollInterval how long, in milliseconds, take() waits before
+     *                     looking for more data
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    private void readOffset() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.offsetFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unrecognised offset file " + this.offsetFile);
+            }
+            this.offset = in.readLong();
+            this.lineNo = in.readInt();
+            this.column = in.readInt();
+        }
+    }
+
+    /**
+     * Save the offset reached, replacing the previous one in a single
+     * step so that a crash cannot leave it half written.
+     */
+    private void saveOffset() throws IOException {
+        if (this.offset == this.savedOffset) {
+            return;
+        }
+        File tempFile = new File(this.offsetFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.offset);
+            out.writeInt(this.lineNo);
+            out.writeInt(this.column);
+        }
+        Files.move(tempFile.toPath(), this.offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.savedOffset = this.offset;
+    }
+
+    /**
+     * Read on from what has been appended since last time, a block at a
+     * time, until the end of a subgraph has been found or there is no
+     * more. Only data since the last subgraph returned is held, so a long
+     * backlog is never read into memory all at once.
+     */
+    private void readAppended() throws IOException {
+        long position = this.offset + this.length;
+        long size = this.channel.size();
+        if (size < position) {
+            throw new IOException(this.file + " has been truncated");
+        }
+        while (position < size && this.boundaries.isEmpty()) {
+            if (this.length == this.buffer.length) {
+                if (this.buffer.length == MAX_BUFFER_SIZE) {
+                    throw new IOException("Subgraph at offset " + this.offset + " is too large to follow");
+                }
+                this.buffer = Arrays.copyOf(this.buffer, (int) Math.min(2L * this.buffer.length, MAX_BUFFER_SIZE));
+            }
+            int room = Math.min(BLOCK_SIZE, this.buffer.length - this.length);
+            int n = this.channel.read(ByteBuffer.wrap(this.buffer, this.length, room), position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = this.length; i < this.length + n; i++) {
+                this.scanner.next(this.buffer[i], this.offset + i);
+            }
+            this.length += n;
+            position += n;
+        }
+    }
+
+    /**
+     * The end of the next complete subgraph, or null if there is none yet.
+     */
+    private long[] nextBoundary() throws IOException {
+        this.saveOffset();
+        if (this.boundaries.isEmpty()) {
+            this.readAppended();
+        }
+        return this.boundaries.peek();
+    }
+
+    /**
+     * Move past the next complete subgraph, once it has been read.
+     */
+    private void advance() {
+        long[] boundary = this.boundaries.remove();
+        int n = (int) (boundary[0] - this.offset);
+        System.arraycopy(this.buffer, n, this.buffer, 0, this.length - n);
+        this.length -= n;
+        this.offset = boundary[0];
+        this.lineNo = (int) boundary[1];
+        this.column = (int) boundary[2];
+    }
+
+    /**
+     * Return the next complete subgraph, or null if there is none yet. A
+     * subgraph that cannot be read is not passed over, so will fail again
+     * each time until skipped.
+     */
+    public Subgraph poll() throws IOException {
+        long[] boundary = this.nextBoundary();
+        if (boundary == null) {
+            return null;
+        }
+        int n = (int) (boundary[0] - this.offset);
+        GeoffReader reader = new GeoffReader(ByteBuffer.wrap(this.buffer, 0, n).slice(), this.lineNo, this.column);
+        reader.setNamePool(this.namePool);
+        Subgraph subgraph = reader.readSubgraph();
+        this.advance();
+        return subgraph;
+    }
+
+    /**
+     * Pass over the next complete subgraph without reading it, as for one
+     * that cannot be read.
+     *
+     * @return false if there is no complete subgraph yet
+     */
+    public boolean skip() throws IOException {
+        if (this.nextBoundary() == null) {
+            return false;
+        }
+        this.advance();
+        return true;
+    }
+
+    /**
+     * Wait for the next complete subgraph.
+     */
+    public Subgraph take() throws IOException {
+        Subgraph subgraph;
+        while ((subgraph = this.poll()) == null) {
+            try {
+                Thread.sleep(this.pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return subgraph;
+    }
+
+    /**
+     * Save the offset reached and stop following.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.saveOffset();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Notes the end of each subgraph as it is scanned.
+     */
+    private class BoundaryScanner extends GeoffFileIndex.Scanner {
+
+        BoundaryScanner(int lineNo, int column) {
+            super(null, lineNo, column);
+        }
+
+        @Override
+        void onBoundary(long offset, int lineNo, int column) {
+            boundaries.add(new long[] {offset, lineNo, column});
+        }
+
+    }
+
+}
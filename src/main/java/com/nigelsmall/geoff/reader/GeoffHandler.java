@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+
+import java.io.IOException;
+
+/**
+ * Receives each element of a Geoff document, in document order, as
+ * GeoffReader.parse reads it. Nodes are passed exactly as written; no
+ * merging by name takes place.
+ */
+public interface GeoffHandler {
+
+    /**
+     * A node on its own, with any trailing property map merged in.
+     */
+    void onNode(AbstractNode node) throws IOException;
+
+    /**
+     * Each relationship of a path, in order, with any trailing property
+     * map merged in.
+     */
+    void onRelationship(AbstractRelationship relationship) throws IOException;
+
+    /**
+     * A hook such as <code>:Person:name:=>(alice)</code>. The key is null
+     * if none was given.
+     */
+    void onHook(String label, String key, AbstractNode node) throws IOException;
+
+    void onComment(String comment) throws IOException;
+
+    /**
+     * A <code>~~~~</code> boundary, ending the current subgraph.
+     */
+    void onBoundary() throws IOException;
+
+}
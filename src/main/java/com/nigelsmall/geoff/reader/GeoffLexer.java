@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.IOException;
+
+/**
+ * Token-level API consumed by GeoffReader. Implementations scan a large
+ * window of either chars or UTF-8 bytes using primitive cursors; all
+ * character classification is done on UTF-16 chars so that both produce
+ * identical results.
+ */
+abstract class GeoffLexer {
+
+    final static int END_OF_DATA = -1;
+
+    final static int DEFAULT_BUFFER_SIZE = 65536;
+
+    final private static boolean[] NAME_CHARS = new boolean[128];
+
+    static {
+        for (char ch = 0; ch < 128; ch++) {
+            NAME_CHARS[ch] = Character.isLetterOrDigit(ch) || ch == '_';
+        }
+    }
+
+    protected int lineNo;
+
+    /**
+     * Shares names, labels, types and keys; or null to share nothing.
+     */
+    StringPool namePool = new StringPool();
+
+    /**
+     * Shares string values; or null, the default, to share nothing.
+     */
+    StringPool valuePool;
+
+    private char[] chars = new char[256];
+
+    static boolean isNameChar(char ch) {
+        return ch < 128 ? NAME_CHARS[ch] : Character.isLetterOrDigit(ch);
+    }
+
+    static boolean isWhitespace(char ch) {
+        return (ch <= ' ' || ch > 0x7F) && Character.isWhitespace(ch);
+    }
+
+    static boolean isDigit(char ch) {
+        return (ch >= '0' && ch <= '9') || (ch > 0x7F && Character.isDigit(ch));
+    }
+
+    /**
+     * A reusable buffer of at least the given length.
+     */
+    char[] chars(int length) {
+        if (this.chars.length < length) {
+            this.chars = new char[length];
+        }
+        return this.chars;
+    }
+
+    static String newString(char[] chars, int start, int length, StringPool pool) {
+        if (pool == null) {
+            return new String(chars, start, length);
+        } else {
+            return pool.intern(chars, start, length);
+        }
+    }
+
+    String newString(byte[] bytes, int start, int end, StringPool pool) {
+        if (pool == null || end - start > StringPool.MAX_LENGTH) {
+            return new String(bytes, start, end - start, Utf8.UTF_8);
+        } else {
+            char[] chars = this.chars(end - start);
+            return pool.intern(chars, 0, Utf8.decode(bytes, start, end, chars, 0));
+        }
+    }
+
+    int getLineNo() {
+        return this.lineNo;
+    }
+
+    /**
+     * The zero-based column, in chars, of the next unread character.
+     */
+    abstract int getColumn();
+
+    GeoffReaderException error(String msg) {
+        return new GeoffReaderException(msg, this.lineNo, this.getColumn());
+    }
+
+    /**
+     * Returns the next character without consuming it, or END_OF_DATA.
+     */
+    abstract int peek() throws IOException;
+
+    abstract boolean hasMore() throws IOException;
+
+    abstract boolean nextCharEquals(char ch) throws IOException;
+
+    /**
+     * Consumes the next character, which must be the ASCII character given.
+     */
+    abstract void readChar(char ch) throws IOException;
+
+    abstract void skipWhitespace() throws IOException;
+
+    abstract String readWhitespace() throws IOException;
+
+    /**
+     * Reads a name, label, type or key, either bare or as a JSON string.
+     */
+    abstract String readName() throws IOException;
+
+    /**
+     * Decodes a number literal as an Integer where it fits, a Long where
+     * it does not, or a Double if it is real.
+     */
+    static Number parseNumber(String s, boolean isReal) {
+        if (isReal) {
+            return Double.parseDouble(s);
+        }
+        long value = Long.parseLong(s);
+        if (value == (int) value) {
+            return (int) value;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Reads a JSON formatted string value.
+     */
+    String readString() throws IOException {
+        return this.readString(this.valuePool);
+    }
+
+    abstract String readString(StringPool pool) throws IOException;
+
+    abstract Number readNumber() throws IOException;
+
+    /**
+     * Reads a property map as raw text, braces included. Brackets and
+     * strings are matched but nothing else is checked until the text is
+     * decoded.
+     */
+    abstract String readRawPropertyMap() throws IOException;
+
+    /**
+     * Skips a string without decoding it, and so without fully checking
+     * its content.
+     */
+    abstract void skipString() throws IOException;
+
+    /**
+     * Skips a property map or array, matching brackets and strings only.
+     */
+    abstract void skipNested() throws IOException;
+
+    /**
+     * Skips a comment without building its text.
+     */
+    abstract void skipComment() throws IOException;
+
+    /**
+     * Reads a comment, including the opening and closing delimiters, and
+     * returns the trimmed text between them.
+     */
+    abstract String readComment() throws IOException;
+
+    /**
+     * Closes the underlying source of data, if there is one.
+     */
+    void close() throws IOException {
+        // nothing to close
+    }
+
+}
@@ -18,180 +18,270 @@ package com.nigelsmall.geoff.reader;
 
 import com.nigelsmall.geoff.AbstractNode;
 import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.CompactSubgraph;
+import com.nigelsmall.geoff.ShapedPropertyMap;
+import com.nigelsmall.geoff.SpillingSubgraph;
 import com.nigelsmall.geoff.Subgraph;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 
-public class GeoffReader {
+public class GeoffReader implements Closeable {
 
     final private Logger logger = LoggerFactory.getLogger(GeoffReader.class);
-    private int lineNo;
-    private int column;
 
-    final private static class UnexpectedEndOfData extends IOException {}
+    final protected static int END_OF_DATA = GeoffLexer.END_OF_DATA;
 
-    final private static ObjectMapper mapper = new ObjectMapper();
-
-    final protected static int NULL = -2;
-    final protected static int END_OF_DATA = -1;
-
-    private BufferedReader reader;
-    private int peeked;
+    final private GeoffLexer lexer;
+    private boolean lazyProperties;
+    final private HashSet<String> labels = new HashSet<>();
+    final private String[] labelAndKey = new String[2];
+    final private RelationshipBox box = new RelationshipBox();
+    private GeoffFilter filter;
 
     public GeoffReader(Reader reader) {
-        this.reader = new BufferedReader(reader);
-        this.peeked = NULL;
+        this.lexer = new CharLexer(reader);
     }
 
     public GeoffReader(String string) {
-        this(new StringReader(string));
+        this.lexer = new CharLexer(string);
     }
 
-    private char read() throws IOException {
-        int ch;
-        if (this.peeked == NULL) {
-            column++;
-            ch = this.reader.read();
-        } else {
-            ch = this.peeked;
-            this.peeked = NULL;
-        }
-        if (ch == END_OF_DATA)
-            throw new UnexpectedEndOfData();
-        else
-            return (char)ch;
+    /**
+     * Read UTF-8 encoded Geoff directly from a byte stream, without
+     * decoding the input into chars first.
+     */
+    public GeoffReader(InputStream stream) {
+        this.lexer = new ByteLexer(stream);
     }
 
-    private Character peek() throws IOException {
-        if (this.peeked == NULL) {
-            column++;
-            this.peeked = this.reader.read();
-        }
-        if (this.peeked == END_OF_DATA) {
-            return null;
-        } else {
-            return (char)this.peeked;
-        }
+    /**
+     * Read UTF-8 encoded Geoff directly from a byte channel.
+     */
+    public GeoffReader(ReadableByteChannel channel) {
+        this.lexer = new ByteLexer(channel);
     }
 
-    private Character readChar(char ch) throws IOException {
-        if (this.nextCharEquals(ch)) {
-            return this.read();
-        } else {
-            String msg = "Unexpected character";
-            throw error(msg);
-        }
+    /**
+     * Read UTF-8 encoded Geoff from the remaining bytes of a buffer, which
+     * may be direct or memory-mapped.
+     */
+    public GeoffReader(ByteBuffer buffer) {
+        this.lexer = new ByteLexer(buffer);
     }
 
-    private GeoffReaderException error(String msg) {
-        return new GeoffReaderException(msg,lineNo,column-1);
+    /**
+     * Read part of a larger document from a buffer, given the line and
+     * column at which that part starts.
+     */
+    GeoffReader(ByteBuffer buffer, int lineNo, int column) {
+        this.lexer = new ByteLexer(buffer, lineNo, column);
     }
 
-    private String readUntil(char terminator) throws IOException {
-        StringBuilder s = new StringBuilder(200);
-        char ch = '\0';
-        while (this.hasMore() && ch != terminator) {
-            ch = this.read();
-            s.append(ch);
-        }
-        return s.toString();
+    /**
+     * Read Geoff from a document that has already been structurally
+     * indexed. Strings and comments are taken whole from the index
+     * rather than being scanned character by character.
+     */
+    public GeoffReader(StructuralIndex index) {
+        this.lexer = new IndexedLexer(index);
     }
 
-    private String readUntil(String terminator) throws IOException {
-        StringBuilder s = new StringBuilder(200);
-        char terminatorChar = terminator.charAt(terminator.length() - 1);
-        while (this.hasMore() && !s.toString().endsWith(terminator)) {
-            s.append(this.readUntil(terminatorChar));
-        }
-        return s.toString();
+    /**
+     * Read only a byte range of an indexed document.
+     */
+    GeoffReader(StructuralIndex index, int start, int end) {
+        this.lexer = new IndexedLexer(index, start, end);
+    }
+
+    public StringPool getNamePool() {
+        return this.lexer.namePool;
     }
 
-    private boolean nextCharEquals(char ch) throws IOException {
-        Character nextChar = this.peek();
-        return nextChar != null && nextChar == ch;
+    /**
+     * Set the pool through which names, labels, types and keys are
+     * shared, which may be shared with other readers. Each reader has a
+     * pool of its own by default; null disables pooling.
+     */
+    public void setNamePool(StringPool pool) {
+        this.lexer.namePool = pool;
+    }
+
+    public StringPool getValuePool() {
+        return this.lexer.valuePool;
+    }
+
+    /**
+     * Set a pool through which string property values are shared, for
+     * data with many repeated values. Values are not pooled by default.
+     */
+    public void setValuePool(StringPool pool) {
+        this.lexer.valuePool = pool;
+    }
+
+    public boolean isLazyProperties() {
+        return this.lazyProperties;
+    }
+
+    /**
+     * Keep property maps as raw text, to be decoded only when first
+     * needed, for work that mostly looks at names, labels and types.
+     * Maps holding a unique key are always decoded, and any error in a
+     * raw map only shows up once it is decoded.
+     */
+    public void setLazyProperties(boolean lazyProperties) {
+        this.lazyProperties = lazyProperties;
+    }
+
+    public GeoffFilter getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Keep only the elements that a filter accepts, skipping the rest as
+     * far as possible without decoding them; null to keep everything.
+     */
+    public void setFilter(GeoffFilter filter) {
+        this.filter = filter;
+    }
+
+    private GeoffReaderException error(String msg) {
+        return this.lexer.error(msg);
     }
 
     public boolean hasMore() throws IOException {
-        return this.peek() != null;
+        return this.lexer.hasMore();
     }
 
-    private List readArray() throws IOException {
-        this.readChar('[');
-        this.readWhitespace();
-        if (this.nextCharEquals(']')) {
-            this.readChar(']');
-            return new ArrayList<Object>();
+    /**
+     * Closes the underlying Reader, stream or channel.
+     */
+    @Override
+    public void close() throws IOException {
+        this.lexer.close();
+    }
+
+    /**
+     * Reads an array straight into a String[], boolean[] or, for numbers,
+     * an int[], widened to a long[] or double[] only as its items demand.
+     */
+    private Object readArray() throws IOException {
+        GeoffLexer lexer = this.lexer;
+        lexer.readChar('[');
+        lexer.skipWhitespace();
+        int ch = lexer.peek();
+        Object array;
+        if (ch == ']') {
+            array = new Object[0];
+        } else if (ch == '"') {
+            array = this.readStringItems();
+        } else if (ch == '-' || (ch != END_OF_DATA && GeoffLexer.isDigit((char) ch))) {
+            array = this.readNumberItems();
+        } else if (ch == 't' || ch == 'f') {
+            array = this.readBooleanItems();
+        } else {
+            throw error("Disarray");
         }
-        if (this.nextCharEquals('"')) {
-            ArrayList<Object> items = new ArrayList<>();
-            items.add(this.readString());
-            this.readWhitespace();
-            while (this.nextCharEquals(',')) {
-                this.readChar(',');
-                this.readWhitespace();
-                items.add(this.readString());
-                this.readWhitespace();
-            }
-            this.readChar(']');
-            return items;
-        } else if (this.nextCharEquals('-') || Character.isDigit(this.peek())) {
-            ArrayList<Object> integerItems = new ArrayList<>();
-            ArrayList<Object> doubleItems = new ArrayList<>();
-            Number n = this.readNumber();
-            doubleItems.add(n.doubleValue());
-            if (n instanceof Integer) {
-                integerItems.add(n.intValue());
+        lexer.readChar(']');
+        return array;
+    }
+
+    /**
+     * Skips the separator before the next array item, returning false at
+     * the end of the array.
+     */
+    private boolean nextItem() throws IOException {
+        GeoffLexer lexer = this.lexer;
+        lexer.skipWhitespace();
+        if (lexer.nextCharEquals(',')) {
+            lexer.readChar(',');
+            lexer.skipWhitespace();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private String[] readStringItems() throws IOException {
+        String[] items = new String[8];
+        int size = 0;
+        do {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
             }
-            this.readWhitespace();
-            while (this.nextCharEquals(',')) {
-                this.readChar(',');
-                this.readWhitespace();
-                n = this.readNumber();
-                doubleItems.add(n.doubleValue());
-                if (n instanceof Integer) {
-                    integerItems.add(n.intValue());
+            items[size++] = this.lexer.readString();
+        } while (this.nextItem());
+        return Arrays.copyOf(items, size);
+    }
+
+    private Object readNumberItems() throws IOException {
+        long[] longs = new long[8];
+        double[] doubles = null;
+        boolean isLong = false;
+        int size = 0;
+        do {
+            Number n = this.lexer.readNumber();
+            if (doubles == null && n instanceof Double) {
+                doubles = new double[longs.length];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = longs[i];
                 }
-                this.readWhitespace();
             }
-            this.readChar(']');
-            if (integerItems.size() == doubleItems.size()) {
-                return integerItems;
+            if (doubles == null) {
+                if (size == longs.length) {
+                    longs = Arrays.copyOf(longs, 2 * size);
+                }
+                longs[size++] = n.longValue();
+                isLong |= n instanceof Long;
             } else {
-                return doubleItems;
-            }
-        } else if (this.nextCharEquals('t') || this.nextCharEquals('f')) {
-            ArrayList<Object> items = new ArrayList<>();
-            items.add(this.readBoolean());
-            this.readWhitespace();
-            while (this.nextCharEquals(',')) {
-                this.readChar(',');
-                this.readWhitespace();
-                items.add(this.readBoolean());
-                this.readWhitespace();
+                if (size == doubles.length) {
+                    doubles = Arrays.copyOf(doubles, 2 * size);
+                }
+                doubles[size++] = n.doubleValue();
             }
-            this.readChar(']');
-            return items;
+        } while (this.nextItem());
+        if (doubles != null) {
+            return Arrays.copyOf(doubles, size);
+        } else if (isLong) {
+            return Arrays.copyOf(longs, size);
         } else {
-            throw error("Disarray");
+            int[] ints = new int[size];
+            for (int i = 0; i < size; i++) {
+                ints[i] = (int) longs[i];
+            }
+            return ints;
         }
     }
 
+    private boolean[] readBooleanItems() throws IOException {
+        boolean[] items = new boolean[8];
+        int size = 0;
+        do {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            items[size++] = this.readBoolean();
+        } while (this.nextItem());
+        return Arrays.copyOf(items, size);
+    }
+
     private String readArrow() throws IOException {
-        if (this.nextCharEquals('<')) {
-            this.readChar('<');
-            this.readChar('-');
+        int ch = this.lexer.peek();
+        if (ch == '<') {
+            this.lexer.readChar('<');
+            this.lexer.readChar('-');
             return "<-";
-        } else if (this.nextCharEquals('-')) {
-            this.readChar('-');
-            if (this.nextCharEquals('>')) {
-                this.readChar('>');
+        } else if (ch == '-') {
+            this.lexer.readChar('-');
+            if (this.lexer.nextCharEquals('>')) {
+                this.lexer.readChar('>');
                 return "->";
             } else {
                 return "-";
@@ -202,18 +292,19 @@ public class GeoffReader {
     }
 
     private boolean readBoolean() throws IOException {
-        if (this.nextCharEquals('t')) {
-            readChar('t');
-            readChar('r');
-            readChar('u');
-            readChar('e');
+        int ch = this.lexer.peek();
+        if (ch == 't') {
+            this.lexer.readChar('t');
+            this.lexer.readChar('r');
+            this.lexer.readChar('u');
+            this.lexer.readChar('e');
             return true;
-        } else if (this.nextCharEquals('f')) {
-            readChar('f');
-            readChar('a');
-            readChar('l');
-            readChar('s');
-            readChar('e');
+        } else if (ch == 'f') {
+            this.lexer.readChar('f');
+            this.lexer.readChar('a');
+            this.lexer.readChar('l');
+            this.lexer.readChar('s');
+            this.lexer.readChar('e');
             return false;
         } else {
             throw error("Cannot establish truth");
@@ -221,245 +312,236 @@ public class GeoffReader {
     }
 
     private void readBoundary() throws IOException {
-        this.readChar('~');
-        this.readChar('~');
-        this.readChar('~');
-        this.readChar('~');
-        while (this.nextCharEquals('~')) {
-            this.readChar('~');
+        this.lexer.readChar('~');
+        this.lexer.readChar('~');
+        this.lexer.readChar('~');
+        this.lexer.readChar('~');
+        while (this.lexer.nextCharEquals('~')) {
+            this.lexer.readChar('~');
         }
     }
 
-    private String readComment() throws IOException {
-        this.readChar('/');
-        this.readChar('*');
-        String comment = this.readUntil("*/");
-        return comment.substring(0, comment.length() - 2).trim();
-    }
-
-    private void readKeyValuePairInto(HashMap<String, Object> map) throws IOException {
-        String key = this.readName();
-        this.readWhitespace();
-        this.readChar(':');
-        this.readWhitespace();
-        Object value = this.readValue();
-        map.put(key, value);
+    private void readKeyValuePairInto(ShapedPropertyMap map, String uniqueKey) throws IOException {
+        String key = this.lexer.readName();
+        this.lexer.skipWhitespace();
+        this.lexer.readChar(':');
+        this.lexer.skipWhitespace();
+        if (this.filter == null || this.filter.acceptsPropertyKey(key) || key.equals(uniqueKey)) {
+            map.put(key, this.readValue());
+        } else {
+            this.skipValue();
+        }
     }
 
-    private String[] readLabelsInto(HashSet<String> labels) throws IOException {
-        String[] labelAndKey = new String[] {null, null};
-        while (this.nextCharEquals(':')) {
-            this.readChar(':');
-            String label = this.readName();
+    private void readLabelsInto(HashSet<String> labels, String[] labelAndKey) throws IOException {
+        while (this.lexer.nextCharEquals(':')) {
+            this.lexer.readChar(':');
+            String label = this.lexer.readName();
             labels.add(label);
-            if (this.nextCharEquals('!')) {
+            if (this.lexer.nextCharEquals('!')) {
                 labelAndKey[0] = label;
-                this.readChar('!');
-                labelAndKey[1] = this.readName();
+                this.lexer.readChar('!');
+                labelAndKey[1] = this.lexer.readName();
             }
         }
-        return labelAndKey;
-    }
-
-    private String readName() throws IOException {
-        if (this.nextCharEquals('"')) {
-            return this.readString();
-        } else {
-            StringBuilder s = new StringBuilder();
-            while (this.hasMore() && (Character.isLetterOrDigit(this.peek()) || this.nextCharEquals('_'))) {
-                s.append(this.read());
-            }
-            return s.toString();
-        }
     }
 
     private AbstractNode readNode() throws IOException {
-        String name;
-        HashSet<String> labels;
-        HashMap<String, Object> properties;
-        String[] labelAndKey = new String[] {null, null};
-        this.readChar('(');
-        this.readWhitespace();
-        if (this.nextCharEquals(')')) {
-            name = null;
-            labels = null;
-            properties = null;
-        } else if (this.nextCharEquals(':')) {
-            name = null;
-            labels = new HashSet<>();
-            labelAndKey = this.readLabelsInto(labels);
-            this.readWhitespace();
-            if (this.nextCharEquals('{')) {
-                properties = this.readPropertyMap();
-            } else {
-                properties = null;
-            }
-        } else if (this.nextCharEquals('{')) {
-            name = null;
-            labels = null;
-            properties = this.readPropertyMap();
-        } else {
-            name = this.readName();
-            this.readWhitespace();
-            if (this.nextCharEquals(':')) {
-                labels = new HashSet<>();
-                labelAndKey = this.readLabelsInto(labels);
-            } else {
-                labels = null;
-            }
-            this.readWhitespace();
-            if (this.nextCharEquals('{')) {
-                properties = this.readPropertyMap();
+        GeoffLexer lexer = this.lexer;
+        String name = null;
+        HashSet<String> labels = null;
+        ShapedPropertyMap properties = null;
+        RawPropertyMap rawProperties = null;
+        String[] labelAndKey = this.labelAndKey;
+        labelAndKey[0] = labelAndKey[1] = null;
+        lexer.readChar('(');
+        lexer.skipWhitespace();
+        int ch = lexer.peek();
+        if (ch != ')' && ch != ':' && ch != '{') {
+            name = lexer.readName();
+            lexer.skipWhitespace();
+        }
+        if (lexer.nextCharEquals(':')) {
+            // the node takes its own copy, so one set serves every node
+            labels = this.labels;
+            labels.clear();
+            this.readLabelsInto(labels, labelAndKey);
+            lexer.skipWhitespace();
+        }
+        if (lexer.nextCharEquals('{')) {
+            // unique keys are needed for merging, so those are never lazy;
+            // nodes that may yet be filtered out are not decoded either
+            boolean lazy = this.lazyProperties || (this.filter != null && !this.filter.acceptsLabels(labels));
+            if (lazy && labelAndKey[1] == null) {
+                rawProperties = this.readRawPropertyMap();
             } else {
-                properties = null;
+                properties = this.readPropertyMap(labelAndKey[1]);
             }
         }
-        this.readWhitespace();
-        this.readChar(')');
+        lexer.skipWhitespace();
+        lexer.readChar(')');
         AbstractNode node = new AbstractNode(name, labels, properties);
+        node.mergeRawProperties(rawProperties);
         node.setUnique(labelAndKey[0], labelAndKey[1]);
         return node;
     }
 
-    private Number readNumber() throws IOException {
-        StringBuilder s = new StringBuilder(20);
-        boolean isReal = false;
-        if (this.nextCharEquals('-')) {
-            s.append(this.read());
-        }
-        while (Character.isDigit(this.peek())) {
-            s.append(this.read());
-        }
-        if (this.nextCharEquals('.')) {
-            isReal = true;
-            s.append(this.read());
-            while (Character.isDigit(this.peek())) {
-                s.append(this.read());
-            }
-        }
-        if (this.nextCharEquals('E') || this.nextCharEquals('e')) {
-            isReal = true;
-            s.append(this.read());
-            if (this.nextCharEquals('+') || this.nextCharEquals('-')) {
-                s.append(this.read());
-            }
-            while (Character.isDigit(this.peek())) {
-                s.append(this.read());
-            }
-        }
-        if (isReal) {
-            return Double.parseDouble(s.toString());
-        } else {
-            return Integer.parseInt(s.toString());
-        }
-    }
-
-    private HashMap<String, Object> readPropertyMap() throws IOException {
-        HashMap<String, Object> properties = new HashMap<>();
-        this.readChar('{');
-        this.readWhitespace();
-        if (!this.nextCharEquals('}')) {
-            this.readKeyValuePairInto(properties);
-            this.readWhitespace();
-            while (this.nextCharEquals(',')) {
-                this.readChar(',');
-                this.readWhitespace();
-                this.readKeyValuePairInto(properties);
-                this.readWhitespace();
+    /**
+     * Reads a property map, dropping any keys filtered out other than
+     * the unique key given.
+     */
+    ShapedPropertyMap readPropertyMap(String uniqueKey) throws IOException {
+        GeoffLexer lexer = this.lexer;
+        ShapedPropertyMap properties = new ShapedPropertyMap();
+        lexer.readChar('{');
+        lexer.skipWhitespace();
+        if (!lexer.nextCharEquals('}')) {
+            this.readKeyValuePairInto(properties, uniqueKey);
+            lexer.skipWhitespace();
+            while (lexer.nextCharEquals(',')) {
+                lexer.readChar(',');
+                lexer.skipWhitespace();
+                this.readKeyValuePairInto(properties, uniqueKey);
+                lexer.skipWhitespace();
             }
 
         }
-        this.readChar('}');
+        lexer.readChar('}');
         return properties;
     }
 
-    private AbstractRelationship readRelationshipBox() throws IOException {
-        this.readChar('[');
-        this.readWhitespace();
-        if (this.nextCharEquals(':')) {
+    private RawPropertyMap readRawPropertyMap() throws IOException {
+        GeoffLexer lexer = this.lexer;
+        return new RawPropertyMap(lexer.readRawPropertyMap(), lexer.namePool, lexer.valuePool, this.filter);
+    }
+
+    /**
+     * Reads a relationship box into the reader's RelationshipBox, from
+     * which one or two relationships are then made once their nodes have
+     * been read.
+     */
+    private RelationshipBox readRelationshipBox() throws IOException {
+        GeoffLexer lexer = this.lexer;
+        lexer.readChar('[');
+        lexer.skipWhitespace();
+        if (lexer.nextCharEquals(':')) {
             // read and ignore relationship name, if present
-            this.readName();
-            this.readWhitespace();
+            lexer.readName();
+            lexer.skipWhitespace();
         }
-        this.readChar(':');
-        String type = this.readName();
+        lexer.readChar(':');
+        String type = lexer.readName();
         boolean unique;
         String uniqueKey = null;
-        if (this.nextCharEquals('!')) {
-            this.readChar('!');
+        if (lexer.nextCharEquals('!')) {
+            lexer.readChar('!');
             unique = true;
-            if (this.hasMore()) {
-                char ch = this.peek();
-                if (!Character.isWhitespace(ch) && ch != ']' && ch != '{') {
-                    uniqueKey = this.readName();
-                }
+            int ch = lexer.peek();
+            if (ch != END_OF_DATA && !GeoffLexer.isWhitespace((char) ch) && ch != ']' && ch != '{') {
+                uniqueKey = lexer.readName();
             }
         } else {
             unique = false;
         }
-        this.readWhitespace();
-        AbstractRelationship rel;
+        lexer.skipWhitespace();
         Map<String, Object> properties = null;
-        if (this.nextCharEquals('{')) {
-            properties = this.readPropertyMap();
-            this.readWhitespace();
+        RawPropertyMap rawProperties = null;
+        if (lexer.nextCharEquals('{')) {
+            if (this.filter != null && !this.filter.acceptsType(type)) {
+                lexer.skipNested();
+            } else if (this.lazyProperties && uniqueKey == null) {
+                rawProperties = this.readRawPropertyMap();
+            } else {
+                properties = this.readPropertyMap(uniqueKey);
+            }
+            lexer.skipWhitespace();
         }
-        if (uniqueKey == null) {
-            rel = new AbstractRelationship(null, type, properties, null, unique);
+        lexer.skipWhitespace();
+        lexer.readChar(']');
+        RelationshipBox box = this.box;
+        box.type = type;
+        box.unique = unique;
+        box.uniqueKey = uniqueKey;
+        box.properties = properties;
+        box.rawProperties = rawProperties;
+        return box;
+    }
+
+    /**
+     * Makes a relationship from a box, leaving any raw properties
+     * undecoded. Relationships made from the same box share their
+     * property values until either is changed.
+     */
+    private AbstractRelationship newRelationship(AbstractNode startNode, RelationshipBox box, AbstractNode endNode) {
+        AbstractRelationship rel;
+        if (box.uniqueKey == null) {
+            rel = new AbstractRelationship(startNode, box.type, box.properties, endNode, box.unique);
         } else {
-            rel = new AbstractRelationship(null, type, properties, null, uniqueKey);
+            rel = new AbstractRelationship(startNode, box.type, box.properties, endNode, box.uniqueKey);
         }
-        this.readWhitespace();
-        this.readChar(']');
+        rel.mergeRawProperties(box.rawProperties);
         return rel;
     }
 
-    /** Reads a JSON formatted string
+    /**
+     * The parts of a relationship box, between reading it and reading the
+     * node that follows it.
      */
-    private String readString() throws IOException {
-        StringBuilder s = new StringBuilder(200);
-        s.append(this.read());
-        boolean endOfString = false;
-        while (this.hasMore() && !endOfString) {
-            s.append(this.readUntil('"'));
-            endOfString = !s.toString().endsWith("\\\"");
+    private static final class RelationshipBox {
+
+        String type;
+        boolean unique;
+        String uniqueKey;
+        Map<String, Object> properties;
+        RawPropertyMap rawProperties;
+
+    }
+
+    /**
+     * Whether the trailing properties of a path are wanted: always for a
+     * node alone, and otherwise only if any of its relationships are kept.
+     * Relationships filtered out are null.
+     */
+    private static boolean anyAccepted(List<AbstractRelationship> relationships) {
+        if (relationships.isEmpty()) {
+            return true;
         }
-        try {
-            return mapper.readValue(s.toString(), String.class);
-        } catch (IOException e) {
-            throw error("Unable to parse JSON string");
+        for (AbstractRelationship rel : relationships) {
+            if (rel != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skipValue() throws IOException {
+        int ch = this.lexer.peek();
+        if (ch == '"') {
+            this.lexer.skipString();
+        } else if (ch == '[') {
+            this.lexer.skipNested();
+        } else {
+            this.readValue();
         }
     }
 
     private Object readValue() throws IOException {
+        GeoffLexer lexer = this.lexer;
         Object value;
-        if (this.nextCharEquals('[')) {
-            List listValue = this.readArray();
-            int listValueSize = listValue.size();
-            if (listValueSize == 0) {
-                value = new Object[0];
-            } else if (listValue.get(0) instanceof String) {
-                value = listValue.toArray(new String[listValueSize]);
-            } else if (listValue.get(0) instanceof Integer) {
-                value = listValue.toArray(new Integer[listValueSize]);
-            } else if (listValue.get(0) instanceof Double) {
-                value = listValue.toArray(new Double[listValueSize]);
-            } else if (listValue.get(0) instanceof Boolean) {
-                value = listValue.toArray(new Boolean[listValueSize]);
-            } else {
-                throw error("Unexpected array type");
-            }
-        } else if (this.nextCharEquals('"')) {
-            value = this.readString();
-        } else if (this.nextCharEquals('-') || Character.isDigit(this.peek())) {
-            value = this.readNumber();
-        } else if (this.nextCharEquals('t') || this.nextCharEquals('f')) {
+        int ch = lexer.peek();
+        if (ch == '[') {
+            value = this.readArray();
+        } else if (ch == '"') {
+            value = lexer.readString();
+        } else if (ch == '-' || (ch != END_OF_DATA && GeoffLexer.isDigit((char) ch))) {
+            value = lexer.readNumber();
+        } else if (ch == 't' || ch == 'f') {
             value = this.readBoolean();
-        } else if (this.nextCharEquals('n')) {
-            this.readChar('n');
-            this.readChar('u');
-            this.readChar('l');
-            this.readChar('l');
+        } else if (ch == 'n') {
+            lexer.readChar('n');
+            lexer.readChar('u');
+            lexer.readChar('l');
+            lexer.readChar('l');
             value = null;
         } else {
             throw error("Unexpected character");
@@ -468,86 +550,175 @@ public class GeoffReader {
     }
 
     public String readWhitespace() throws IOException {
-        StringBuilder builder = new StringBuilder(20);
-        while (this.hasMore() && Character.isWhitespace(this.peek())) {
-            char ch = this.read();
-            builder.append(ch);
-            if (ch == '\n') {
-                lineNo ++;
-                column = 0;
-            }
+        return this.lexer.readWhitespace();
+    }
+
+    /**
+     * Read all remaining data, reporting each element to a handler as soon
+     * as it has been read. Nothing is kept once the handler has been
+     * called, so documents of any size can be processed in constant
+     * memory.
+     */
+    public void parse(GeoffHandler handler) throws IOException {
+        if (this.filter != null) {
+            handler = new FilteringHandler(this.filter, handler);
+        }
+        this.lexer.skipWhitespace();
+        while (this.lexer.hasMore()) {
+            this.parseSubgraph(handler);
         }
-        return builder.toString();
     }
 
-    public Subgraph readSubgraph() throws IOException {
-        logger.info("Reading subgraph...");
-        long t0 = System.currentTimeMillis();
-        Subgraph subgraph = new Subgraph();
+    /**
+     * Read elements up to and including the next boundary, or to the end
+     * of the data, reporting each to a handler.
+     */
+    private void parseSubgraph(GeoffHandler handler) throws IOException {
+        GeoffLexer lexer = this.lexer;
         boolean endOfSubgraph = false;
-        this.readWhitespace();
-        while (this.hasMore() && !endOfSubgraph) {
-            if(this.nextCharEquals('(')) {
+        lexer.skipWhitespace();
+        while (lexer.hasMore() && !endOfSubgraph) {
+            int ch = lexer.peek();
+            if (ch == '(') {
                 AbstractNode node = this.readNode();
                 ArrayList<AbstractRelationship> relationships = new ArrayList<>();
-                while (this.nextCharEquals('<') || this.nextCharEquals('-')) {
+                // a relationship filtered out is never built; it is held
+                // as null, and its nodes are passed on alone in its place
+                ArrayList<AbstractNode> droppedNodes = null;
+                ch = lexer.peek();
+                while (ch == '<' || ch == '-') {
                     String arrow1 = this.readArrow();
-                    AbstractRelationship rel = this.readRelationshipBox();
+                    RelationshipBox box = this.readRelationshipBox();
                     String arrow2 = this.readArrow();
                     AbstractNode otherNode = this.readNode();
                     if ("-".equals(arrow1) && "-".equals(arrow2)) {
                         throw error("Lack of direction");
                     }
+                    boolean dropped = this.filter != null && !this.filter.acceptsType(box.type);
+                    if (dropped && droppedNodes == null) {
+                        droppedNodes = new ArrayList<>();
+                    }
                     if ("<-".equals(arrow1)) {
-                        relationships.add(new AbstractRelationship(otherNode, rel.getType(), rel.getProperties(), node, rel.isUnique()));
+                        if (dropped) {
+                            relationships.add(null);
+                            droppedNodes.add(otherNode);
+                            droppedNodes.add(node);
+                        } else {
+                            relationships.add(this.newRelationship(otherNode, box, node));
+                        }
                     }
                     if ("->".equals(arrow2)) {
-                        relationships.add(new AbstractRelationship(node, rel.getType(), rel.getProperties(), otherNode, rel.isUnique()));
+                        if (dropped) {
+                            relationships.add(null);
+                            droppedNodes.add(node);
+                            droppedNodes.add(otherNode);
+                        } else {
+                            relationships.add(this.newRelationship(node, box, otherNode));
+                        }
                     }
                     node = otherNode;
+                    ch = lexer.peek();
                 }
-                this.readWhitespace();
+                lexer.skipWhitespace();
                 Map<String, Object> properties = null;
-                if (this.nextCharEquals('{')) {
-                    properties = this.readPropertyMap();
+                RawPropertyMap rawProperties = null;
+                if (lexer.nextCharEquals('{')) {
+                    if (!anyAccepted(relationships)) {
+                        lexer.skipNested();
+                    } else if (this.lazyProperties && node.getUniqueKey() == null) {
+                        rawProperties = this.readRawPropertyMap();
+                    } else {
+                        properties = this.readPropertyMap(node.getUniqueKey());
+                    }
                 }
                 if (relationships.size() > 0) {
+                    int dropped = 0;
                     for (AbstractRelationship rel : relationships) {
-                        rel.mergeProperties(properties);
-                        subgraph.addRelationship(rel);
+                        if (rel == null) {
+                            handler.onNode(droppedNodes.get(dropped++));
+                            handler.onNode(droppedNodes.get(dropped++));
+                        } else {
+                            rel.mergeRawProperties(rawProperties);
+                            rel.mergeProperties(properties);
+                            handler.onRelationship(rel);
+                        }
                     }
                 } else {
+                    node.mergeRawProperties(rawProperties);
                     node.mergeProperties(properties);
-                    subgraph.mergeNode(node);
+                    handler.onNode(node);
                 }
-            } else if(this.nextCharEquals(':')) {
-                this.readChar(':');
-                this.readWhitespace();
-                String label = this.readName();
-                this.readWhitespace();
-                this.readChar(':');
-                this.readWhitespace();
+            } else if (ch == ':') {
+                lexer.readChar(':');
+                lexer.skipWhitespace();
+                String label = lexer.readName();
+                lexer.skipWhitespace();
+                lexer.readChar(':');
+                lexer.skipWhitespace();
                 String key = null;
-                if (!this.nextCharEquals('=')) {
-                    key = this.readName();
-                    this.readWhitespace();
-                    this.readChar(':');
-                    this.readWhitespace();
+                if (!lexer.nextCharEquals('=')) {
+                    key = lexer.readName();
+                    lexer.skipWhitespace();
+                    lexer.readChar(':');
+                    lexer.skipWhitespace();
                 }
-                this.readChar('=');
-                this.readChar('>');
+                lexer.readChar('=');
+                lexer.readChar('>');
                 AbstractNode node = this.readNode();
-                subgraph.mergeNode(node).setUnique(label, key);
-            } else  if(this.nextCharEquals('/')) {
-                subgraph.addComment(this.readComment());
-            } else if(this.nextCharEquals('~')) {
+                handler.onHook(label, key, node);
+            } else if (ch == '/') {
+                if (this.filter == null || this.filter.getComments()) {
+                    handler.onComment(lexer.readComment());
+                } else {
+                    lexer.skipComment();
+                }
+            } else if (ch == '~') {
                 this.readBoundary();
+                handler.onBoundary();
                 endOfSubgraph = true;
-            } else if(this.hasMore()) {
-                throw error("Unexpected character " + this.peek());
+            } else {
+                throw error("Unexpected character " + (char) ch);
             }
-            this.readWhitespace();
+            lexer.skipWhitespace();
         }
+    }
+
+    public Subgraph readSubgraph() throws IOException {
+        logger.info("Reading subgraph...");
+        long t0 = System.currentTimeMillis();
+        SubgraphBuilder builder = new SubgraphBuilder();
+        this.parseSubgraph(this.filter == null ? builder : new FilteringHandler(this.filter, builder));
+        Subgraph subgraph = builder.getSubgraph();
+        // finish read
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Read subgraph with %d nodes and %d relationships in %dms",
+                subgraph.order(), subgraph.size(), t1));
+        return subgraph;
+    }
+
+    /**
+     * Read the next subgraph into a SpillingSubgraph, which may spill to
+     * disk as it grows.
+     */
+    public void readSubgraph(SpillingSubgraph subgraph) throws IOException {
+        logger.info("Reading subgraph...");
+        long t0 = System.currentTimeMillis();
+        SpillingSubgraphBuilder builder = new SpillingSubgraphBuilder(subgraph);
+        this.parseSubgraph(this.filter == null ? builder : new FilteringHandler(this.filter, builder));
+        // finish read
+        long t1 = System.currentTimeMillis() - t0;
+        logger.info(String.format("Read subgraph with %d relationships in %dms", subgraph.size(), t1));
+    }
+
+    /**
+     * Read the next subgraph into a CompactSubgraph.
+     */
+    public CompactSubgraph readCompactSubgraph() throws IOException {
+        logger.info("Reading subgraph...");
+        long t0 = System.currentTimeMillis();
+        CompactSubgraphBuilder builder = new CompactSubgraphBuilder();
+        this.parseSubgraph(this.filter == null ? builder : new FilteringHandler(this.filter, builder));
+        CompactSubgraph subgraph = builder.getSubgraph();
         // finish read
         long t1 = System.currentTimeMillis() - t0;
         logger.info(String.format("Read subgraph with %d nodes and %d relationships in %dms",
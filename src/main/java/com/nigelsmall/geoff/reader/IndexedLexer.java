@@ -0,0 +1,444 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Second stage of structural parsing: a lexer that takes the extent of
+ * every string and comment from a StructuralIndex instead of scanning for
+ * it. Strings are decoded in one step between their quotes, comments are
+ * stepped over in one jump, and names are only scanned up to the next
+ * structural character. Line numbers are only worked out if an error is
+ * reported.
+ */
+final class IndexedLexer extends GeoffLexer {
+
+    final private StructuralIndex index;
+    final private ByteBuffer data;
+    final private byte[] array;
+    final private int arrayOffset;
+    final private int end;
+    private int position;
+    private int entry;
+    private byte[] scratch;
+
+    IndexedLexer(StructuralIndex index) {
+        this(index, 0, index.length());
+    }
+
+    /**
+     * Lex a range of the indexed data only.
+     */
+    IndexedLexer(StructuralIndex index, int start, int end) {
+        this.index = index;
+        this.data = index.getData();
+        if (this.data.hasArray()) {
+            this.array = this.data.array();
+            this.arrayOffset = this.data.arrayOffset();
+        } else {
+            this.array = null;
+            this.arrayOffset = 0;
+        }
+        this.position = start;
+        this.end = end;
+        this.entry = index.entryAt(start);
+    }
+
+    private byte byteAt(int i) {
+        return this.array == null ? this.data.get(i) : this.array[this.arrayOffset + i];
+    }
+
+    private String decode(int start, int end) {
+        return this.decode(start, end, null);
+    }
+
+    private String decode(int start, int end, StringPool pool) {
+        if (this.array != null) {
+            return this.newString(this.array, this.arrayOffset + start, this.arrayOffset + end, pool);
+        } else {
+            return this.newString(this.copy(start, end), 0, end - start, pool);
+        }
+    }
+
+    private byte[] copy(int start, int end) {
+        int length = end - start;
+        if (this.scratch == null || this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, 256)];
+        }
+        ByteBuffer slice = this.data.duplicate();
+        slice.position(start);
+        slice.get(this.scratch, 0, length);
+        return this.scratch;
+    }
+
+    /**
+     * The entry for the structural character at the current position, or
+     * for the next one after it.
+     */
+    private int nextEntry() {
+        int size = this.index.size();
+        while (this.entry < size && this.index.get(this.entry) < this.position) {
+            this.entry++;
+        }
+        return this.entry;
+    }
+
+    private int nextStructural() {
+        int entry = this.nextEntry();
+        return entry < this.index.size() ? Math.min(this.index.get(entry), this.end) : this.end;
+    }
+
+    @Override
+    int getLineNo() {
+        int lineNo = 0;
+        for (int i = 0; i < this.position; i++) {
+            if (this.byteAt(i) == '\n') {
+                lineNo++;
+            }
+        }
+        return lineNo;
+    }
+
+    @Override
+    int getColumn() {
+        int column = 0;
+        for (int i = this.position - 1; i >= 0; i--) {
+            byte b = this.byteAt(i);
+            if (b == '\n') {
+                break;
+            }
+            column += Utf8.charCount(b);
+        }
+        return column;
+    }
+
+    @Override
+    GeoffReaderException error(String msg) {
+        return new GeoffReaderException(msg, this.getLineNo(), this.getColumn());
+    }
+
+    /**
+     * @return the decoded char in the low 16 bits and the number of bytes
+     *         it occupies in the high bits
+     */
+    private int decode() {
+        int lead = this.byteAt(this.position) & 0xFF;
+        int length = Utf8.sequenceLength(lead);
+        if (length == 1 || this.position + length > this.end) {
+            return (1 << 16) | Utf8.MALFORMED;
+        }
+        int cp = lead & (0xFF >> (length + 1));
+        for (int i = 1; i < length; i++) {
+            int b = this.byteAt(this.position + i) & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                return (1 << 16) | Utf8.MALFORMED;
+            }
+            cp = (cp << 6) | (b & 0x3F);
+        }
+        if (cp > 0xFFFF) {
+            return (length << 16) | Character.highSurrogate(cp);
+        } else {
+            return (length << 16) | cp;
+        }
+    }
+
+    @Override
+    int peek() {
+        if (this.position < this.end) {
+            int b = this.byteAt(this.position);
+            if (b >= 0) {
+                return b;
+            } else {
+                return this.decode() & 0xFFFF;
+            }
+        } else {
+            return END_OF_DATA;
+        }
+    }
+
+    @Override
+    boolean hasMore() {
+        return this.position < this.end;
+    }
+
+    @Override
+    boolean nextCharEquals(char ch) {
+        return this.position < this.end && this.byteAt(this.position) == ch;
+    }
+
+    @Override
+    void readChar(char ch) throws IOException {
+        if (this.nextCharEquals(ch)) {
+            this.position++;
+        } else {
+            throw error("Unexpected character");
+        }
+    }
+
+    @Override
+    void skipWhitespace() {
+        while (this.position < this.end) {
+            int b = this.byteAt(this.position);
+            if (b >= 0) {
+                if (isWhitespace((char) b)) {
+                    this.position++;
+                } else {
+                    return;
+                }
+            } else {
+                int decoded = this.decode();
+                if (isWhitespace((char) decoded)) {
+                    this.position += decoded >>> 16;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    String readWhitespace() {
+        int start = this.position;
+        this.skipWhitespace();
+        return this.decode(start, this.position);
+    }
+
+    @Override
+    String readName() throws IOException {
+        if (this.nextCharEquals('"')) {
+            return this.readString(this.namePool);
+        }
+        // names never contain structural characters
+        int start = this.position;
+        int bound = this.nextStructural();
+        while (this.position < bound) {
+            int b = this.byteAt(this.position);
+            if (b >= 0) {
+                if (isNameChar((char) b)) {
+                    this.position++;
+                } else {
+                    break;
+                }
+            } else {
+                int decoded = this.decode();
+                if (Character.isLetterOrDigit((char) decoded)) {
+                    this.position += decoded >>> 16;
+                } else {
+                    break;
+                }
+            }
+        }
+        return this.decode(start, this.position, this.namePool);
+    }
+
+    @Override
+    String readString(StringPool pool) throws IOException {
+        if (!this.nextCharEquals('"')) {
+            throw error("Unexpected character");
+        }
+        int closing = this.nextEntry() + 1;
+        if (closing >= this.index.size() || this.index.get(closing) >= this.end) {
+            throw this.stringError(this.position, this.end);
+        }
+        int start = this.position;
+        int end = this.index.get(closing) + 1;
+        this.position = end;
+        this.entry = closing + 1;
+        if (this.index.isEscaped(closing)) {
+            int length = end - start - 2;
+            char[] chars = this.chars(length);
+            int n;
+            if (this.array != null) {
+                n = Json.unescape(this.array, this.arrayOffset + start + 1, this.arrayOffset + end - 1, chars);
+            } else {
+                n = Json.unescape(this.copy(start + 1, end - 1), 0, length, chars);
+            }
+            if (n < 0) {
+                throw this.stringError(start, end);
+            }
+            return newString(chars, 0, n, pool);
+        } else {
+            return this.decode(start + 1, end - 1, pool);
+        }
+    }
+
+    /**
+     * Reports a bad string where a scanning lexer would have found the
+     * problem: at the first raw control character, or else at the end.
+     */
+    private GeoffReaderException stringError(int start, int end) {
+        this.position = end;
+        for (int i = start + 1; i < end; i++) {
+            byte b = this.byteAt(i);
+            if (b == '\\') {
+                i++;
+            } else if (b >= 0 && b < ' ') {
+                this.position = i;
+                break;
+            }
+        }
+        return error("Unable to parse JSON string");
+    }
+
+    private void skipDigits() {
+        while (this.position < this.end) {
+            int b = this.byteAt(this.position);
+            if (b >= '0' && b <= '9') {
+                this.position++;
+            } else if (b < 0) {
+                int decoded = this.decode();
+                if (Character.isDigit((char) decoded)) {
+                    this.position += decoded >>> 16;
+                } else {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    Number readNumber() {
+        int start = this.position;
+        boolean isReal = false;
+        if (this.nextCharEquals('-')) {
+            this.position++;
+        }
+        this.skipDigits();
+        if (this.nextCharEquals('.')) {
+            isReal = true;
+            this.position++;
+            this.skipDigits();
+        }
+        int ch = this.peek();
+        if (ch == 'E' || ch == 'e') {
+            isReal = true;
+            this.position++;
+            ch = this.peek();
+            if (ch == '+' || ch == '-') {
+                this.position++;
+            }
+            this.skipDigits();
+        }
+        Number n;
+        if (this.array != null) {
+            n = Json.parseNumber(this.array, this.arrayOffset + start, this.arrayOffset + this.position, this.chars(32));
+        } else {
+            n = Json.parseNumber(this.copy(start, this.position), 0, this.position - start, this.chars(32));
+        }
+        if (n != null) {
+            return n;
+        }
+        return parseNumber(this.decode(start, this.position), isReal);
+    }
+
+    @Override
+    String readRawPropertyMap() throws IOException {
+        if (!this.nextCharEquals('{')) {
+            throw error("Unexpected character");
+        }
+        int start = this.position;
+        this.scanNested();
+        return this.decode(start, this.position);
+    }
+
+    @Override
+    void skipNested() throws IOException {
+        if (!this.nextCharEquals('{') && !this.nextCharEquals('[')) {
+            throw error("Unexpected character");
+        }
+        this.scanNested();
+    }
+
+    private void scanNested() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        while (this.position < this.end) {
+            byte b = this.byteAt(this.position++);
+            if (inString) {
+                if (b == '\\') {
+                    this.position++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        this.position = this.end;
+        throw error("Unterminated property map");
+    }
+
+    @Override
+    void skipString() throws IOException {
+        if (!this.nextCharEquals('"')) {
+            throw error("Unexpected character");
+        }
+        int closing = this.nextEntry() + 1;
+        if (closing >= this.index.size() || this.index.get(closing) >= this.end) {
+            throw this.stringError(this.position, this.end);
+        }
+        this.position = this.index.get(closing) + 1;
+        this.entry = closing + 1;
+    }
+
+    @Override
+    void skipComment() throws IOException {
+        this.position = this.commentEnd() + 1;
+    }
+
+    /**
+     * Finds the end of the comment at the current position from the
+     * index, or throws if there is no comment here.
+     */
+    private int commentEnd() throws IOException {
+        int opening = this.nextEntry();
+        this.readChar('/');
+        this.readChar('*');
+        int closing = opening + 1;
+        if (closing >= this.index.size() || this.index.get(closing) >= this.end) {
+            this.position = this.end;
+            throw error("Unterminated comment");
+        }
+        return this.index.get(closing);
+    }
+
+    @Override
+    String readComment() throws IOException {
+        int start = this.position + 2;
+        int end = this.commentEnd();
+        this.position = end + 1;
+        end--;
+        while (start < end && (this.byteAt(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (this.byteAt(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        return this.decode(start, end);
+    }
+
+}
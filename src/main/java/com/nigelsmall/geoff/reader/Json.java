@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+/**
+ * Decoding of JSON string and number literals straight out of a lexer's
+ * buffer, in a single pass and without intermediate objects. Strings are
+ * decoded with exactly the escapes that strict JSON allows.
+ */
+final class Json {
+
+    /**
+     * Beyond this many significant digits a number is left to the JDK.
+     */
+    final private static int MAX_DIGITS = 18;
+
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    final private static double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = 10.0 * POWERS_OF_TEN[i - 1];
+        }
+    }
+
+    private Json() {
+    }
+
+    /**
+     * Decodes the escape sequence character following a backslash, or
+     * returns -1 if it is not a valid JSON escape. A <code>u</code> is
+     * returned as is.
+     */
+    private static int unescape(int ch) {
+        switch (ch) {
+            case '"':
+            case '\\':
+            case '/':
+            case 'u':
+                return ch;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                return -1;
+        }
+    }
+
+    private static int hexDigit(int ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        } else if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        } else if (ch >= 'A' && ch <= 'F') {
+            return ch - 'A' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes the body of a string literal, between but excluding its
+     * quotes, into a buffer at least as long as the body.
+     *
+     * @return the number of chars decoded, or -1 if the literal is not
+     *         valid JSON
+     */
+    static int unescape(char[] in, int start, int end, char[] out) {
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char ch = in[i];
+            if (ch == '\\') {
+                if (++i == end) {
+                    return -1;
+                }
+                int escaped = unescape(in[i]);
+                if (escaped == 'u') {
+                    if (i + 4 >= end) {
+                        return -1;
+                    }
+                    int cp = 0;
+                    for (int j = 1; j <= 4; j++) {
+                        int digit = hexDigit(in[i + j]);
+                        if (digit < 0) {
+                            return -1;
+                        }
+                        cp = (cp << 4) | digit;
+                    }
+                    out[n++] = (char) cp;
+                    i += 4;
+                } else if (escaped < 0) {
+                    return -1;
+                } else {
+                    out[n++] = (char) escaped;
+                }
+            } else if (ch < ' ') {
+                return -1;
+            } else {
+                out[n++] = ch;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes the UTF-8 body of a string literal, between but excluding
+     * its quotes, into a buffer at least as long as the body.
+     *
+     * @return the number of chars decoded, or -1 if the literal is not
+     *         valid JSON
+     */
+    static int unescape(byte[] in, int start, int end, char[] out) {
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            int b = in[i];
+            if (b == '\\') {
+                if (++i == end) {
+                    return -1;
+                }
+                int escaped = unescape(in[i]);
+                if (escaped == 'u') {
+                    if (i + 4 >= end) {
+                        return -1;
+                    }
+                    int cp = 0;
+                    for (int j = 1; j <= 4; j++) {
+                        int digit = hexDigit(in[i + j]);
+                        if (digit < 0) {
+                            return -1;
+                        }
+                        cp = (cp << 4) | digit;
+                    }
+                    out[n++] = (char) cp;
+                    i += 5;
+                } else if (escaped < 0) {
+                    return -1;
+                } else {
+                    out[n++] = (char) escaped;
+                    i++;
+                }
+            } else if (b < 0) {
+                // multi-byte sequences never contain ASCII bytes, so each
+                // run of non-ASCII bytes can be decoded on its own
+                int j = i + 1;
+                while (j < end && in[j] < 0) {
+                    j++;
+                }
+                n = Utf8.decode(in, i, j, out, n);
+                i = j;
+            } else if (b < ' ') {
+                return -1;
+            } else {
+                out[n++] = (char) b;
+                i++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes a number literal as an Integer, or a Long if it does not fit
+     * in an int, if it has neither a fraction nor an exponent, or as a
+     * Double otherwise. Returns null if the
+     * literal is better left to GeoffLexer.parseNumber,
+     * either because it is malformed or out of range or because it cannot
+     * be decoded exactly here.
+     */
+    static Number parseNumber(char[] in, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && in[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean real = false;
+        int digitsStart = i;
+        while (i < end && in[i] >= '0' && in[i] <= '9') {
+            if (mantissa != 0 || in[i] != '0') {
+                if (++digits > MAX_DIGITS) {
+                    return null;
+                }
+            }
+            mantissa = 10 * mantissa + (in[i] - '0');
+            i++;
+        }
+        boolean anyDigits = i > digitsStart;
+        if (i < end && in[i] == '.') {
+            real = true;
+            i++;
+            int fractionStart = i;
+            while (i < end && in[i] >= '0' && in[i] <= '9') {
+                if (mantissa != 0 || in[i] != '0') {
+                    if (++digits > MAX_DIGITS) {
+                        return null;
+                    }
+                }
+                mantissa = 10 * mantissa + (in[i] - '0');
+                exponent--;
+                i++;
+            }
+            anyDigits |= i > fractionStart;
+        }
+        if (!anyDigits) {
+            return null;
+        }
+        if (i < end && (in[i] == 'e' || in[i] == 'E')) {
+            real = true;
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (in[i] == '+' || in[i] == '-')) {
+                negativeExponent = in[i] == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int e = 0;
+            while (i < end && in[i] >= '0' && in[i] <= '9') {
+                if (e < 10000) {
+                    e = 10 * e + (in[i] - '0');
+                }
+                i++;
+            }
+            if (i == exponentStart) {
+                return null;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end) {
+            return null;
+        }
+        if (!real) {
+            // at most MAX_DIGITS digits, so always within a long
+            long value = negative ? -mantissa : mantissa;
+            if (value == (int) value) {
+                return (int) value;
+            } else {
+                return value;
+            }
+        }
+        // both the mantissa and the power of ten are exact, so a single
+        // multiplication or division is correctly rounded
+        if (digits > 15 || exponent < -22 || exponent > 22) {
+            return null;
+        }
+        double value = (double) mantissa;
+        if (exponent < 0) {
+            value /= POWERS_OF_TEN[-exponent];
+        } else {
+            value *= POWERS_OF_TEN[exponent];
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * As parseNumber(char[], int, int), for ASCII bytes. The scratch
+     * buffer is used to hold a copy of the literal.
+     */
+    static Number parseNumber(byte[] in, int start, int end, char[] scratch) {
+        int length = end - start;
+        if (length > scratch.length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = in[start + i];
+            if (b < 0) {
+                return null;
+            }
+            scratch[i] = (char) b;
+        }
+        return parseNumber(scratch, 0, length);
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads a UTF-8 Geoff document on a fork-join pool, in one of two ways.
+ * Every subgraph can be read at once, with the subgraphs parsed
+ * concurrently and returned in document order. Alternatively a single
+ * large subgraph can be split into chunks of whole elements, which are
+ * parsed concurrently and then merged. Split points are found from the
+ * structural index of the document, so nothing within strings or
+ * comments is ever mistaken for one. Either way the results are the same
+ * as a GeoffReader would produce.
+ */
+public class ParallelGeoffReader {
+
+    /**
+     * Subgraphs smaller than this are not worth splitting any further.
+     */
+    final private static int MIN_CHUNK_SIZE = 65536;
+
+    final private StructuralIndex index;
+    final private StringPool namePool = new StringPool();
+
+    public ParallelGeoffReader(ByteBuffer buffer) {
+        this(StructuralIndex.build(buffer));
+    }
+
+    public ParallelGeoffReader(byte[] bytes) {
+        this(StructuralIndex.build(bytes));
+    }
+
+    public ParallelGeoffReader(StructuralIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Byte offsets at which each subgraph starts, followed by the length
+     * of the document. A subgraph ends just after its boundary marker.
+     */
+    int[] getSubgraphOffsets() {
+        StructuralIndex index = this.index;
+        ByteBuffer data = index.getData();
+        int length = index.length();
+        int[] offsets = new int[16];
+        int count = 1;
+        int size = index.size();
+        int entry = 0;
+        while (entry < size) {
+            int position = index.get(entry);
+            if (data.get(position) != '~') {
+                entry++;
+                continue;
+            }
+            int run = 1;
+            while (entry + run < size && index.get(entry + run) == position + run
+                    && data.get(position + run) == '~') {
+                run++;
+            }
+            entry += run;
+            if (run < 4) {
+                continue;
+            }
+            // trailing whitespace after the last boundary does not start
+            // another subgraph
+            int next = position + run;
+            int i = next;
+            while (i < length && GeoffLexer.isWhitespace((char) data.get(i))) {
+                i++;
+            }
+            if (i < length) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * count);
+                }
+                offsets[count++] = next;
+            }
+        }
+        if (length == 0) {
+            return new int[] {length};
+        }
+        offsets = Arrays.copyOf(offsets, count + 1);
+        offsets[count] = length;
+        return offsets;
+    }
+
+    /**
+     * Byte offsets at which each chunk of a subgraph starts, followed by
+     * the end of the subgraph. Chunks are split just before a node or
+     * comment that starts a line outside of any brackets, which is always
+     * the start of a new element.
+     */
+    int[] getChunkOffsets(int start, int end, int chunks) {
+        StructuralIndex index = this.index;
+        ByteBuffer data = index.getData();
+        int[] offsets = new int[chunks + 1];
+        offsets[0] = start;
+        int count = 1;
+        long target = start + (long) (end - start) / chunks;
+        int depth = 0;
+        int size = index.size();
+        for (int entry = index.entryAt(start); entry < size && count < chunks; entry++) {
+            int position = index.get(entry);
+            if (position >= end) {
+                break;
+            }
+            switch (data.get(position)) {
+                case '(':
+                case '[':
+                case '{':
+                    depth++;
+                    break;
+                case ')':
+                case ']':
+                case '}':
+                    depth--;
+                    break;
+                case '\n':
+                    if (depth == 0 && position >= target) {
+                        int i = position + 1;
+                        while (i < end && GeoffLexer.isWhitespace((char) data.get(i))) {
+                            i++;
+                        }
+                        if (i < end && (data.get(i) == '(' || data.get(i) == '/')) {
+                            offsets[count++] = i;
+                            target = start + (long) (end - start) * count / chunks;
+                        }
+                    }
+                    break;
+            }
+        }
+        offsets = Arrays.copyOf(offsets, count + 1);
+        offsets[count] = end;
+        return offsets;
+    }
+
+    /**
+     * Read the first subgraph of the document, splitting it into chunks
+     * to be parsed concurrently.
+     */
+    public Subgraph readSubgraph() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return this.readSubgraph(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public Subgraph readSubgraph(ForkJoinPool pool) throws IOException {
+        int length = this.index.length();
+        return this.readSubgraph(pool, Math.max(1, Math.min(4 * pool.getParallelism(), length / MIN_CHUNK_SIZE)));
+    }
+
+    Subgraph readSubgraph(ForkJoinPool pool, int chunks) throws IOException {
+        int[] subgraphOffsets = this.getSubgraphOffsets();
+        int start = subgraphOffsets[0];
+        int end = subgraphOffsets.length > 1 ? subgraphOffsets[1] : start;
+        int[] offsets = this.getChunkOffsets(start, end, chunks);
+        try {
+            return pool.invoke(new ChunkTask(offsets, 0, offsets.length - 1));
+        } catch (ParseFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    public List<Subgraph> readSubgraphs() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return this.readSubgraphs(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public List<Subgraph> readSubgraphs(ForkJoinPool pool) throws IOException {
+        int[] offsets = this.getSubgraphOffsets();
+        if (offsets.length == 1) {
+            return new ArrayList<>();
+        }
+        try {
+            return pool.invoke(new ParseTask(offsets, 0, offsets.length - 1));
+        } catch (ParseFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Carries a parse error out of a fork-join task.
+     */
+    final private static class ParseFailure extends RuntimeException {
+
+        final private static long serialVersionUID = 1L;
+
+        ParseFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+
+    }
+
+    private Subgraph parse(int start, int end) {
+        try {
+            GeoffReader reader = new GeoffReader(this.index, start, end);
+            reader.setNamePool(this.namePool);
+            return reader.readSubgraph();
+        } catch (IOException e) {
+            throw new ParseFailure(e);
+        }
+    }
+
+    final private class ParseTask extends RecursiveTask<List<Subgraph>> {
+
+        final private static long serialVersionUID = 1L;
+
+        final private int[] offsets;
+        final private int low;
+        final private int high;
+
+        ParseTask(int[] offsets, int low, int high) {
+            this.offsets = offsets;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected List<Subgraph> compute() {
+            if (this.high - this.low == 1) {
+                ArrayList<Subgraph> subgraphs = new ArrayList<>(1);
+                subgraphs.add(parse(this.offsets[this.low], this.offsets[this.high]));
+                return subgraphs;
+            }
+            int middle = (this.low + this.high) >>> 1;
+            ParseTask left = new ParseTask(this.offsets, this.low, middle);
+            ParseTask right = new ParseTask(this.offsets, middle, this.high);
+            right.fork();
+            List<Subgraph> subgraphs;
+            try {
+                subgraphs = left.compute();
+            } catch (ParseFailure e) {
+                // errors are reported from the earliest failing subgraph
+                right.cancel(false);
+                throw e;
+            }
+            subgraphs.addAll(right.join());
+            return subgraphs;
+        }
+
+    }
+
+    /**
+     * Parses chunks of one subgraph and merges the results, always
+     * merging later chunks into earlier ones so that properties are
+     * overwritten in document order.
+     */
+    final private class ChunkTask extends RecursiveTask<Subgraph> {
+
+        final private static long serialVersionUID = 1L;
+
+        final private int[] offsets;
+        final private int low;
+        final private int high;
+
+        ChunkTask(int[] offsets, int low, int high) {
+            this.offsets = offsets;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected Subgraph compute() {
+            if (this.high - this.low == 1) {
+                return parse(this.offsets[this.low], this.offsets[this.high]);
+            }
+            int middle = (this.low + this.high) >>> 1;
+            ChunkTask left = new ChunkTask(this.offsets, this.low, middle);
+            ChunkTask right = new ChunkTask(this.offsets, middle, this.high);
+            right.fork();
+            Subgraph subgraph;
+            try {
+                subgraph = left.compute();
+            } catch (ParseFailure e) {
+                right.cancel(false);
+                throw e;
+            }
+            subgraph.merge(right.join());
+            return subgraph;
+        }
+
+    }
+
+}
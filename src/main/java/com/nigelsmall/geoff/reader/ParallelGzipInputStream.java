@@ -0,0 +1,574 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip data on background threads, so that reading and
+ * inflating overlap. Inflated data is handed over in buffers that are
+ * reused once they have been read.
+ *
+ * A file made up of several gzip members is inflated concurrently, one
+ * member per thread. Members are found by scanning ahead for gzip
+ * headers, each of which is inflated on its own. Anything that only
+ * looks like a header is discarded once the member before it turns out
+ * to run past it, so the data returned is exactly as GZIPInputStream
+ * would return it. A file of a single member is still inflated on a
+ * thread of its own.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    final public static int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The number of inflated buffers each member may have waiting.
+     */
+    final public static int DEFAULT_READ_AHEAD = 4;
+
+    final private static int BLOCK_SIZE = 1 << 16;
+
+    final private static int FHCRC = 2;
+    final private static int FEXTRA = 4;
+    final private static int FNAME = 8;
+    final private static int FCOMMENT = 16;
+    final private static int RESERVED = 0xE0;
+
+    final private File file;
+    final private int bufferSize;
+    final private int readAhead;
+    final private ExecutorService executor;
+    final private BlockingQueue<byte[]> free;
+    final private BlockingQueue<Member> members;
+    final private Thread scanner;
+    private Member member;
+    private Chunk chunk;
+    private int position;
+    private long expected;
+    private boolean exhausted;
+    private volatile boolean closed;
+
+    /**
+     * Inflate a file with a thread for each available processor.
+     */
+    public ParallelGzipInputStream(File file) {
+        this(file, Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_SIZE, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param threads    the number of members to inflate at once
+     * @param bufferSize the size of each inflated buffer
+     * @param readAhead  the number of inflated buffers each member may
+     *                   have waiting to be read
+     */
+    public ParallelGzipInputStream(File file, int threads, int bufferSize, int readAhead) {
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.readAhead = readAhead;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("geoff-inflate"));
+        this.free = new ArrayBlockingQueue<>((threads + 1) * (readAhead + 1));
+        this.members = new ArrayBlockingQueue<>(threads);
+        this.scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        }, "geoff-inflate-scan");
+        this.scanner.setDaemon(true);
+        this.scanner.start();
+    }
+
+    /**
+     * Inflate a stream on a single background thread. Members are
+     * inflated one after another, as the stream cannot be read ahead.
+     */
+    public ParallelGzipInputStream(final InputStream stream) {
+        this.file = null;
+        this.scanner = null;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.readAhead = DEFAULT_READ_AHEAD;
+        this.executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("geoff-inflate"));
+        this.free = new ArrayBlockingQueue<>(2 * (this.readAhead + 1));
+        this.members = new ArrayBlockingQueue<>(2);
+        final Member member = new Member(0, this.readAhead);
+        member.future = this.executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                inflate(member, stream);
+            }
+        });
+        this.members.add(member);
+        this.members.add(Member.last(Long.MAX_VALUE, null));
+    }
+
+    private byte[] allocate() {
+        byte[] buffer = this.free.poll();
+        return buffer == null ? new byte[this.bufferSize] : buffer;
+    }
+
+    /**
+     * Find every possible member start in the file, in order, and start
+     * inflating from each.
+     */
+    private void scan() {
+        IOException failure = null;
+        long length = 0;
+        try (FileChannel channel = new FileInputStream(this.file).getChannel()) {
+            length = channel.size();
+            byte[] bytes = new byte[BLOCK_SIZE + 3];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, BLOCK_SIZE);
+            long offset = 0;
+            int carry = 0;
+            int n;
+            while ((n = channel.read(buffer, offset)) > 0) {
+                int limit = carry + n;
+                for (int i = 0; i + 3 < limit; i++) {
+                    if (bytes[i] == (byte) 0x1F && bytes[i + 1] == (byte) 0x8B && bytes[i + 2] == 8
+                            && (bytes[i + 3] & RESERVED) == 0) {
+                        this.submit(offset - carry + i);
+                    }
+                }
+                // keep the last few bytes in case a header spans blocks
+                carry = Math.min(3, limit);
+                System.arraycopy(bytes, limit - carry, bytes, 0, carry);
+                offset += n;
+                buffer = ByteBuffer.wrap(bytes, carry, BLOCK_SIZE);
+            }
+        } catch (ClosedByInterruptException e) {
+            return;
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            this.members.put(Member.last(length, failure));
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void submit(long start) throws InterruptedException {
+        final Member member = new Member(start, this.readAhead);
+        member.future = this.executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                inflate(member);
+            }
+        });
+        this.members.put(member);
+    }
+
+    private void inflate(Member member) {
+        try (FileChannel channel = new FileInputStream(this.file).getChannel()) {
+            Source source = new Source(channel, member.start);
+            readHeader(source);
+            Inflater inflater = new Inflater(true);
+            try {
+                CRC32 crc = new CRC32();
+                long size = 0;
+                byte[] buffer = this.allocate();
+                int length = 0;
+                inflater.setInput(source.bytes, source.position, source.limit - source.position);
+                source.position = source.limit;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (!source.fill()) {
+                            throw new EOFException("Unexpected end of gzip member");
+                        }
+                        inflater.setInput(source.bytes, 0, source.limit);
+                        source.position = source.limit;
+                    } else if (inflater.needsDictionary()) {
+                        throw new ZipException("Unexpected dictionary in gzip member");
+                    }
+                    int n = inflater.inflate(buffer, length, buffer.length - length);
+                    crc.update(buffer, length, n);
+                    length += n;
+                    size += n;
+                    if (length == buffer.length) {
+                        member.chunks.put(new Chunk(buffer, length));
+                        buffer = this.allocate();
+                        length = 0;
+                    }
+                }
+                if (length > 0) {
+                    member.chunks.put(new Chunk(buffer, length));
+                } else {
+                    this.free.offer(buffer);
+                }
+                source.seek(source.offset + source.limit - inflater.getRemaining());
+                if (source.readInt() != (int) crc.getValue() || source.readInt() != (int) size) {
+                    throw new ZipException("Corrupt gzip member");
+                }
+                member.chunks.put(Chunk.end(source.offset + source.position));
+            } finally {
+                inflater.end();
+            }
+        } catch (ClosedByInterruptException e) {
+            // cancelled
+        } catch (InterruptedException e) {
+            // cancelled
+        } catch (IOException e) {
+            member.fail(e);
+        } catch (DataFormatException e) {
+            member.fail(new ZipException(e.getMessage()));
+        }
+    }
+
+    private void inflate(Member member, InputStream stream) {
+        try (InputStream in = new GZIPInputStream(stream, BLOCK_SIZE)) {
+            byte[] buffer = this.allocate();
+            int length = 0;
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += n;
+                if (length == buffer.length) {
+                    member.chunks.put(new Chunk(buffer, length));
+                    buffer = this.allocate();
+                    length = 0;
+                }
+            }
+            if (length > 0) {
+                member.chunks.put(new Chunk(buffer, length));
+            }
+            member.chunks.put(Chunk.end(Long.MAX_VALUE));
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            member.fail(e);
+        }
+    }
+
+    private static void readHeader(Source source) throws IOException {
+        if (source.readByte() != 0x1F || source.readByte() != 0x8B || source.readByte() != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+        int flags = source.readByte();
+        if ((flags & RESERVED) != 0) {
+            throw new ZipException("Not in gzip format");
+        }
+        // modification time, extra flags and operating system
+        source.skip(6);
+        if ((flags & FEXTRA) != 0) {
+            source.skip(source.readByte() | (source.readByte() << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            while (source.readByte() != 0) {
+                // skip
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (source.readByte() != 0) {
+                // skip
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            source.skip(2);
+        }
+    }
+
+    /**
+     * Wait for the member that starts where the last one ended, throwing
+     * away any that start before it. Returns null once there are none.
+     */
+    private Member nextMember() throws IOException {
+        while (true) {
+            Member member;
+            try {
+                member = this.members.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (member.last && member.failure != null) {
+                throw member.failure;
+            } else if (member.start < this.expected) {
+                // not a member at all, but a header lookalike within one
+                member.cancel();
+            } else if (member.start == this.expected && !member.last) {
+                return member;
+            } else if (this.expected == 0) {
+                throw new ZipException("Not in gzip format");
+            } else {
+                // as with GZIPInputStream, anything after the last
+                // member is ignored
+                this.stop();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Make the next chunk of inflated data current, or return false if
+     * there is no more.
+     */
+    private boolean nextChunk() throws IOException {
+        if (this.chunk != null) {
+            this.free.offer(this.chunk.buffer);
+            this.chunk = null;
+        }
+        while (!this.exhausted) {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+            if (this.member == null) {
+                this.member = this.nextMember();
+                if (this.member == null) {
+                    this.exhausted = true;
+                    return false;
+                }
+            }
+            Chunk chunk;
+            try {
+                chunk = this.member.chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (chunk.failure != null) {
+                throw chunk.failure;
+            } else if (chunk.buffer == null) {
+                this.expected = chunk.end;
+                this.member = null;
+            } else {
+                this.chunk = chunk;
+                this.position = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.chunk == null || this.position == this.chunk.length) {
+            if (!this.nextChunk()) {
+                return -1;
+            }
+        }
+        return this.chunk.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (this.chunk == null || this.position == this.chunk.length) {
+            if (!this.nextChunk()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, this.chunk.length - this.position);
+        System.arraycopy(this.chunk.buffer, this.position, b, off, n);
+        this.position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return this.chunk == null ? 0 : this.chunk.length - this.position;
+    }
+
+    private void stop() {
+        if (this.scanner != null) {
+            this.scanner.interrupt();
+        }
+        this.executor.shutdownNow();
+        this.members.clear();
+    }
+
+    /**
+     * Stops all inflation.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.stop();
+    }
+
+    /**
+     * Compressed data read from a position in a file, a block at a time.
+     */
+    private static class Source {
+
+        final private FileChannel channel;
+        final private byte[] bytes = new byte[BLOCK_SIZE];
+        private long offset;
+        private int position;
+        private int limit;
+
+        Source(FileChannel channel, long start) {
+            this.channel = channel;
+            this.offset = start;
+        }
+
+        /**
+         * Move on to the next block, returning false at the end of the
+         * file.
+         */
+        boolean fill() throws IOException {
+            this.offset += this.limit;
+            this.position = 0;
+            this.limit = 0;
+            int n = this.channel.read(ByteBuffer.wrap(this.bytes), this.offset);
+            if (n <= 0) {
+                return false;
+            }
+            this.limit = n;
+            return true;
+        }
+
+        void seek(long offset) {
+            this.offset = offset;
+            this.position = 0;
+            this.limit = 0;
+        }
+
+        int readByte() throws IOException {
+            if (this.position == this.limit && !this.fill()) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            return this.bytes[this.position++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return this.readByte() | (this.readByte() << 8) | (this.readByte() << 16) | (this.readByte() << 24);
+        }
+
+        void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                this.readByte();
+            }
+        }
+
+    }
+
+    /**
+     * A possible member, with the chunks inflated from it so far.
+     */
+    private static class Member {
+
+        final private long start;
+        final private BlockingQueue<Chunk> chunks;
+        final private boolean last;
+        private IOException failure;
+        private volatile Future<?> future;
+
+        Member(long start, int readAhead) {
+            this.start = start;
+            this.chunks = new ArrayBlockingQueue<>(readAhead);
+            this.last = false;
+        }
+
+        private Member(long end, IOException failure) {
+            this.start = end;
+            this.chunks = null;
+            this.last = true;
+            this.failure = failure;
+        }
+
+        /**
+         * Marks the end of the file, and any failure in scanning it.
+         */
+        static Member last(long end, IOException failure) {
+            return new Member(end, failure);
+        }
+
+        void fail(IOException failure) {
+            try {
+                this.chunks.put(Chunk.failed(failure));
+            } catch (InterruptedException e) {
+                // cancelled
+            }
+        }
+
+        void cancel() {
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+    }
+
+    private static class Chunk {
+
+        final private byte[] buffer;
+        final private int length;
+        private long end;
+        private IOException failure;
+
+        Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        /**
+         * Marks the end of a member, at the offset just after it.
+         */
+        static Chunk end(long end) {
+            Chunk chunk = new Chunk(null, 0);
+            chunk.end = end;
+            return chunk;
+        }
+
+        static Chunk failed(IOException failure) {
+            Chunk chunk = new Chunk(null, 0);
+            chunk.failure = failure;
+            return chunk;
+        }
+
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        final private String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.name);
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
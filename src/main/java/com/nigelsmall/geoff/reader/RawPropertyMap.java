@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A property map held as its Geoff text, to be decoded only when it is
+ * first needed. Any error in the text is only found on decoding, and is
+ * reported relative to the start of the map.
+ */
+public class RawPropertyMap {
+
+    final private String text;
+    final private StringPool namePool;
+    final private StringPool valuePool;
+    final private GeoffFilter filter;
+
+    RawPropertyMap(String text, StringPool namePool, StringPool valuePool, GeoffFilter filter) {
+        this.text = text;
+        this.namePool = namePool;
+        this.valuePool = valuePool;
+        this.filter = filter;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * Decode the text into a new map, sharing names and values through
+     * the pools of the reader that read it and keeping only the keys
+     * that its filter keeps.
+     *
+     * @throws IllegalStateException if the text is not a valid property map
+     */
+    public Map<String, Object> decode() {
+        GeoffReader reader = new GeoffReader(this.text);
+        reader.setNamePool(this.namePool);
+        reader.setValuePool(this.valuePool);
+        reader.setFilter(this.filter);
+        try {
+            return reader.readPropertyMap(null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decode properties", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+
+}
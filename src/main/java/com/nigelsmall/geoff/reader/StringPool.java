@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of Strings used by the lexers to share a single instance of
+ * each label, type, key or other string that is read over and over again.
+ * Strings are looked up straight from the lexer's buffer, so a repeat
+ * costs no allocation at all.
+ *
+ * The pool is a set-associative table, so its size never grows beyond
+ * the capacity given. Within each set, a string that is found again moves
+ * to the front while a new string goes into the middle, displacing only
+ * the least recently used half of the set. A stream of strings that are
+ * never seen twice therefore cannot push out those that keep recurring.
+ *
+ * A pool may be shared between threads. Concurrent updates may now and
+ * then lose an entry, but a lookup can never return the wrong string.
+ * Hits and misses are counted exactly.
+ */
+public class StringPool {
+
+    final public static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Longer strings are never pooled.
+     */
+    final public static int MAX_LENGTH = 64;
+
+    final private static int WAYS = 4;
+
+    final private int mask;
+    private String[] entries;
+    final private AtomicLong hits = new AtomicLong();
+    final private AtomicLong misses = new AtomicLong();
+
+    public StringPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of strings to hold, rounded up to
+     *                 a power of two
+     */
+    public StringPool(int capacity) {
+        int n = (capacity + WAYS - 1) / WAYS;
+        int sets = n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+        this.mask = sets - 1;
+    }
+
+    public int getCapacity() {
+        return (this.mask + 1) * WAYS;
+    }
+
+    /**
+     * The number of lookups that found a pooled string, which is the
+     * number of String allocations saved.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the pooled string with the given content, adding it to the
+     * pool if not already there.
+     */
+    public String intern(char[] chars, int start, int length) {
+        if (length > MAX_LENGTH) {
+            return new String(chars, start, length);
+        }
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        String[] entries = this.entries;
+        if (entries == null) {
+            // allocated on first use, so that an unused pool costs nothing
+            entries = this.entries = new String[this.getCapacity()];
+        }
+        int set = ((hash ^ (hash >>> 16)) & this.mask) * WAYS;
+        for (int way = 0; way < WAYS; way++) {
+            String s = entries[set + way];
+            if (s == null) {
+                break;
+            }
+            if (s.hashCode() == hash && equals(s, chars, start, length)) {
+                if (way > 0) {
+                    System.arraycopy(entries, set, entries, set + 1, way);
+                    entries[set] = s;
+                }
+                this.hits.incrementAndGet();
+                return s;
+            }
+        }
+        String s = new String(chars, start, length);
+        int way = 0;
+        while (way < WAYS && entries[set + way] != null) {
+            way++;
+        }
+        if (way == WAYS) {
+            // a full set: drop the last entry and insert in the middle
+            way = WAYS / 2;
+            System.arraycopy(entries, set + way, entries, set + way + 1, WAYS - way - 1);
+        }
+        entries[set + way] = s;
+        this.misses.incrementAndGet();
+        return s;
+    }
+
+    public String intern(String s) {
+        return this.intern(s.toCharArray(), 0, s.length());
+    }
+
+    private static boolean equals(String s, char[] chars, int start, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
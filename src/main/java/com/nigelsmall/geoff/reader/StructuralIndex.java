@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Positions of the structural characters in a UTF-8 Geoff document:
+ * <code>( ) [ ] { } : , ! ~ \n</code> outside of strings and comments,
+ * both quotes of every string and the first and last slash of every
+ * comment. Everything inside strings and comments is masked out, so the
+ * entry after an opening quote is always its closing quote and the entry
+ * after a comment's opening slash is always its closing slash.
+ *
+ * The index is built in a single pass over 64-byte blocks. Each block is
+ * read as eight 64-bit words which are classified with SWAR bit tricks
+ * and reduced to one bit per byte; string spans are then masked with a
+ * prefix XOR over the quote bits. Blocks containing backslashes, control
+ * characters within strings or comments fall back to a byte-at-a-time
+ * state machine.
+ */
+public final class StructuralIndex {
+
+    final private static long ONES = 0x0101010101010101L;
+    final private static long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    final private static long HIGH = 0x8080808080808080L;
+    final private static long MOVEMASK = 0x0102040810204080L;
+
+    final private static long QUOTE = '"' * ONES;
+    final private static long BACKSLASH = '\\' * ONES;
+    final private static long SLASH = '/' * ONES;
+    final private static long STAR = '*' * ONES;
+    final private static long CASE = 0x20 * ONES;
+    final private static long PAIR = 0xFEFEFEFEFEFEFEFEL;
+    final private static long OPEN_BRACE = '{' * ONES;
+    final private static long CLOSE_BRACE = '}' * ONES;
+    final private static long PARENTHESIS = '(' * ONES;
+    final private static long COLON = ':' * ONES;
+    final private static long COMMA = ',' * ONES;
+    final private static long BANG = '!' * ONES;
+    final private static long TILDE = '~' * ONES;
+    final private static long NEWLINE = '\n' * ONES;
+    final private static long CONTROL = (0x80 - 0x20) * ONES;
+
+    final private static byte[] STRUCTURAL = new byte[256];
+
+    static {
+        for (char ch : "()[]{}:,!~\n".toCharArray()) {
+            STRUCTURAL[ch] = 1;
+        }
+    }
+
+    final private ByteBuffer data;
+    private int[] positions;
+    private long[] escaped;
+    private int size;
+
+    // scanner state carried between blocks
+    private boolean inString;
+    private boolean inComment;
+    private boolean escapeNext;
+    private boolean stringEscaped;
+    private boolean commentStar;
+
+    private StructuralIndex(ByteBuffer data) {
+        this.data = data;
+        int capacity = Math.max(16, data.limit() / 8);
+        this.positions = new int[capacity];
+        this.escaped = new long[(capacity + 63) / 64];
+    }
+
+    /**
+     * Build an index over the remaining bytes of a buffer. Positions are
+     * relative to the buffer's current position.
+     */
+    public static StructuralIndex build(ByteBuffer buffer) {
+        StructuralIndex index = new StructuralIndex(buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+        index.scan();
+        return index;
+    }
+
+    public static StructuralIndex build(byte[] bytes) {
+        return build(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * The indexed bytes, positioned at zero.
+     */
+    public ByteBuffer getData() {
+        return this.data.duplicate();
+    }
+
+    public int length() {
+        return this.data.limit();
+    }
+
+    /**
+     * The number of entries in the index.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public int get(int entry) {
+        return this.positions[entry];
+    }
+
+    /**
+     * Whether the string closed by this entry contains escapes or control
+     * characters, and so cannot simply be decoded as it stands.
+     */
+    public boolean isEscaped(int entry) {
+        return (this.escaped[entry >>> 6] & (1L << entry)) != 0;
+    }
+
+    /**
+     * The first entry at or after a byte position.
+     */
+    public int entryAt(int position) {
+        int entry = Arrays.binarySearch(this.positions, 0, this.size, position);
+        return entry >= 0 ? entry : -entry - 1;
+    }
+
+    private void add(int position) {
+        if (this.size == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, 2 * this.size);
+            this.escaped = Arrays.copyOf(this.escaped, (2 * this.size + 63) / 64);
+        }
+        this.positions[this.size++] = position;
+    }
+
+    private void addClosingQuote(int position) {
+        if (this.stringEscaped) {
+            this.escaped[this.size >>> 6] |= 1L << this.size;
+            this.stringEscaped = false;
+        }
+        this.add(position);
+    }
+
+    /**
+     * Flags each byte of a word that equals the corresponding byte of the
+     * pattern by clearing bit 7 of that byte; all other bits are set.
+     */
+    private static long ne(long word, long pattern) {
+        long v = word ^ pattern;
+        return ((v & LOW7) + LOW7) | v;
+    }
+
+    /**
+     * Gathers bit 7 of each byte into the low eight bits.
+     */
+    private static long movemask(long bits) {
+        return (((bits & HIGH) >>> 7) * MOVEMASK) >>> 56;
+    }
+
+    private static long prefixXor(long bits) {
+        bits ^= bits << 1;
+        bits ^= bits << 2;
+        bits ^= bits << 4;
+        bits ^= bits << 8;
+        bits ^= bits << 16;
+        bits ^= bits << 32;
+        return bits;
+    }
+
+    private void scan() {
+        ByteBuffer data = this.data;
+        int length = data.limit();
+        int i = 0;
+        while (i + 64 <= length) {
+            if (this.inComment) {
+                if (!this.commentStar && !this.containsStar(i)) {
+                    i += 64;
+                } else {
+                    i = this.scanBytes(i, i + 64);
+                }
+                continue;
+            }
+            if (this.escapeNext) {
+                i = this.scanBytes(i, i + 64);
+                continue;
+            }
+            long quotes = 0, backslashes = 0, slashes = 0, structurals = 0, controls = 0;
+            for (int w = 0; w < 8; w++) {
+                long word = data.getLong(i + 8 * w);
+                long cased = word | CASE;
+                long paired = word & PAIR;
+                long other = ne(cased, OPEN_BRACE) & ne(cased, CLOSE_BRACE) & ne(paired, PARENTHESIS)
+                        & ne(word, COLON) & ne(word, COMMA) & ne(word, BANG) & ne(word, TILDE) & ne(word, NEWLINE);
+                int shift = 8 * w;
+                quotes |= movemask(~ne(word, QUOTE)) << shift;
+                backslashes |= movemask(~ne(word, BACKSLASH)) << shift;
+                slashes |= movemask(~ne(word, SLASH)) << shift;
+                structurals |= movemask(~other) << shift;
+                controls |= movemask(~(((word & LOW7) + CONTROL) | word)) << shift;
+            }
+            long strings = prefixXor(quotes) ^ (this.inString ? -1L : 0L);
+            if (backslashes != 0 || (slashes & ~strings) != 0 || (controls & strings & ~quotes) != 0) {
+                i = this.scanBytes(i, i + 64);
+                continue;
+            }
+            long bits = (structurals & ~strings) | quotes;
+            boolean closing = this.inString;
+            while (bits != 0) {
+                int position = i + Long.numberOfTrailingZeros(bits);
+                if (closing && data.get(position) == '"') {
+                    this.addClosingQuote(position);
+                    closing = false;
+                } else {
+                    this.add(position);
+                }
+                bits &= bits - 1;
+            }
+            this.inString = strings < 0;
+            i += 64;
+        }
+        this.scanBytes(i, length);
+    }
+
+    private boolean containsStar(int i) {
+        long stars = 0;
+        for (int w = 0; w < 8; w++) {
+            stars |= ~ne(this.data.getLong(i + 8 * w), STAR);
+        }
+        return (stars & HIGH) != 0;
+    }
+
+    /**
+     * Byte-at-a-time scan, used for awkward blocks and for the tail of
+     * the data. Returns the position at which scanning stopped, which may
+     * be slightly beyond the end requested.
+     */
+    private int scanBytes(int i, int end) {
+        ByteBuffer data = this.data;
+        int length = data.limit();
+        while (i < end) {
+            int b = data.get(i) & 0xFF;
+            if (this.inComment) {
+                if (b == '/' && this.commentStar) {
+                    this.add(i);
+                    this.inComment = false;
+                }
+                this.commentStar = b == '*';
+            } else if (this.inString) {
+                if (this.escapeNext) {
+                    this.escapeNext = false;
+                } else if (b == '\\') {
+                    this.escapeNext = true;
+                    this.stringEscaped = true;
+                } else if (b == '"') {
+                    this.addClosingQuote(i);
+                    this.inString = false;
+                } else if (b < ' ') {
+                    this.stringEscaped = true;
+                }
+            } else if (b == '"') {
+                this.add(i);
+                this.inString = true;
+            } else if (b == '/') {
+                this.add(i);
+                if (i + 1 < length && data.get(i + 1) == '*') {
+                    this.inComment = true;
+                    this.commentStar = false;
+                    i++;
+                }
+            } else if (STRUCTURAL[b] != 0) {
+                this.add(i);
+            }
+            i++;
+        }
+        return i;
+    }
+
+}
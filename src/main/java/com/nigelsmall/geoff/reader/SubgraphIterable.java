@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lazy view of the subgraphs remaining in a GeoffReader. Subgraphs are
+ * read ahead on a background thread into a bounded buffer, so that
+ * reading overlaps with whatever the consumer does with them, and the
+ * reader is closed once it is exhausted.
+ *
+ * The view can be iterated once. Alternatively any number of threads
+ * may pull subgraphs concurrently with take(), in which case each
+ * subgraph goes to exactly one of them.
+ */
+public class SubgraphIterable implements Iterable<Subgraph>, Closeable {
+
+    final public static int DEFAULT_READ_AHEAD = 16;
+
+    final private static Object END = new Object();
+
+    final private GeoffReader reader;
+    final private BlockingQueue<Object> queue;
+    private Thread thread;
+    private boolean iterated;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    public SubgraphIterable(GeoffReader reader) {
+        this(reader, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param readAhead the maximum number of subgraphs to hold that have
+     *                  been read but not yet taken
+     */
+    public SubgraphIterable(GeoffReader reader, int readAhead) {
+        this.reader = reader;
+        this.queue = new ArrayBlockingQueue<>(readAhead);
+    }
+
+    private synchronized void start() {
+        if (this.thread == null && !this.closed) {
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readAll();
+                }
+            }, "geoff-read-ahead");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    private void readAll() {
+        try {
+            while (!this.closed && this.reader.hasMore()) {
+                this.queue.put(this.reader.readSubgraph());
+            }
+        } catch (IOException e) {
+            this.failure = e;
+        } catch (InterruptedException e) {
+            // closed while waiting for space
+        } finally {
+            try {
+                this.reader.close();
+            } catch (IOException e) {
+                if (this.failure == null) {
+                    this.failure = e;
+                }
+            }
+            if (this.closed) {
+                // a subgraph may have been put after close() cleared
+                // the queue
+                this.end();
+            } else {
+                try {
+                    this.queue.put(END);
+                } catch (InterruptedException e) {
+                    // closed while waiting for space
+                    this.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops any subgraphs not yet taken and leaves only the end.
+     */
+    private void end() {
+        this.queue.clear();
+        this.queue.offer(END);
+    }
+
+    /**
+     * Waits for the next subgraph, which may be taken from any thread.
+     *
+     * @return the next subgraph, or null once there are no more
+     * @throws IOException if the subgraph could not be read
+     */
+    public Subgraph take() throws IOException {
+        this.start();
+        Object item;
+        try {
+            item = this.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (item == END) {
+            // leave the end in place for any other consumers
+            this.queue.offer(END);
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return null;
+        }
+        return (Subgraph) item;
+    }
+
+    /**
+     * Iterates through the remaining subgraphs. Any error in reading is
+     * thrown as an IllegalStateException with the original IOException
+     * as its cause.
+     */
+    @Override
+    public synchronized Iterator<Subgraph> iterator() {
+        if (this.iterated) {
+            throw new IllegalStateException("Subgraphs can only be iterated once");
+        }
+        this.iterated = true;
+        return new Iterator<Subgraph>() {
+
+            private Subgraph next;
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (this.next == null && !this.exhausted) {
+                    try {
+                        this.next = take();
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Unable to read subgraph", e);
+                    }
+                    this.exhausted = this.next == null;
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public Subgraph next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Subgraph subgraph = this.next;
+                this.next = null;
+                return subgraph;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    /**
+     * Stops reading ahead and closes the reader. Any thread waiting in
+     * take() will find no more subgraphs.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            this.closed = true;
+            thread = this.thread;
+        }
+        if (thread == null) {
+            this.reader.close();
+        } else {
+            // the read-ahead thread ends the queue again as it stops
+            thread.interrupt();
+        }
+        this.end();
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013-2014, Nigel Small
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nigelsmall.geoff.reader;
+
+import java.nio.charset.Charset;
+
+/**
+ * Helpers shared by the byte-level lexers.
+ */
+final class Utf8 {
+
+    final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Reported for bytes that do not form a valid sequence.
+     */
+    final static char MALFORMED = '\uFFFD';
+
+    private Utf8() {
+    }
+
+    static int sequenceLength(int lead) {
+        if (lead < 0xC0) {
+            return 1;
+        } else if (lead < 0xE0) {
+            return 2;
+        } else if (lead < 0xF0) {
+            return 3;
+        } else if (lead < 0xF8) {
+            return 4;
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * Decodes a range of bytes into a char buffer at a given position,
+     * returning the position after the last char decoded. Malformed input
+     * is replaced exactly as String decoding would replace it.
+     */
+    static int decode(byte[] in, int start, int end, char[] out, int n) {
+        int i = start;
+        int position = n;
+        while (i < end) {
+            int lead = in[i] & 0xFF;
+            if (lead < 0x80) {
+                out[position++] = (char) lead;
+                i++;
+                continue;
+            }
+            int length = sequenceLength(lead);
+            if (length == 1 || i + length > end) {
+                return decodeString(in, start, end, out, n);
+            }
+            int cp = lead & (0xFF >> (length + 1));
+            for (int j = 1; j < length; j++) {
+                int b = in[i + j] & 0xFF;
+                if ((b & 0xC0) != 0x80) {
+                    return decodeString(in, start, end, out, n);
+                }
+                cp = (cp << 6) | (b & 0x3F);
+            }
+            if (length == 2 ? cp < 0x80 : length == 3 ? cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF)
+                    : cp < 0x10000 || cp > 0x10FFFF) {
+                return decodeString(in, start, end, out, n);
+            }
+            if (cp >= 0x10000) {
+                out[position++] = Character.highSurrogate(cp);
+                out[position++] = Character.lowSurrogate(cp);
+            } else {
+                out[position++] = (char) cp;
+            }
+            i += length;
+        }
+        return position;
+    }
+
+    private static int decodeString(byte[] in, int start, int end, char[] out, int n) {
+        String s = new String(in, start, end - start, UTF_8);
+        s.getChars(0, s.length(), out, n);
+        return n + s.length();
+    }
+
+    /**
+     * The number of UTF-16 chars encoded by a byte, counted at the start
+     * of each sequence.
+     */
+    static int charCount(int b) {
+        b &= 0xFF;
+        if (b >= 0xF0) {
+            return 2;
+        } else if ((b & 0xC0) != 0x80) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+}
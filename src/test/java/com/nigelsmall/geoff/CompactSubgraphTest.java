@@ -0,0 +1,151 @@
+package com.nigelsmall.geoff;
+
+import com.nigelsmall.geoff.reader.CompactSubgraphBuilder;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import com.nigelsmall.geoff.reader.SubgraphBuilder;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nigelsmall.geoff.PropertyAssertions.assertSameProperties;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class CompactSubgraphTest {
+
+    private static void assertSameNode(AbstractNode expected, AbstractNode actual) {
+        assertEquals(expected.isNamed(), actual.isNamed());
+        assertEquals(expected.getLabels(), actual.getLabels());
+        assertEquals(expected.getUniqueLabel(), actual.getUniqueLabel());
+        assertEquals(expected.getUniqueKey(), actual.getUniqueKey());
+        assertSameProperties(expected.getProperties(), actual.getProperties());
+    }
+
+    /**
+     * Anonymous nodes are named independently by each subgraph, so they
+     * are paired up by where they appear in relationships.
+     */
+    private static void assertSameName(AbstractNode expected, AbstractNode actual, Map<String, String> names) {
+        assertEquals(expected.isNamed(), actual.isNamed());
+        if (expected.isNamed()) {
+            assertEquals(expected.getName(), actual.getName());
+        } else if (names.containsKey(expected.getName())) {
+            assertEquals(names.get(expected.getName()), actual.getName());
+        } else {
+            assertFalse(names.containsValue(actual.getName()));
+            names.put(expected.getName(), actual.getName());
+        }
+    }
+
+    private static void assertSameSubgraph(Subgraph expected, CompactSubgraph actual) {
+        assertEquals(expected.order(), actual.order());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getComments(), actual.getComments());
+        HashMap<String, String> names = new HashMap<>();
+        assertEquals(expected.size(), actual.getRelationships().size());
+        int i = 0;
+        for (AbstractRelationship expectedRel : expected.getRelationships()) {
+            AbstractRelationship rel = actual.getRelationship(i++);
+            assertSameName(expectedRel.getStartNode(), rel.getStartNode(), names);
+            assertEquals(expectedRel.getType(), rel.getType());
+            assertSameName(expectedRel.getEndNode(), rel.getEndNode(), names);
+            assertEquals(expectedRel.isUnique(), rel.isUnique());
+            assertEquals(expectedRel.getUniqueKey(), rel.getUniqueKey());
+            assertSameProperties(expectedRel.getProperties(), rel.getProperties());
+        }
+        int anonymous = 0;
+        for (AbstractNode expectedNode : expected.getNodes().values()) {
+            String name = expectedNode.isNamed() ? expectedNode.getName() : names.get(expectedNode.getName());
+            if (name == null) {
+                anonymous++;
+                continue;
+            }
+            AbstractNode node = actual.getNodes().get(name);
+            assertSameNode(expectedNode, node);
+            assertSameNode(expectedNode, actual.getNode(actual.getNodeId(name)));
+        }
+        int count = 0;
+        for (AbstractNode node : actual.getNodes().values()) {
+            if (!node.isNamed() && !names.containsValue(node.getName())) {
+                count++;
+            }
+        }
+        assertEquals(anonymous, count);
+    }
+
+    private static void assertSameSubgraph(String text) throws Exception {
+        SubgraphBuilder expected = new SubgraphBuilder();
+        new GeoffReader(text).parse(expected);
+        CompactSubgraphBuilder actual = new CompactSubgraphBuilder();
+        new GeoffReader(text).parse(actual);
+        assertSameSubgraph(expected.getSubgraph(), actual.getSubgraph());
+    }
+
+    @Test
+    public void testMergesMatchSubgraph() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            builder.append("(a:A").append(i % 4).append(" {\"p").append(i).append("\":").append(i).append("})\n");
+            builder.append("(b {\"q\":").append(i).append(",\"r\":[").append(i).append(",2.5]})-[:KNOWS]->(c")
+                    .append(i % 3).append(")\n");
+            builder.append("(d").append(i).append(")-[:LIKES!since {\"since\":").append(i).append("}]->(e)\n");
+            builder.append("(a)-[:X]->(:P {\"n\":").append(i).append("})<-[:Y]-(c0)\n");
+            builder.append("(e)-[:Z!]->(:Q)\n");
+            builder.append("(:Lonely {\"i\":").append(i).append("})\n");
+            builder.append("/* comment ").append(i).append(" */\n");
+            if (i == 5) {
+                builder.append(":Person:name:=>(a)\n");
+            }
+            if (i == 10) {
+                builder.append("(e {\"name\":\"E\"})\n");
+                builder.append(":Thing:name:=>(e)\n");
+            }
+        }
+        assertSameSubgraph(builder.toString());
+    }
+
+    @Test
+    public void testNodesShareLabelAndKeyArrays() throws Exception {
+        CompactSubgraph subgraph = new GeoffReader(
+                "(a:Person {\"name\":\"Alice\"})\n(b:Person {\"name\":\"Bob\"})\n(c:Person {\"name\":\"Carol\",\"age\":33})"
+        ).readCompactSubgraph();
+        int a = subgraph.getNodeId("a");
+        int b = subgraph.getNodeId("b");
+        int c = subgraph.getNodeId("c");
+        assertSame(subgraph.getLabelIds(a), subgraph.getLabelIds(b));
+        assertSame(subgraph.getPropertyKeyIds(a), subgraph.getPropertyKeyIds(b));
+        assertSame(subgraph.getLabelIds(a), subgraph.getLabelIds(c));
+        assertFalse(subgraph.getPropertyKeyIds(a) == subgraph.getPropertyKeyIds(c));
+        assertEquals("Bob", subgraph.getProperties(b).get("name"));
+        assertEquals(33, subgraph.getProperties(c).get("age"));
+    }
+
+    @Test
+    public void testAnonymousNodesAreNotNamedUntilAsked() throws Exception {
+        CompactSubgraph subgraph = new GeoffReader("(a)-[:KNOWS]->(:Person)").readCompactSubgraph();
+        assertEquals(2, subgraph.order());
+        int end = subgraph.getEndNode(0);
+        assertFalse(subgraph.isNamed(end));
+        assertEquals("Person", subgraph.getLabel(subgraph.getLabelIds(end)[0]));
+        String name = subgraph.getNodeName(end);
+        assertEquals(end, subgraph.getNodeId(name));
+    }
+
+    @Test
+    public void testLargeDocument() throws Exception {
+        StringBuilder text = new StringBuilder();
+        try (InputStreamReader reader = new InputStreamReader(
+                getClass().getResourceAsStream("/10000.geoff"), "UTF-8")) {
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, count);
+            }
+        }
+        assertSameSubgraph(text.toString());
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.nigelsmall.geoff;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Assertions shared by the tests of the different subgraph classes.
+ */
+final class PropertyAssertions {
+
+    private PropertyAssertions() {
+    }
+
+    /**
+     * Assert that two property maps hold the same keys and values,
+     * comparing array values by their contents.
+     */
+    static void assertSameProperties(Map<String, Object> expected, Map<String, Object> actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertTrue(key, Arrays.deepEquals(new Object[] {expected.get(key)}, new Object[] {actual.get(key)}));
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.nigelsmall.geoff;
+
+import com.nigelsmall.geoff.reader.GeoffReader;
+import com.nigelsmall.geoff.reader.SubgraphBuilder;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShapedPropertyMapTest {
+
+    @Test
+    public void testBehavesLikeHashMap() {
+        ShapedPropertyMap map = new ShapedPropertyMap();
+        HashMap<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            String key = "k" + (i * 7 % 13);
+            assertEquals(expected.put(key, i), map.put(key, i));
+            if (i % 5 == 0) {
+                String removed = "k" + (i % 13);
+                assertEquals(expected.remove(removed), map.remove(removed));
+            }
+            assertEquals(expected, map);
+            assertEquals(map, expected);
+            assertEquals(expected.hashCode(), map.hashCode());
+        }
+        map.put("nothing", null);
+        assertTrue(map.containsKey("nothing"));
+        assertNull(map.get("nothing"));
+        assertFalse(map.containsKey("missing"));
+        Iterator<Map.Entry<String, Object>> entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Object> entry = entries.next();
+            if (entry.getValue() == null) {
+                entries.remove();
+            } else {
+                entry.setValue(-1);
+            }
+        }
+        assertFalse(map.containsKey("nothing"));
+        for (Object value : map.values()) {
+            assertEquals(-1, value);
+        }
+    }
+
+    @Test
+    public void testKeysKeepTheirOrder() {
+        ShapedPropertyMap map = new ShapedPropertyMap();
+        map.put("phad", 1);
+        map.put("líd", 2);
+        map.put("smeerk", 3);
+        map.put("líd", 4);
+        assertEquals("phad", map.getKey(0));
+        assertEquals("líd", map.getKey(1));
+        assertEquals(4, map.getValue(1));
+        assertEquals("smeerk", map.getKey(2));
+    }
+
+    @Test
+    public void testManyKeysAreFoundByHash() {
+        ShapedPropertyMap map = new ShapedPropertyMap();
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, map.get("key" + i));
+        }
+        assertEquals(100, map.size());
+    }
+
+    @Test
+    public void testNodesWithTheSameKeysShareAShape() throws Exception {
+        SubgraphBuilder builder = new SubgraphBuilder();
+        new GeoffReader("(a {\"phad\":1,\"líd\":\"x\",\"smeerk\":true})\n" +
+                "(b {\"phad\":2,\"líd\":\"y\",\"smeerk\":false})\n" +
+                "(c {\"líd\":\"z\",\"phad\":3,\"smeerk\":false})").parse(builder);
+        Subgraph subgraph = builder.getSubgraph();
+        ShapedPropertyMap a = (ShapedPropertyMap) subgraph.getNodes().get("a").getProperties();
+        ShapedPropertyMap b = (ShapedPropertyMap) subgraph.getNodes().get("b").getProperties();
+        ShapedPropertyMap c = (ShapedPropertyMap) subgraph.getNodes().get("c").getProperties();
+        assertTrue(a.hasSameShape(b));
+        assertFalse(a.hasSameShape(c));
+        assertEquals(2, b.get("phad"));
+        AbstractNode node = subgraph.getNodes().get("c");
+        node.setUnique("Thing", "other");
+        assertTrue(node.getProperties().containsKey("other"));
+        assertEquals(3, node.getProperties().get("phad"));
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.nigelsmall.geoff;
+
+import com.nigelsmall.geoff.reader.GeoffReader;
+import com.nigelsmall.geoff.reader.SpillingSubgraphBuilder;
+import com.nigelsmall.geoff.reader.SubgraphBuilder;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+
+import static com.nigelsmall.geoff.PropertyAssertions.assertSameProperties;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillingSubgraphTest {
+
+    private static void assertSameSubgraph(Subgraph expected, SpillingSubgraph actual) throws Exception {
+        assertEquals(expected.order(), actual.order());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getComments(), actual.getComments());
+        int count = 0;
+        String last = null;
+        for (AbstractNode node : actual.getNodes()) {
+            AbstractNode expectedNode = expected.getNodes().get(node.getName());
+            assertEquals(node.getName(), expectedNode.getName());
+            assertEquals(expectedNode.isNamed(), node.isNamed());
+            assertEquals(expectedNode.getLabels(), node.getLabels());
+            assertEquals(expectedNode.getUniqueLabel(), node.getUniqueLabel());
+            assertEquals(expectedNode.getUniqueKey(), node.getUniqueKey());
+            assertSameProperties(expectedNode.getProperties(), node.getProperties());
+            if (actual.isSpilled() && last != null) {
+                assertTrue(last.compareTo(node.getName()) < 0);
+            }
+            last = node.getName();
+            count++;
+        }
+        assertEquals(expected.order(), count);
+        Iterator<AbstractRelationship> expectedRels = expected.getRelationships().iterator();
+        for (AbstractRelationship rel : actual.getRelationships()) {
+            AbstractRelationship expectedRel = expectedRels.next();
+            assertEquals(expectedRel.getStartNode().getName(), rel.getStartNode().getName());
+            assertEquals(expectedRel.getType(), rel.getType());
+            assertEquals(expectedRel.getEndNode().getName(), rel.getEndNode().getName());
+            assertEquals(expectedRel.isUnique(), rel.isUnique());
+            assertEquals(expectedRel.getUniqueKey(), rel.getUniqueKey());
+            assertSameProperties(expectedRel.getProperties(), rel.getProperties());
+        }
+        assertFalse(expectedRels.hasNext());
+    }
+
+    private static void assertSameSubgraph(String text, long budget) throws Exception {
+        SubgraphBuilder expected = new SubgraphBuilder();
+        new GeoffReader(text).parse(expected);
+        try (SpillingSubgraph subgraph = new SpillingSubgraph(budget)) {
+            new GeoffReader(text).parse(new SpillingSubgraphBuilder(subgraph));
+            assertSameSubgraph(expected.getSubgraph(), subgraph);
+        }
+    }
+
+    @Test
+    public void testSmallSubgraphStaysInMemory() throws Exception {
+        try (SpillingSubgraph subgraph = new SpillingSubgraph()) {
+            new GeoffReader("(a {\"x\":1})-[:KNOWS]->(b)").readSubgraph(subgraph);
+            assertFalse(subgraph.isSpilled());
+            assertEquals(2, subgraph.order());
+            assertEquals(1, subgraph.size());
+            assertTrue(subgraph.getEstimatedSize() > 0);
+        }
+    }
+
+    @Test
+    public void testSpilledNodesMergeInOrder() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            builder.append("(a:A").append(i).append(" {\"p").append(i).append("\":").append(i).append("})\n");
+            builder.append("(b {\"q\":").append(i).append(",\"r\":[").append(i).append(",2.5]})-[:KNOWS]->(c")
+                    .append(i % 3).append(")\n");
+            builder.append("(d").append(i).append(")-[:LIKES!since {\"since\":").append(i).append("}]->(e)\n");
+            builder.append("/* comment ").append(i).append(" */\n");
+            if (i == 25) {
+                builder.append(":Person:name:=>(a)\n");
+                builder.append(":Person:name:=>(b)\n");
+            }
+            if (i == 10 || i == 30) {
+                builder.append("(e {\"name\":\"E").append(i).append("\"})\n");
+            }
+            if (i == 20) {
+                builder.append(":Thing:name:=>(e)\n");
+            }
+        }
+        String text = builder.toString();
+        for (long budget : new long[] {0, 1000, 10000, SpillingSubgraph.DEFAULT_BUDGET}) {
+            assertSameSubgraph(text, budget);
+        }
+    }
+
+    @Test
+    public void testHookPlaceholderKeepsSpilledValue() throws Exception {
+        try (SpillingSubgraph subgraph = new SpillingSubgraph(0)) {
+            new GeoffReader("(a {\"name\":\"Alice\"})\n:Person:name:=>(a)\n(a:Other)").readSubgraph(subgraph);
+            assertTrue(subgraph.isSpilled());
+            ArrayList<AbstractNode> nodes = new ArrayList<>();
+            for (AbstractNode node : subgraph.getNodes()) {
+                nodes.add(node);
+            }
+            assertEquals(1, nodes.size());
+            assertEquals("Alice", nodes.get(0).getUniqueValue());
+            Set<String> labels = nodes.get(0).getLabels();
+            assertTrue(labels.contains("Person") && labels.contains("Other"));
+        }
+    }
+
+    @Test
+    public void testMergedHookPlaceholderKeepsValue() throws Exception {
+        for (long budget : new long[] {0, SpillingSubgraph.DEFAULT_BUDGET}) {
+            try (SpillingSubgraph subgraph = new SpillingSubgraph(budget)) {
+                new GeoffReader("(a:Person {\"name\":\"Alice\"})").readSubgraph(subgraph);
+                subgraph.merge(new GeoffReader(":Person:name:=>(a)\n(b)").readSubgraph());
+                subgraph.merge(new GeoffReader(":Person:name:=>(b)").readSubgraph());
+                assertEquals(budget == 0, subgraph.isSpilled());
+                ArrayList<AbstractNode> nodes = new ArrayList<>();
+                for (AbstractNode node : subgraph.getNodes()) {
+                    nodes.add(node);
+                }
+                assertEquals(2, nodes.size());
+                AbstractNode a = nodes.get(0).getName().equals("a") ? nodes.get(0) : nodes.get(1);
+                AbstractNode b = nodes.get(0).getName().equals("a") ? nodes.get(1) : nodes.get(0);
+                assertEquals("Alice", a.getUniqueValue());
+                assertEquals("Person", a.getUniqueLabel());
+                // a placeholder with nothing to fill it is kept
+                assertTrue(b.getProperties().containsKey("name"));
+                assertNull(b.getUniqueValue());
+            }
+        }
+    }
+
+    @Test
+    public void testLargeDocument() throws Exception {
+        StringBuilder text = new StringBuilder();
+        try (InputStreamReader reader = new InputStreamReader(
+                getClass().getResourceAsStream("/10000.geoff"), "UTF-8")) {
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, count);
+            }
+        }
+        assertSameSubgraph(text.toString(), 64 * 1024);
+    }
+
+}
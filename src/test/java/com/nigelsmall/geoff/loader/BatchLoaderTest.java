@@ -0,0 +1,126 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BatchLoaderTest {
+
+    /**
+     * Just enough of a batch inserter to load nodes and relationships
+     * into memory.
+     */
+    private static class StubInserter implements InvocationHandler {
+
+        final ArrayList<Map<String, Object>> properties = new ArrayList<>();
+        final ArrayList<Set<Label>> labels = new ArrayList<>();
+        final ArrayList<String> relationships = new ArrayList<>();
+
+        BatchInserter proxy() {
+            return (BatchInserter) Proxy.newProxyInstance(BatchInserter.class.getClassLoader(),
+                    new Class<?>[] {BatchInserter.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createNode":
+                    this.properties.add(new HashMap<>((Map<String, Object>) args[0]));
+                    this.labels.add(new LinkedHashSet<>(Arrays.asList((Label[]) args[1])));
+                    return (long) this.properties.size() - 1;
+                case "getNodeLabels":
+                    return new ArrayList<>(this.labels.get(index(args[0])));
+                case "setNodeLabels":
+                    this.labels.set(index(args[0]), new LinkedHashSet<>(Arrays.asList((Label[]) args[1])));
+                    return null;
+                case "nodeHasProperty":
+                    return this.properties.get(index(args[0])).containsKey(args[1]);
+                case "getNodeProperties":
+                    return this.properties.get(index(args[0]));
+                case "setNodeProperty":
+                    this.properties.get(index(args[0])).put((String) args[1], args[2]);
+                    return null;
+                case "getRelationships":
+                    return Collections.emptyList();
+                case "createRelationship":
+                    this.relationships.add(args[0] + "-" + ((RelationshipType) args[2]).name() + "->" + args[1]);
+                    return (long) this.relationships.size() - 1;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        private static int index(Object id) {
+            return (int) (long) (Long) id;
+        }
+
+        List<String> labelNames(long id) {
+            ArrayList<String> names = new ArrayList<>();
+            for (Label label : this.labels.get((int) id)) {
+                names.add(label.name());
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+    }
+
+    @Test
+    public void testUniqueNodesMergeWithinAndAcrossSubgraphs() throws Exception {
+        StubInserter inserter = new StubInserter();
+        BatchLoader loader = new BatchLoader(inserter.proxy());
+        Map<String, Long> first = loader.load(new GeoffReader(
+                "(a:Person!name {\"name\":\"Alice\"})-[:KNOWS]->(b:Person!name {\"name\":\"Bob\"})").readSubgraph());
+        Map<String, Long> second = loader.load(new GeoffReader(
+                "(c:Employee:Person!name {\"name\":\"Alice\",\"age\":33})-[:KNOWS]->(d {\"name\":\"Bob\"})")
+                .readSubgraph());
+        assertEquals(3, inserter.properties.size());
+        assertEquals(first.get("a"), second.get("c"));
+        assertEquals(Arrays.asList("Employee", "Person"), inserter.labelNames(first.get("a")));
+        assertEquals(33, inserter.properties.get(0).get("age"));
+        assertEquals(Arrays.asList(first.get("a") + "-KNOWS->" + first.get("b"),
+                first.get("a") + "-KNOWS->" + second.get("d")), inserter.relationships);
+    }
+
+    @Test
+    public void testUniqueNodeFindsEarlierPlainNode() throws Exception {
+        StubInserter inserter = new StubInserter();
+        BatchLoader loader = new BatchLoader(inserter.proxy());
+        Map<String, Long> first = loader.load(new GeoffReader(
+                "(a:Person {\"name\":\"x\"})\n(b:Robot {\"name\":\"x\"})\n(c:Person {\"name\":\"y\"})").readSubgraph());
+        Map<String, Long> second = loader.load(new GeoffReader(
+                "(d:Person!name {\"name\":\"x\",\"age\":1})\n(e:Person!name {\"name\":\"z\"})").readSubgraph());
+        // as NeoLoader would find it by label and property
+        assertEquals(first.get("a"), second.get("d"));
+        assertEquals(4, inserter.properties.size());
+        assertEquals(1, inserter.properties.get((int) (long) first.get("a")).get("age"));
+        assertNull(inserter.properties.get((int) (long) first.get("b")).get("age"));
+        // a label added by merging is searched too
+        Map<String, Long> third = loader.load(new GeoffReader(
+                "(f:Robot:Person!name {\"name\":\"y\"})").readSubgraph());
+        Map<String, Long> fourth = loader.load(new GeoffReader(
+                "(g:Robot!name {\"name\":\"y\"})").readSubgraph());
+        assertEquals(first.get("c"), third.get("f"));
+        assertEquals(first.get("c"), fourth.get("g"));
+        assertEquals(4, inserter.properties.size());
+    }
+
+}
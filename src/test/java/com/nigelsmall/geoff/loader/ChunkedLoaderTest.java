@@ -0,0 +1,75 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.Subgraph;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChunkedLoaderTest {
+
+    private static Subgraph path(int order) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < order; i++) {
+            builder.append("(n").append(i).append(" {\"name\":\"n").append(i).append("\"})\n");
+            if (i > 0) {
+                builder.append("(n").append(i - 1).append(")-[:NEXT]->(n").append(i).append(")\n");
+            }
+        }
+        return new GeoffReader(builder.toString()).readSubgraph();
+    }
+
+    @Test
+    public void testChunksGrowWhileCommitsAreFast() throws Exception {
+        StubDatabase database = new StubDatabase();
+        ChunkedLoader loader = new ChunkedLoader(database.database);
+        loader.setTargetCommitTime(1000);
+        loader.setChunkSizeLimits(10, 80);
+        loader.setChunkSize(10);
+        assertEquals(150, loader.load(path(150)).size());
+        // doubling each time, until the upper limit
+        assertEquals(Arrays.asList(10, 20, 40, 80, 80, 69), database.getCommits());
+        assertEquals(6, loader.getCommitCount());
+        assertEquals(80, loader.getChunkSize());
+        assertEquals(150, database.getNodeProperties().size());
+        assertEquals(149, database.getRelationships().size());
+        assertEquals("n0-NEXT->n1", database.getRelationships().get(0));
+    }
+
+    @Test
+    public void testChunksShrinkWhileCommitsAreSlow() throws Exception {
+        StubDatabase database = new StubDatabase();
+        database.setCommitTime(30);
+        ChunkedLoader loader = new ChunkedLoader(database.database);
+        loader.setTargetCommitTime(5);
+        loader.setChunkSizeLimits(10, 80);
+        loader.setChunkSize(80);
+        loader.load(path(103));
+        // halving each time, until the lower limit
+        assertEquals(Arrays.asList(80, 40, 20, 10, 10, 10, 10, 10, 10, 5), database.getCommits());
+        assertEquals(10, loader.getChunkSize());
+        assertEquals(0, database.getRollbacks());
+    }
+
+    @Test
+    public void testFailureKeepsCommittedChunks() throws Exception {
+        StubDatabase database = new StubDatabase();
+        database.setFailAfter(25);
+        ChunkedLoader loader = new ChunkedLoader(database.database);
+        loader.setChunkSizeLimits(10, 10);
+        try {
+            loader.load(path(40));
+            fail("Expected failure to be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Failed on purpose", e.getMessage());
+        }
+        assertEquals(Arrays.asList(10, 10), database.getCommits());
+        assertEquals(1, database.getRollbacks());
+        assertEquals(20, database.getNodeProperties().size());
+        assertEquals(2, loader.getCommitCount());
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.SpillingSubgraph;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NeoLoaderTest {
+
+    private static String document() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("(n").append(i).append(" {\"name\":\"n").append(i).append("\"})-[:NEXT]->(n")
+                    .append((i + 1) % 200).append(")\n");
+        }
+        builder.append("(p1:Person!name {\"name\":\"Alice\"})-[:KNOWS]->(p2:Person!name {\"name\":\"Bob\"})\n");
+        builder.append("(p3:Person!name {\"name\":\"Alice\"})-[:LIKES]->(n7)\n");
+        return builder.toString();
+    }
+
+    private static List<String> sorted(List<String> items) {
+        ArrayList<String> sorted = new ArrayList<>(items);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void testSpilledSubgraphLoadsAsInMemory() throws Exception {
+        String text = document();
+        StubDatabase expected = new StubDatabase();
+        new NeoLoader(expected.database).load(new GeoffReader(new StringReader(text)).readSubgraph());
+        for (long budget : new long[] {0, 4096, SpillingSubgraph.DEFAULT_BUDGET}) {
+            StubDatabase actual = new StubDatabase();
+            try (SpillingSubgraph subgraph = new SpillingSubgraph(budget)) {
+                new GeoffReader(text).readSubgraph(subgraph);
+                assertEquals(budget < SpillingSubgraph.DEFAULT_BUDGET, subgraph.isSpilled());
+                new NeoLoader(actual.database).load(subgraph);
+            }
+            assertEquals(202, actual.getNodeProperties().size());
+            assertEquals(202, actual.getRelationships().size());
+            assertTrue(actual.getRelationships().contains("Alice-KNOWS->Bob"));
+            assertTrue(actual.getRelationships().contains("Alice-LIKES->n7"));
+            assertTrue(actual.getRelationships().contains("n199-NEXT->n0"));
+            assertEquals(sorted(expected.getRelationships()), sorted(actual.getRelationships()));
+            ArrayList<String> names = new ArrayList<>();
+            for (Map<String, Object> properties : actual.getNodeProperties()) {
+                names.add((String) properties.get("name"));
+            }
+            assertEquals(1, Collections.frequency(names, "Alice"));
+        }
+    }
+
+}
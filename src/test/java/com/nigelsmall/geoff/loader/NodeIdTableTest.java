@@ -0,0 +1,47 @@
+package com.nigelsmall.geoff.loader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeIdTableTest {
+
+    private static void assertLookups(ArrayList<String> names, int segmentSize) throws Exception {
+        try (NodeIdTable table = new NodeIdTable(null, segmentSize)) {
+            for (int i = 0; i < names.size(); i++) {
+                table.add(names.get(i), 1000 + i);
+            }
+            table.seal();
+            for (int i = 0; i < names.size(); i++) {
+                assertEquals(names.get(i), 1000 + i, table.get(names.get(i)));
+            }
+            assertEquals(-1, table.get(""));
+            assertEquals(-1, table.get("n0500x"));
+            assertEquals(-1, table.get("￿"));
+        }
+    }
+
+    @Test
+    public void testNamesAreFoundAcrossSegments() throws Exception {
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add(String.format("n%04d", i));
+        }
+        names.add("café");
+        names.add("日本");
+        Collections.sort(names);
+        // small segments leave padding between entries
+        for (int segmentSize : new int[] {24, 64, 1000, NodeIdTable.DEFAULT_SEGMENT_SIZE}) {
+            assertLookups(names, segmentSize);
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        assertLookups(new ArrayList<String>(), 64);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ParallelLoaderTest {
+
+    private static Subgraph read(String text) throws Exception {
+        return new GeoffReader(new StringReader(text)).readSubgraph();
+    }
+
+    private static int groupOf(List<ParallelLoader.Group> groups, AbstractNode node) {
+        for (int i = 0; i < groups.size(); i++) {
+            for (AbstractNode member : groups.get(i).nodes) {
+                if (member == node) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testEveryElementIsInExactlyOneGroup() throws Exception {
+        Subgraph subgraph = read("(a)-[:KNOWS]->(b)\n(b)-[:KNOWS]->(c)\n(d)\n()-[:KNOWS]->()\n" +
+                "(e {\"x\":1})-[:LIKES]->(f)\n(g)-[:LIKES]->(g)\n");
+        for (int groupSize : new int[] {1, 2, 3, 100}) {
+            List<ParallelLoader.Group> groups = ParallelLoader.partition(subgraph, groupSize);
+            Set<AbstractNode> nodes = Collections.newSetFromMap(new IdentityHashMap<AbstractNode, Boolean>());
+            Set<AbstractRelationship> relationships =
+                    Collections.newSetFromMap(new IdentityHashMap<AbstractRelationship, Boolean>());
+            int nodeCount = 0;
+            int relationshipCount = 0;
+            for (ParallelLoader.Group group : groups) {
+                nodes.addAll(group.nodes);
+                relationships.addAll(group.relationships);
+                nodeCount += group.nodes.size();
+                relationshipCount += group.relationships.size();
+                for (AbstractRelationship rel : group.relationships) {
+                    // relationships refer to nodes by name
+                    AbstractNode start = subgraph.getNodes().get(rel.getStartNode().getName());
+                    AbstractNode end = subgraph.getNodes().get(rel.getEndNode().getName());
+                    assertEquals(groups.indexOf(group), groupOf(groups, start));
+                    assertEquals(groups.indexOf(group), groupOf(groups, end));
+                }
+            }
+            assertEquals(subgraph.order(), nodeCount);
+            assertEquals(subgraph.order(), nodes.size());
+            assertEquals(subgraph.size(), relationshipCount);
+            assertEquals(subgraph.size(), relationships.size());
+        }
+        assertEquals(1, ParallelLoader.partition(subgraph, 100).size());
+        assertEquals(5, ParallelLoader.partition(subgraph, 1).size());
+    }
+
+    @Test
+    public void testNodesSharingUniqueValuesAreGroupedTogether() throws Exception {
+        Subgraph subgraph = read("(a:Person!name {\"name\":\"Alice\"})\n(d)\n" +
+                "(b:Person!name {\"name\":\"Alice\"})\n(e:Person {\"name\":\"Bob\"})\n" +
+                "(c:Person:Employee {\"name\":\"Alice\",\"age\":33})\n(f:Robot {\"name\":\"Alice\"})\n");
+        List<ParallelLoader.Group> groups = ParallelLoader.partition(subgraph, 1);
+        assertEquals(4, groups.size());
+        int group = groupOf(groups, subgraph.getNodes().get("a"));
+        assertEquals(group, groupOf(groups, subgraph.getNodes().get("b")));
+        // a plain node that a unique lookup would find
+        assertEquals(group, groupOf(groups, subgraph.getNodes().get("c")));
+        assertNotEquals(group, groupOf(groups, subgraph.getNodes().get("d")));
+        assertNotEquals(group, groupOf(groups, subgraph.getNodes().get("e")));
+        assertNotEquals(group, groupOf(groups, subgraph.getNodes().get("f")));
+        assertEquals(3, groups.get(group).nodes.size());
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.Subgraph;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ScheduledLoaderTest {
+
+    /**
+     * A database that stores nothing and finds nothing, but logs when
+     * each subgraph starts and ends loading. Subgraphs are told apart
+     * by their "n" property.
+     */
+    private static class StubDatabase implements InvocationHandler {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final private ThreadLocal<Object> current = new ThreadLocal<>();
+
+        GraphDatabaseService proxy() {
+            return (GraphDatabaseService) this.proxy(GraphDatabaseService.class);
+        }
+
+        private Object proxy(Class<?> type) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, this);
+        }
+
+        void onLoad(Object n) throws Exception {
+            Thread.sleep(5);
+        }
+
+        List<String> eventsFor(Object... ns) {
+            ArrayList<String> events = new ArrayList<>();
+            synchronized (this.events) {
+                for (String event : this.events) {
+                    for (Object n : ns) {
+                        if (event.endsWith(" " + n)) {
+                            events.add(event);
+                        }
+                    }
+                }
+            }
+            return events;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("setProperty") && "n".equals(args[0])) {
+                this.current.set(args[1]);
+                this.events.add("start " + args[1]);
+                this.onLoad(args[1]);
+                return null;
+            } else if (name.equals("close") && proxy instanceof Transaction && this.current.get() != null) {
+                this.events.add("end " + this.current.get());
+                this.current.remove();
+                return null;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("toString")) {
+                return "stub";
+            }
+            Class<?> type = method.getReturnType();
+            if (type == long.class) {
+                return 1L;
+            } else if (type == boolean.class) {
+                return false;
+            } else if (type.isInterface()) {
+                return this.proxy(type);
+            } else {
+                return null;
+            }
+        }
+
+    }
+
+    private static List<Subgraph> read(String... texts) throws Exception {
+        ArrayList<Subgraph> subgraphs = new ArrayList<>();
+        for (String text : texts) {
+            subgraphs.add(new GeoffReader(new StringReader(text)).readSubgraph());
+        }
+        return subgraphs;
+    }
+
+    private static long load(StubDatabase database, List<Subgraph> subgraphs) {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            return new ScheduledLoader(database.proxy()).load(subgraphs, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConflictingSubgraphsLoadOneAtATimeInOrder() throws Exception {
+        ArrayList<String> texts = new ArrayList<>();
+        for (int n = 0; n < 8; n++) {
+            if (n % 2 == 0) {
+                texts.add("(a:Person!name {\"name\":\"Alice\",\"n\":" + n + "})");
+            } else {
+                texts.add("(a:Person!name {\"name\":\"Person " + n + "\",\"n\":" + n + "})");
+            }
+        }
+        // a unique lookup could find a plain node written earlier
+        texts.add("(c:Person {\"name\":\"Carol\",\"n\":8})");
+        texts.add("(d:Person!name {\"name\":\"Carol\",\"n\":9})");
+        StubDatabase database = new StubDatabase();
+        assertEquals(10, load(database, read(texts.toArray(new String[texts.size()]))));
+        assertEquals(20, database.events.size());
+        assertEquals(Arrays.asList("start 0", "end 0", "start 2", "end 2", "start 4", "end 4", "start 6", "end 6"),
+                database.eventsFor(0, 2, 4, 6));
+        assertEquals(Arrays.asList("start 8", "end 8", "start 9", "end 9"), database.eventsFor(8, 9));
+    }
+
+    @Test
+    public void testIndependentSubgraphsLoadConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(4);
+        StubDatabase database = new StubDatabase() {
+            @Override
+            void onLoad(Object n) throws Exception {
+                // only passes if all four are loading at once
+                barrier.await(10, TimeUnit.SECONDS);
+            }
+        };
+        assertEquals(4, load(database, read(
+                "(a:Person!name {\"name\":\"Alice\",\"n\":0})",
+                "(a:Person!name {\"name\":\"Bob\",\"n\":1})",
+                "(a:Person {\"name\":\"Carol\",\"n\":2})-[:KNOWS]->(b:Person {\"name\":\"Dave\"})",
+                "(a:Robot!name {\"name\":\"Alice\",\"n\":3})")));
+        assertEquals(8, database.events.size());
+    }
+
+    @Test
+    public void testFailureStopsLaterSubgraphs() throws Exception {
+        StubDatabase database = new StubDatabase() {
+            @Override
+            void onLoad(Object n) throws Exception {
+                if (n.equals(2)) {
+                    throw new IllegalStateException("Failed on purpose");
+                }
+            }
+        };
+        ArrayList<String> texts = new ArrayList<>();
+        for (int n = 0; n < 6; n++) {
+            texts.add("(a:Person!name {\"name\":\"Alice\",\"n\":" + n + "})");
+        }
+        try {
+            load(database, read(texts.toArray(new String[texts.size()])));
+            fail("Expected failure to be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Failed on purpose", e.getMessage());
+        }
+        assertEquals(Arrays.asList("start 0", "end 0", "start 1", "end 1", "start 2", "end 2"),
+                new ArrayList<>(database.events));
+    }
+
+}
@@ -0,0 +1,280 @@
+package com.nigelsmall.geoff.loader;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterable;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Just enough of an in-memory database for a loader to run against, on
+ * one thread at a time. Nodes and relationships created in a transaction
+ * that is not marked successful are dropped when it is closed.
+ */
+class StubDatabase {
+
+    final GraphDatabaseService database;
+    final private ArrayList<Node> nodes = new ArrayList<>();
+    final private ArrayList<Map<String, Object>> properties = new ArrayList<>();
+    final private ArrayList<Set<String>> labels = new ArrayList<>();
+    final private ArrayList<String> relationships = new ArrayList<>();
+    final private ArrayList<Integer> created = new ArrayList<>();
+    final private ArrayList<Integer> commits = new ArrayList<>();
+    private int rollbacks;
+    private long commitTime;
+    private int failAfter = -1;
+
+    StubDatabase() {
+        this.database = proxy(GraphDatabaseService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "beginTx":
+                        return beginTx();
+                    case "createNode":
+                        return createNode();
+                    case "getNodeById":
+                        return nodes.get((int) (long) (Long) args[0]);
+                    case "findNodesByLabelAndProperty":
+                        return findNodes(((Label) args[0]).name(), (String) args[1], args[2]);
+                    default:
+                        return standard(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object standard(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "stub";
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * How long, in milliseconds, each commit takes.
+     */
+    void setCommitTime(long commitTime) {
+        this.commitTime = commitTime;
+    }
+
+    /**
+     * Fail to create any more nodes once this many have been created.
+     */
+    void setFailAfter(int failAfter) {
+        this.failAfter = failAfter;
+    }
+
+    /**
+     * The number of nodes and relationships created in each transaction
+     * committed so far.
+     */
+    List<Integer> getCommits() {
+        return this.commits;
+    }
+
+    int getRollbacks() {
+        return this.rollbacks;
+    }
+
+    /**
+     * The property maps of all nodes that have been committed or are
+     * still pending, in order of creation.
+     */
+    List<Map<String, Object>> getNodeProperties() {
+        ArrayList<Map<String, Object>> nodes = new ArrayList<>();
+        for (Map<String, Object> properties : this.properties) {
+            if (properties != null) {
+                nodes.add(properties);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * The relationships that have been committed or are still pending, each
+     * as "start-TYPE->end" by the "name" properties of their nodes.
+     */
+    List<String> getRelationships() {
+        ArrayList<String> relationships = new ArrayList<>();
+        for (String relationship : this.relationships) {
+            if (relationship != null) {
+                relationships.add(relationship);
+            }
+        }
+        return relationships;
+    }
+
+    private Transaction beginTx() {
+        this.created.clear();
+        return proxy(Transaction.class, new InvocationHandler() {
+            private boolean success;
+            private boolean failure;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "success":
+                        this.success = true;
+                        return null;
+                    case "failure":
+                        this.failure = true;
+                        return null;
+                    case "close":
+                        if (this.success && !this.failure) {
+                            Thread.sleep(commitTime);
+                            commits.add(StubDatabase.this.created.size());
+                        } else {
+                            rollback();
+                        }
+                        StubDatabase.this.created.clear();
+                        return null;
+                    default:
+                        return standard(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private void rollback() {
+        for (int index : this.created) {
+            if (index >= 0) {
+                this.properties.set(index, null);
+                this.labels.set(index, null);
+            } else {
+                this.relationships.set(-index - 1, null);
+            }
+        }
+        this.rollbacks++;
+    }
+
+    private Node createNode() {
+        if (this.failAfter >= 0 && this.nodes.size() >= this.failAfter) {
+            throw new IllegalStateException("Failed on purpose");
+        }
+        final int id = this.nodes.size();
+        this.properties.add(new HashMap<String, Object>());
+        this.labels.add(new HashSet<String>());
+        this.created.add(id);
+        Node node = proxy(Node.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Map<String, Object> properties = StubDatabase.this.properties.get(id);
+                if (properties == null && !method.getName().equals("getId")) {
+                    throw new NotFoundException("Node " + id + " was rolled back");
+                }
+                switch (method.getName()) {
+                    case "getId":
+                        return (long) id;
+                    case "setProperty":
+                        properties.put((String) args[0], args[1]);
+                        return null;
+                    case "hasProperty":
+                        return properties.containsKey(args[0]);
+                    case "getProperty":
+                        if (properties.containsKey(args[0])) {
+                            return properties.get(args[0]);
+                        } else if (args.length > 1) {
+                            return args[1];
+                        } else {
+                            throw new NotFoundException((String) args[0]);
+                        }
+                    case "addLabel":
+                        labels.get(id).add(((Label) args[0]).name());
+                        return null;
+                    case "hasLabel":
+                        return labels.get(id).contains(((Label) args[0]).name());
+                    case "createRelationshipTo":
+                        return createRelationship(id, (int) ((Node) args[0]).getId(), (RelationshipType) args[1]);
+                    case "getRelationships":
+                        return Collections.emptyList();
+                    default:
+                        return standard(proxy, method, args);
+                }
+            }
+        });
+        this.nodes.add(node);
+        return node;
+    }
+
+    private Object createRelationship(int start, int end, RelationshipType type) {
+        this.relationships.add(this.properties.get(start).get("name") + "-" + type.name() + "->" +
+                this.properties.get(end).get("name"));
+        this.created.add(-this.relationships.size());
+        return proxy(Relationship.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("setProperty")) {
+                    return null;
+                }
+                return standard(proxy, method, args);
+            }
+        });
+    }
+
+    private ResourceIterable<Node> findNodes(String label, String key, Object value) {
+        final ArrayList<Node> found = new ArrayList<>();
+        for (int id = 0; id < this.nodes.size(); id++) {
+            Map<String, Object> properties = this.properties.get(id);
+            if (properties != null && this.labels.get(id).contains(label)
+                    && Objects.deepEquals(properties.get(key), value)) {
+                found.add(this.nodes.get(id));
+            }
+        }
+        return new ResourceIterable<Node>() {
+            @Override
+            public ResourceIterator<Node> iterator() {
+                final Iterator<Node> iterator = found.iterator();
+                return new ResourceIterator<Node>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Node next() {
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+
+}
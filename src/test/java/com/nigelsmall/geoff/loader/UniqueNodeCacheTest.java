@@ -0,0 +1,108 @@
+package com.nigelsmall.geoff.loader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.reader.GeoffReader;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UniqueNodeCacheTest {
+
+    private static UniqueValue person(String name) {
+        return new UniqueValue("Person", "name", name);
+    }
+
+    /**
+     * A database in which every node has every label and is called Alice,
+     * and in which no node can be found by label and property.
+     */
+    private static GraphDatabaseService aliceDatabase() {
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getProperty")) {
+                    return "Alice";
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                Class<?> type = method.getReturnType();
+                if (type == long.class) {
+                    return 7L;
+                } else if (type == boolean.class) {
+                    // has every label, but no next node
+                    return name.equals("hasLabel");
+                } else if (type.isInterface()) {
+                    return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, this);
+                } else {
+                    return null;
+                }
+            }
+        };
+        return (GraphDatabaseService) Proxy.newProxyInstance(GraphDatabaseService.class.getClassLoader(),
+                new Class<?>[] {GraphDatabaseService.class}, handler);
+    }
+
+    private static AbstractNode read(String text) throws Exception {
+        return new GeoffReader(new StringReader(text)).readSubgraph().getNodes().get("a");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedAtCapacity() throws Exception {
+        UniqueNodeCache cache = new UniqueNodeCache(3);
+        cache.put(person("Alice"), 1);
+        cache.put(person("Bob"), 2);
+        cache.put(person("Carol"), 3);
+        assertEquals(3, cache.size());
+        assertEquals(0, cache.getEvictions());
+        // reading Alice makes Bob the least recently used
+        assertEquals(Long.valueOf(1), cache.get(person("Alice")));
+        cache.put(person("Dave"), 4);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(person("Bob")));
+        cache.put(person("Carol"), 5);
+        cache.put(person("Eve"), 6);
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(person("Alice")));
+        assertEquals(Long.valueOf(4), cache.get(person("Dave")));
+        assertEquals(Long.valueOf(5), cache.get(person("Carol")));
+        assertEquals(Long.valueOf(6), cache.get(person("Eve")));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testLookupsAreCountedAsHitsAndMisses() throws Exception {
+        UniqueNodeCache cache = new UniqueNodeCache(10);
+        NeoLoader loader = new NeoLoader(aliceDatabase(), cache);
+        AbstractNode alice = read("(a:Person!name {\"name\":\"Alice\"})");
+        // not yet cached, so created and then cached
+        loader.loadNode(alice);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(Long.valueOf(7), cache.get(person("Alice")));
+        loader.loadNode(alice);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // a cached node that no longer has its value is dropped, and the
+        // node created in its place is cached instead
+        cache.put(person("Bob"), 7);
+        loader.loadNode(read("(a:Person!name {\"name\":\"Bob\"})"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(Long.valueOf(7), cache.get(person("Bob")));
+        assertEquals(0, cache.getEvictions());
+    }
+
+}
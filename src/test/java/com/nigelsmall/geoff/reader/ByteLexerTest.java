@@ -0,0 +1,67 @@
+package com.nigelsmall.geoff.reader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class ByteLexerTest {
+
+    private ByteLexer lexer(String text) throws Exception {
+        // a tiny window forces every token, and most multi-byte
+        // sequences, to straddle a refill
+        return new ByteLexer(new ByteArrayInputStream(text.getBytes("UTF-8")), 3);
+    }
+
+    @Test
+    public void testNonAsciiNames() throws Exception {
+        ByteLexer lexer = lexer("skàn:Jòck frîst:Nêck");
+        assertEquals("skàn", lexer.readName());
+        lexer.readChar(':');
+        assertEquals("Jòck", lexer.readName());
+        lexer.skipWhitespace();
+        assertEquals("frîst", lexer.readName());
+        lexer.readChar(':');
+        assertEquals("Nêck", lexer.readName());
+        assertEquals(ByteLexer.END_OF_DATA, lexer.peek());
+    }
+
+    @Test
+    public void testTokensAcrossRefills() throws Exception {
+        ByteLexer lexer = lexer("\u2003\"Agnetha F\u00e4ltskog \\u00e9\" 6.0221413e+23 -136 /* bl\u00e0lk\n*/");
+        lexer.skipWhitespace();
+        assertEquals("Agnetha F\u00e4ltskog \u00e9", lexer.readString());
+        lexer.skipWhitespace();
+        assertEquals(6.0221413e+23, lexer.readNumber());
+        lexer.skipWhitespace();
+        assertEquals(-136, lexer.readNumber());
+        lexer.skipWhitespace();
+        assertEquals("bl\u00e0lk", lexer.readComment());
+    }
+
+    @Test
+    public void testColumnCountsChars() throws Exception {
+        ByteLexer lexer = lexer("\n(gl\u00f9ss \ud83d\ude00");
+        lexer.skipWhitespace();
+        lexer.readChar('(');
+        lexer.readName();
+        lexer.skipWhitespace();
+        assertEquals(1, lexer.getLineNo());
+        assertEquals(7, lexer.getColumn());
+        assertEquals('\ud83d', lexer.peek());
+    }
+
+    @Test
+    public void testHeapBufferIsScannedInPlace() throws Exception {
+        byte[] bytes = "xx(sl\u00e1ck)".getBytes("UTF-8");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 2);
+        ByteLexer lexer = new ByteLexer(buffer.slice());
+        lexer.readChar('(');
+        assertEquals("sl\u00e1ck", lexer.readName());
+        lexer.readChar(')');
+        assertEquals(false, lexer.hasMore());
+    }
+
+}
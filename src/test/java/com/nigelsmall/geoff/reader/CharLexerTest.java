@@ -0,0 +1,68 @@
+package com.nigelsmall.geoff.reader;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+public class CharLexerTest {
+
+    private CharLexer lexer(String text) {
+        // a tiny window forces every token to straddle a refill
+        return new CharLexer(new StringReader(text), 4);
+    }
+
+    @Test
+    public void testTokensAcrossRefills() throws Exception {
+        CharLexer lexer = lexer("  longer_name \"a \\\"quoted\\\" string\" -12.5e+3 98765 /* some\ncomment */");
+        lexer.skipWhitespace();
+        assertEquals("longer_name", lexer.readName());
+        lexer.skipWhitespace();
+        assertEquals("a \"quoted\" string", lexer.readString());
+        lexer.skipWhitespace();
+        assertEquals(-12.5e+3, lexer.readNumber());
+        lexer.skipWhitespace();
+        assertEquals(98765, lexer.readNumber());
+        lexer.skipWhitespace();
+        assertEquals("some\ncomment", lexer.readComment());
+        assertEquals(CharLexer.END_OF_DATA, lexer.peek());
+    }
+
+    @Test
+    public void testNonAsciiNames() throws Exception {
+        CharLexer lexer = lexer("skàn:Jòck");
+        assertEquals("skàn", lexer.readName());
+        lexer.readChar(':');
+        assertEquals("Jòck", lexer.readName());
+    }
+
+    @Test
+    public void testLineAndColumn() throws Exception {
+        CharLexer lexer = lexer("/* one\ntwo */\n\n   (");
+        lexer.readComment();
+        lexer.skipWhitespace();
+        assertEquals(3, lexer.getLineNo());
+        assertEquals(3, lexer.getColumn());
+    }
+
+    @Test
+    public void testWholeString() throws Exception {
+        CharLexer lexer = new CharLexer("{\"name\": \"skàn\", \"n\": 12}");
+        lexer.readChar('{');
+        assertEquals("name", lexer.readString());
+        lexer.readChar(':');
+        lexer.skipWhitespace();
+        assertEquals("skàn", lexer.readString());
+        lexer.readChar(',');
+        lexer.skipWhitespace();
+        assertEquals("n", lexer.readString());
+        lexer.readChar(':');
+        lexer.skipWhitespace();
+        assertEquals(12, lexer.readNumber());
+        lexer.readChar('}');
+        assertEquals(CharLexer.END_OF_DATA, lexer.peek());
+        assertEquals(CharLexer.END_OF_DATA, new CharLexer("").peek());
+    }
+
+}
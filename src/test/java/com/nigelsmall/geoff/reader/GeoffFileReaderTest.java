@@ -0,0 +1,101 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GeoffFileReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String text) throws Exception {
+        File file = folder.newFile("test.geoff");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    private List<Subgraph> readSequentially(String text) throws Exception {
+        GeoffReader reader = new GeoffReader(new StringReader(text));
+        List<Subgraph> subgraphs = new ArrayList<>();
+        while (reader.hasMore()) {
+            subgraphs.add(reader.readSubgraph());
+        }
+        return subgraphs;
+    }
+
+    @Test
+    public void testSeekToAnySubgraph() throws Exception {
+        StringBuilder builder = new StringBuilder("/* ~~~~ */\n");
+        for (int i = 0; i < 30; i++) {
+            builder.append("(skàn").append(i).append(" {\"text\":\"~~~~\\\"~~~~\"})-[:KNOWS]->(b)\n~~~~~~~~\n");
+        }
+        String text = builder.toString();
+        List<Subgraph> expected = readSequentially(text);
+        try (GeoffFileReader reader = new GeoffFileReader(write(text))) {
+            assertEquals(expected.size(), reader.size());
+            for (int n : new int[] {29, 0, 17, 3}) {
+                Subgraph subgraph = reader.readSubgraph(n);
+                assertEquals(expected.get(n).getNodes().keySet(), subgraph.getNodes().keySet());
+                assertEquals(expected.get(n).getComments(), subgraph.getComments());
+                assertEquals(1, subgraph.size());
+            }
+        }
+    }
+
+    @Test
+    public void testErrorPositionAfterSeek() throws Exception {
+        String text = "(a)\n~~~~\n(b)\n~~~~ (glùss {c})\n~~~~\n(d)";
+        List<String> messages = new ArrayList<>();
+        GeoffReader sequential = new GeoffReader(new StringReader(text));
+        try {
+            while (sequential.hasMore()) {
+                sequential.readSubgraph();
+            }
+            fail();
+        } catch (GeoffReaderException e) {
+            messages.add(e.getMessage());
+        }
+        try (GeoffFileReader reader = new GeoffFileReader(write(text))) {
+            assertEquals(4, reader.size());
+            reader.readSubgraph(3);
+            reader.readSubgraph(2);
+            fail();
+        } catch (GeoffReaderException e) {
+            messages.add(e.getMessage());
+        }
+        assertEquals("Unexpected character at line 3 column 14", messages.get(0));
+        assertEquals(messages.get(0), messages.get(1));
+    }
+
+    @Test
+    public void testIndexIsSavedAndRebuilt() throws Exception {
+        File file = write("(a)\n~~~~\n(b)\n");
+        GeoffFileIndex index = GeoffFileIndex.open(file);
+        File indexFile = new File(file.getPath() + GeoffFileIndex.SUFFIX);
+        assertTrue(indexFile.exists());
+        assertEquals(2, index.size());
+        assertEquals(8, index.getOffset(1));
+        assertEquals(1, index.getLineNo(1));
+        assertEquals(4, index.getColumn(1));
+        assertEquals(2, GeoffFileIndex.read(indexFile).size());
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("~~~~\n(c)\n".getBytes("UTF-8"));
+        }
+        assertEquals(3, GeoffFileIndex.open(file).size());
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeoffFilterTest {
+
+    final private static String GEOFF = "/* people */\n" +
+            "(alice:Person {\"name\":\"Alice\",\"age\":33,\"tags\":[\"a\",\"b\"]})\n" +
+            "(paris:City {\"name\":\"Paris\",\"info\":[1,2]})\n" +
+            "(bob:Person {\"name\":\"Bob\"})\n" +
+            "(alice)-[:KNOWS {\"since\":1999,\"note\":\"old friends\"}]->(bob)\n" +
+            "(alice)-[:LIVES_IN {\"since\":2001}]->(paris) {\"verified\":true}\n" +
+            "(bob)-[:VISITED]->(london:City {\"name\":\"London\"})\n" +
+            "(rome:City)<-[:VISITED]-(carol)\n" +
+            ":City:name:=>(rome)\n" +
+            "~~~~\n" +
+            "(paris)-[:TWINNED_WITH]->(rome)\n";
+
+    private GeoffReader[] readers(GeoffFilter filter) throws Exception {
+        byte[] bytes = GEOFF.getBytes("UTF-8");
+        GeoffReader[] readers = {new GeoffReader(GEOFF), new GeoffReader(new ByteArrayInputStream(bytes)),
+                new GeoffReader(StructuralIndex.build(bytes))};
+        for (GeoffReader reader : readers) {
+            reader.setFilter(filter);
+        }
+        return readers;
+    }
+
+    @Test
+    public void testKeepTypesAndTheirNodes() throws Exception {
+        GeoffFilter filter = new GeoffFilter();
+        filter.setTypes(Collections.singleton("VISITED"));
+        filter.setLabels(Collections.<String>emptySet());
+        filter.setComments(false);
+        for (GeoffReader reader : this.readers(filter)) {
+            Subgraph subgraph = reader.readSubgraph();
+            assertEquals(2, subgraph.size());
+            for (AbstractRelationship rel : subgraph.getRelationships()) {
+                assertEquals("VISITED", rel.getType());
+            }
+            assertEquals(4, subgraph.order());
+            // nodes written before a kept relationship needed them
+            assertEquals("Bob", subgraph.getNodes().get("bob").getProperties().get("name"));
+            assertEquals("London", subgraph.getNodes().get("london").getProperties().get("name"));
+            assertEquals("name", subgraph.getNodes().get("rome").getUniqueKey());
+            assertFalse(subgraph.getNodes().containsKey("alice"));
+            assertTrue(subgraph.getComments().isEmpty());
+            Subgraph next = reader.readSubgraph();
+            assertEquals(0, next.size());
+            assertEquals(0, next.order());
+        }
+    }
+
+    @Test
+    public void testKeepLabels() throws Exception {
+        GeoffFilter filter = new GeoffFilter();
+        filter.setLabels(Collections.singleton("Person"));
+        filter.setTypes(Collections.<String>emptySet());
+        for (GeoffReader reader : this.readers(filter)) {
+            Subgraph subgraph = reader.readSubgraph();
+            assertEquals(0, subgraph.size());
+            assertEquals(2, subgraph.order());
+            assertEquals(33, subgraph.getNodes().get("alice").getProperties().get("age"));
+            assertEquals(Arrays.asList("people"), subgraph.getComments());
+        }
+    }
+
+    @Test
+    public void testKeepAllNodesOfSomeTypes() throws Exception {
+        GeoffFilter filter = new GeoffFilter();
+        filter.setTypes(Collections.singleton("LIVES_IN"));
+        for (GeoffReader reader : this.readers(filter)) {
+            Subgraph subgraph = reader.readSubgraph();
+            assertEquals(1, subgraph.size());
+            AbstractRelationship rel = subgraph.getRelationships().get(0);
+            assertEquals(true, rel.getProperties().get("verified"));
+            assertEquals(2001, rel.getProperties().get("since"));
+            assertEquals(6, subgraph.order());
+        }
+    }
+
+    @Test
+    public void testProjectPropertyKeys() throws Exception {
+        GeoffFilter filter = new GeoffFilter();
+        filter.setPropertyKeys(Arrays.asList("name", "since"));
+        for (GeoffReader reader : this.readers(filter)) {
+            reader.setLazyProperties(true);
+            Subgraph subgraph = reader.readSubgraph();
+            AbstractNode alice = subgraph.getNodes().get("alice");
+            assertEquals(Collections.singleton("name"), alice.getProperties().keySet());
+            assertEquals(Collections.singleton("name"), subgraph.getNodes().get("paris").getProperties().keySet());
+            AbstractRelationship knows = subgraph.getRelationships().get(0);
+            assertEquals(1999, knows.getProperties().get("since"));
+            assertNull(knows.getProperties().get("note"));
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GeoffFollowerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void append(File file, String text) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testSubgraphsAreReadAsTheirBoundariesArrive() throws Exception {
+        File file = folder.newFile("log.geoff");
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertNull(follower.poll());
+            append(file, "(a)-[:KNOWS]->(b {\"text\":\"~~~~\\n\"})\n/* ~~~~ */\n(c");
+            assertNull(follower.poll());
+            append(file, ")\n~~~~");
+            // the boundary might still go on
+            assertNull(follower.poll());
+            append(file, "\n(d)\n~~~~\n(e)\n~~~~\n(f)");
+            Subgraph subgraph = follower.poll();
+            assertEquals(3, subgraph.order());
+            assertEquals(1, subgraph.size());
+            assertEquals(1, subgraph.getComments().size());
+            assertTrue(follower.poll().getNodes().containsKey("d"));
+            assertTrue(follower.take().getNodes().containsKey("e"));
+            assertNull(follower.poll());
+        }
+    }
+
+    @Test
+    public void testResumeFromSavedOffset() throws Exception {
+        File file = folder.newFile("log.geoff");
+        append(file, "(a)\n~~~~\n(b)\n~~~~\n(c)\n");
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertTrue(follower.poll().getNodes().containsKey("a"));
+            assertTrue(follower.poll().getNodes().containsKey("b"));
+            assertNull(follower.poll());
+        }
+        append(file, "~~~~\n(d)\n  (d) -> oops\n~~~~\n");
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertTrue(follower.poll().getNodes().containsKey("c"));
+            try {
+                follower.poll();
+                fail();
+            } catch (GeoffReaderException e) {
+                // reported at its place in the whole file
+                assertTrue(e.getMessage(), e.getMessage().contains("at line 7 "));
+            }
+        }
+        // the subgraph that failed has not been consumed
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertEquals(file.length() - 24, follower.getOffset());
+        }
+    }
+
+    @Test
+    public void testFailedSubgraphIsReadAgainUntilSkipped() throws Exception {
+        File file = folder.newFile("log.geoff");
+        append(file, "(a)\n~~~~\n(b) -> oops\n~~~~\n(c)\n~~~~\n");
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertTrue(follower.poll().getNodes().containsKey("a"));
+            for (int i = 0; i < 2; i++) {
+                try {
+                    follower.poll();
+                    fail();
+                } catch (GeoffReaderException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("at line 2 "));
+                }
+            }
+            assertEquals(8, follower.getOffset());
+            assertTrue(follower.skip());
+            assertTrue(follower.poll().getNodes().containsKey("c"));
+            assertFalse(follower.skip());
+            assertNull(follower.poll());
+        }
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertEquals(file.length() - 1, follower.getOffset());
+        }
+    }
+
+    @Test
+    public void testBacklogIsReadAsNeeded() throws Exception {
+        File file = folder.newFile("log.geoff");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("(a").append(i).append(")\n~~~~\n");
+        }
+        append(file, builder.toString());
+        try (GeoffFollower follower = new GeoffFollower(file)) {
+            assertTrue(follower.poll().getNodes().containsKey("a0"));
+            assertTrue(file.length() > 200000);
+            assertTrue(follower.getBufferedLength() <= 65536);
+            int count = 1;
+            while (follower.poll() != null) {
+                assertTrue(follower.getBufferedLength() <= 65536);
+                count++;
+            }
+            assertEquals(20000, count);
+        }
+    }
+
+}
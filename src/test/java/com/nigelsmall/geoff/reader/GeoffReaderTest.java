@@ -1,10 +1,26 @@
 package com.nigelsmall.geoff.reader;
 
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.AbstractRelationship;
+import com.nigelsmall.geoff.Subgraph;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author mh
@@ -27,4 +43,207 @@ public class GeoffReaderTest {
             assertEquals("Unexpected character at line 1 column 4",gre.getMessage());
         }
     }
+    @Test
+    public void testReadLargeDocuments() throws Exception {
+        for (int n : new int[] {10000, 40000}) {
+            GeoffReader reader = new GeoffReader(new InputStreamReader(
+                    getClass().getResourceAsStream("/" + n + ".geoff"), "UTF-8"));
+            Subgraph subgraph = reader.readSubgraph();
+            assertEquals(n, subgraph.order());
+            assertEquals(n, subgraph.size());
+            assertEquals(false, reader.hasMore());
+        }
+    }
+    @Test
+    public void testReadUtf8Bytes() throws Exception {
+        GeoffReader reader = new GeoffReader(getClass().getResourceAsStream("/10000.geoff"));
+        Subgraph subgraph = reader.readSubgraph();
+        assertEquals(10000, subgraph.order());
+        assertEquals(10000, subgraph.size());
+        assertEquals("Spòct", subgraph.getNodes().get("glùss").getLabels().iterator().next());
+    }
+    @Test
+    public void testParseWithHandler() throws Exception {
+        final int[] counts = new int[5];
+        GeoffReader reader = new GeoffReader(getClass().getResourceAsStream("/test.geoff"));
+        reader.parse(new GeoffHandler() {
+            public void onNode(AbstractNode node) { counts[0]++; }
+            public void onRelationship(AbstractRelationship relationship) { counts[1]++; }
+            public void onHook(String label, String key, AbstractNode node) { counts[2]++; }
+            public void onComment(String comment) { counts[3]++; }
+            public void onBoundary() { counts[4]++; }
+        });
+        GeoffReader subgraphReader = new GeoffReader(getClass().getResourceAsStream("/test.geoff"));
+        int boundaries = 0, comments = 0, relationships = 0;
+        while (subgraphReader.hasMore()) {
+            Subgraph subgraph = subgraphReader.readSubgraph();
+            comments += subgraph.getComments().size();
+            relationships += subgraph.size();
+            boundaries++;
+        }
+        assertEquals(relationships, counts[1]);
+        assertEquals(comments, counts[3]);
+        assertEquals(boundaries - 1, counts[4]);
+    }
+    @Test
+    public void testBuildWholeDocument() throws Exception {
+        SubgraphBuilder builder = new SubgraphBuilder();
+        new GeoffReader("(a)\n~~~~\n(a:Person)\n:Person:name:=>(a)\n(b)-[:KNOWS]->(a)").parse(builder);
+        Subgraph subgraph = builder.getSubgraph();
+        assertEquals(2, subgraph.order());
+        assertEquals(1, subgraph.size());
+        assertEquals("name", subgraph.getNodes().get("a").getUniqueKey());
+    }
+    @Test
+    public void testNamesAreShared() throws Exception {
+        String geoff = "(a:Person {\"name\":\"Alice\"})-[:KNOWS]->(b:Person {\"name\":\"Bob\"})\n" +
+                "(b)-[:KNOWS]->(c:Person {\"name\":\"Alice\"})";
+        for (GeoffReader reader : new GeoffReader[] {new GeoffReader(geoff),
+                new GeoffReader(new ByteArrayInputStream(geoff.getBytes("UTF-8"))),
+                new GeoffReader(StructuralIndex.build(geoff.getBytes("UTF-8")))}) {
+            reader.setValuePool(new StringPool());
+            Subgraph subgraph = reader.readSubgraph();
+            AbstractNode a = subgraph.getNodes().get("a");
+            AbstractNode c = subgraph.getNodes().get("c");
+            assertSame(a.getLabels().iterator().next(), c.getLabels().iterator().next());
+            assertSame(a.getProperties().keySet().iterator().next(), c.getProperties().keySet().iterator().next());
+            assertSame(a.getProperties().get("name"), c.getProperties().get("name"));
+            assertSame(subgraph.getRelationships().get(0).getType(), subgraph.getRelationships().get(1).getType());
+        }
+    }
+    @Test
+    public void testPoolingCanBeDisabled() throws Exception {
+        GeoffReader reader = new GeoffReader("(a:Person)\n(b:Person)");
+        reader.setNamePool(null);
+        Subgraph subgraph = reader.readSubgraph();
+        String a = subgraph.getNodes().get("a").getLabels().iterator().next();
+        String b = subgraph.getNodes().get("b").getLabels().iterator().next();
+        assertEquals(a, b);
+        assertNotSame(a, b);
+    }
+    @Test
+    public void testPrimitiveArraysAndLongs() throws Exception {
+        String geoff = "(a {\"ints\":[1, 2, -3], \"longs\":[1, 4294967296], \"doubles\":[1, 2.5, 4294967296], " +
+                "\"flags\":[true,false], \"names\":[\"x\",\"y\"], \"none\":[], " +
+                "\"big\":9007199254740993, \"huge\":-1234567890123456789, \"small\":42})";
+        for (GeoffReader reader : new GeoffReader[] {new GeoffReader(geoff),
+                new GeoffReader(new ByteArrayInputStream(geoff.getBytes("UTF-8"))),
+                new GeoffReader(StructuralIndex.build(geoff.getBytes("UTF-8")))}) {
+            Map<String, Object> properties = reader.readSubgraph().getNodes().get("a").getProperties();
+            assertArrayEquals(new int[] {1, 2, -3}, (int[]) properties.get("ints"));
+            assertArrayEquals(new long[] {1, 4294967296L}, (long[]) properties.get("longs"));
+            assertArrayEquals(new double[] {1, 2.5, 4294967296.0}, (double[]) properties.get("doubles"), 0.0);
+            assertTrue(Arrays.equals(new boolean[] {true, false}, (boolean[]) properties.get("flags")));
+            assertArrayEquals(new String[] {"x", "y"}, (String[]) properties.get("names"));
+            assertEquals(0, ((Object[]) properties.get("none")).length);
+            assertEquals(9007199254740993L, properties.get("big"));
+            assertEquals(-1234567890123456789L, properties.get("huge"));
+            assertEquals(42, properties.get("small"));
+        }
+    }
+    @Test
+    public void testLazyProperties() throws Exception {
+        String geoff = "(a:Person {\"name\":\"Alice\", \"tags\":[\"x]\", \"{y\"]})\n" +
+                "(b:Person!name {\"name\":\"Bob\"})\n" +
+                "(a {\"age\":33, \"name\":\"Alicia\"})\n" +
+                "(a)-[:KNOWS {\"since\":1999}]->(b)";
+        for (GeoffReader reader : new GeoffReader[] {new GeoffReader(geoff),
+                new GeoffReader(new ByteArrayInputStream(geoff.getBytes("UTF-8"))),
+                new GeoffReader(StructuralIndex.build(geoff.getBytes("UTF-8")))}) {
+            reader.setLazyProperties(true);
+            Subgraph subgraph = reader.readSubgraph();
+            AbstractNode b = subgraph.getNodes().get("b");
+            assertNull(b.getRawProperties());
+            assertEquals("Bob", b.getUniqueValue());
+            AbstractRelationship rel = subgraph.getRelationships().get(0);
+            assertNotNull(rel.getRawProperties());
+            assertEquals(1999, rel.getProperties().get("since"));
+            assertNull(rel.getRawProperties());
+            Map<String, Object> properties = subgraph.getNodes().get("a").getProperties();
+            assertEquals("Alicia", properties.get("name"));
+            assertEquals(33, properties.get("age"));
+            assertArrayEquals(new String[] {"x]", "{y"}, (String[]) properties.get("tags"));
+        }
+    }
+    @Test
+    public void testLazyPropertiesDecodeOnlyWhenNeeded() throws Exception {
+        GeoffReader reader = new GeoffReader("(a:Person {\"name\": oops})");
+        reader.setLazyProperties(true);
+        AbstractNode a = reader.readSubgraph().getNodes().get("a");
+        assertEquals("Person", a.getLabels().iterator().next());
+        assertNotNull(a.getRawProperties());
+        try {
+            a.getProperties();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof GeoffReaderException);
+        }
+    }
+
+    @Test
+    public void testAnonymousNodes() throws Exception {
+        Subgraph subgraph = new GeoffReader("(a)-[:KNOWS]->(:Person {\"name\":\"Bob\"})<-[:KNOWS]-(c)\n()").readSubgraph();
+        assertEquals(4, subgraph.order());
+        assertEquals(2, subgraph.size());
+        AbstractNode bob = subgraph.getRelationships().get(0).getEndNode();
+        assertSame(bob, subgraph.getRelationships().get(1).getEndNode());
+        assertTrue(!bob.isNamed());
+        String name = bob.getName();
+        assertEquals(36, name.length());
+        assertEquals(name, bob.getName());
+        assertSame(bob, subgraph.getNodes().get(name));
+        assertEquals(4, subgraph.getNodes().keySet().size());
+        assertTrue(bob.toString().startsWith("(" + name + ":Person "));
+        Subgraph other = new Subgraph();
+        other.merge(subgraph);
+        assertEquals(4, other.order());
+    }
+    @Test
+    public void testNodesCanBeChangedThroughMap() throws Exception {
+        Subgraph subgraph = new GeoffReader("(a)\n(b)\n(:Person)\n()").readSubgraph();
+        Map<String, AbstractNode> nodes = subgraph.getNodes();
+        AbstractNode a = nodes.get("a");
+        String name = null;
+        for (AbstractNode node : nodes.values()) {
+            if (!node.isNamed() && node.getLabels() != null) {
+                name = node.getName();
+            }
+        }
+        assertSame(a, nodes.remove("a"));
+        assertNull(nodes.remove("a"));
+        assertNotNull(nodes.remove(name));
+        assertEquals(2, subgraph.order());
+        assertNull(nodes.put("c", a));
+        assertSame(a, nodes.get("c"));
+        assertEquals(3, subgraph.order());
+        // removing while iterating, from named and anonymous nodes alike
+        Iterator<AbstractNode> iterator = nodes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() != a) {
+                iterator.remove();
+            }
+        }
+        assertEquals(1, subgraph.order());
+        assertEquals(Collections.singleton("c"), nodes.keySet());
+        nodes.clear();
+        assertEquals(0, subgraph.order());
+    }
+    @Test
+    public void testRelationshipsFromOneBox() throws Exception {
+        Subgraph subgraph = new GeoffReader("(a:Person)<-[:KNOWS!since {\"since\":1999}]->(b)\n(a {\"name\":\"Alice\"})")
+                .readSubgraph();
+        assertEquals(2, subgraph.size());
+        AbstractRelationship ba = subgraph.getRelationships().get(0);
+        AbstractRelationship ab = subgraph.getRelationships().get(1);
+        assertEquals("b", ba.getStartNode().getName());
+        assertEquals("a", ab.getStartNode().getName());
+        assertEquals("since", ba.getUniqueKey());
+        assertEquals("since", ab.getUniqueKey());
+        ab.getProperties().put("since", 2000);
+        assertEquals(1999, ba.getProperties().get("since"));
+        AbstractNode a = subgraph.getNodes().get("a");
+        assertEquals("Alice", a.getProperties().get("name"));
+        assertTrue(a.getLabels().contains("Person"));
+    }
+
 }
@@ -0,0 +1,172 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.AbstractNode;
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGeoffReaderTest {
+
+    private List<Subgraph> readSequentially(String text) throws Exception {
+        GeoffReader reader = new GeoffReader(new StringReader(text));
+        List<Subgraph> subgraphs = new ArrayList<>();
+        while (reader.hasMore()) {
+            subgraphs.add(reader.readSubgraph());
+        }
+        return subgraphs;
+    }
+
+    private List<Subgraph> readInParallel(String text) throws Exception {
+        return new ParallelGeoffReader(text.getBytes("UTF-8")).readSubgraphs(new ForkJoinPool(4));
+    }
+
+    private void assertSameSubgraphs(String text) throws Exception {
+        List<Subgraph> expected = readSequentially(text);
+        List<Subgraph> actual = readInParallel(text);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getNodes().keySet(), actual.get(i).getNodes().keySet());
+            assertEquals(expected.get(i).size(), actual.get(i).size());
+            assertEquals(expected.get(i).getComments(), actual.get(i).getComments());
+        }
+    }
+
+    @Test
+    public void testSubgraphsAreReturnedInOrder() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("(a").append(i).append(")-[:KNOWS]->(b").append(i).append(")\n~~~~\n");
+        }
+        List<Subgraph> subgraphs = readInParallel(builder.toString());
+        assertEquals(100, subgraphs.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(true, subgraphs.get(i).getNodes().containsKey("a" + i));
+        }
+        assertSameSubgraphs(builder.toString());
+    }
+
+    @Test
+    public void testTildesInStringsAndComments() throws Exception {
+        String text = "(a {\"name\":\"~~~~~~\"})\n/* ~~~~ */\n(b)\n~~~~~~~~\n(c)\n";
+        List<Subgraph> subgraphs = readInParallel(text);
+        assertEquals(2, subgraphs.size());
+        assertEquals("~~~~~~", subgraphs.get(0).getNodes().get("a").getProperties().get("name"));
+        assertEquals("~~~~", subgraphs.get(0).getComments().get(0));
+        assertSameSubgraphs(text);
+    }
+
+    @Test
+    public void testEmptySubgraphs() throws Exception {
+        assertSameSubgraphs("");
+        assertSameSubgraphs("  \n");
+        assertSameSubgraphs("~~~~ ~~~~\n");
+        assertSameSubgraphs("(a)\n~~~~\n\n(b)\n~~~~  ");
+    }
+
+    @Test
+    public void testErrorFromEarliestSubgraph() throws Exception {
+        try {
+            readInParallel("(a)\n~~~~\n(b {c})\n~~~~\n(d {e})");
+        } catch (GeoffReaderException gre) {
+            assertEquals("Unexpected character at line 2 column 5", gre.getMessage());
+        }
+    }
+
+    private void assertSameNodes(Subgraph expected, Subgraph actual) {
+        assertEquals(expected.getNodes().keySet(), actual.getNodes().keySet());
+        for (AbstractNode node : expected.getNodes().values()) {
+            AbstractNode other = actual.getNodes().get(node.getName());
+            assertEquals(node.getLabels(), other.getLabels());
+            assertEquals(node.getUniqueLabel(), other.getUniqueLabel());
+            assertEquals(node.getUniqueKey(), other.getUniqueKey());
+            Map<String, Object> properties = node.getProperties();
+            if (properties == null) {
+                assertEquals(null, other.getProperties());
+            } else {
+                assertEquals(properties.keySet(), other.getProperties().keySet());
+                for (String key : properties.keySet()) {
+                    assertTrue(Arrays.deepEquals(new Object[] {properties.get(key)},
+                            new Object[] {other.getProperties().get(key)}));
+                }
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getComments(), actual.getComments());
+    }
+
+    private void assertSameChunkedSubgraph(String text, int chunks) throws Exception {
+        Subgraph expected = new GeoffReader(new StringReader(text)).readSubgraph();
+        ParallelGeoffReader reader = new ParallelGeoffReader(text.getBytes("UTF-8"));
+        assertSameNodes(expected, reader.readSubgraph(new ForkJoinPool(4), chunks));
+    }
+
+    @Test
+    public void testChunkedLargeDocuments() throws Exception {
+        for (int n : new int[] {10000, 40000}) {
+            InputStream stream = getClass().getResourceAsStream("/" + n + ".geoff");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            assertSameChunkedSubgraph(bytes.toString("UTF-8"), 16);
+            ParallelGeoffReader reader = new ParallelGeoffReader(bytes.toByteArray());
+            assertEquals(17, reader.getChunkOffsets(0, bytes.size(), 16).length);
+        }
+    }
+
+    @Test
+    public void testChunksMergeNamedNodesAndHooks() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            builder.append("(a:A").append(i).append(" {\"p").append(i).append("\":").append(i).append("})\n");
+            builder.append("(b {\"q\":").append(i).append("})-[:KNOWS]->(c").append(i % 3).append(")\n");
+            builder.append("/* comment ").append(i).append(" */\n");
+            if (i == 25) {
+                builder.append(":Person:name:=>(a)\n");
+            }
+        }
+        builder.append("(b:Thing!id {\n  \"id\": 7\n})\n~~~~\n(d)\n");
+        assertSameChunkedSubgraph(builder.toString(), 7);
+        Subgraph subgraph = new ParallelGeoffReader(builder.toString().getBytes("UTF-8"))
+                .readSubgraph(new ForkJoinPool(4), 7);
+        assertEquals("Person", subgraph.getNodes().get("a").getUniqueLabel());
+        assertEquals(49, subgraph.getNodes().get("b").getProperties().get("q"));
+        assertEquals(51, subgraph.getNodes().get("a").getLabels().size());
+        assertEquals(50, subgraph.getComments().size());
+    }
+
+    @Test
+    public void testChunksKeepValuesUnderLaterHooks() throws Exception {
+        String text = "(a {\"name\":\"Alice\"})\n(b)\n(c)\n:Person:name:=>(a)\n";
+        ParallelGeoffReader reader = new ParallelGeoffReader(text.getBytes("UTF-8"));
+        assertEquals(3, reader.getChunkOffsets(0, text.length(), 2).length);
+        assertSameChunkedSubgraph(text, 2);
+        AbstractNode a = reader.readSubgraph(new ForkJoinPool(4), 2).getNodes().get("a");
+        assertEquals("Alice", a.getProperties().get("name"));
+        assertEquals("Person", a.getUniqueLabel());
+        assertEquals("name", a.getUniqueKey());
+    }
+
+    @Test
+    public void testChunksNeverSplitElements() throws Exception {
+        String text = "(a {\"x\":\"\\n(\"})\n/* c\n(z */\n(b)-[:R]->(c)\n{\"w\":1}\n(d {\n\"y\":2\n})\n(e)\n";
+        ParallelGeoffReader reader = new ParallelGeoffReader(text.getBytes("UTF-8"));
+        int[] offsets = reader.getChunkOffsets(0, text.length(), text.length());
+        assertEquals(Arrays.toString(new int[] {0, 16, 27, 49, 63, 67}), Arrays.toString(offsets));
+        assertSameChunkedSubgraph(text, 100);
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelGzipInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A member whose file name looks like the start of another member.
+     */
+    private static byte[] gzipWithDecoyName(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {0x1F, (byte) 0x8B, 8, 8, 0, 0, 0, 0, 0, 0});
+        out.write(new byte[] {'x', 0x1F, (byte) 0x8B, 8, 1, 0});
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[1000];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        for (long value : new long[] {crc.getValue(), data.length}) {
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (value >>> (8 * i)));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private File write(byte[]... members) throws Exception {
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (byte[] member : members) {
+                out.write(member);
+            }
+        }
+        return file;
+    }
+
+    private static byte[] resource(String name) throws Exception {
+        return readAll(ParallelGzipInputStreamTest.class.getResourceAsStream(name));
+    }
+
+    @Test
+    public void testMembersAreJoinedInOrder() throws Exception {
+        byte[] data = resource("/10000.geoff");
+        int third = data.length / 3;
+        byte[][] parts = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            int end = i == 2 ? data.length : (i + 1) * third;
+            parts[i] = new byte[end - i * third];
+            System.arraycopy(data, i * third, parts[i], 0, parts[i].length);
+        }
+        File file = write(gzip(parts[0]), gzipWithDecoyName(parts[1]), gzip(parts[2]), new byte[] {0, 0});
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(file, 3, 4096, 2)));
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(file, 1, 100000, 1)));
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new FileInputStream(file))));
+    }
+
+    @Test
+    public void testReadCompressedGeoff() throws Exception {
+        byte[] data = resource("/10000.geoff");
+        Subgraph expected = new GeoffReader(new ByteArrayInputStream(data)).readSubgraph();
+        File file = write(gzip(data));
+        try (ParallelGzipInputStream in = new ParallelGzipInputStream(file)) {
+            Subgraph subgraph = new GeoffReader(in).readSubgraph();
+            assertEquals(expected.order(), subgraph.order());
+            assertEquals(expected.size(), subgraph.size());
+            assertEquals(expected.getNodes().keySet(), subgraph.getNodes().keySet());
+        }
+    }
+
+    @Test
+    public void testCorruptMember() throws Exception {
+        byte[] member = gzip("(a)-[:KNOWS]->(b)".getBytes("UTF-8"));
+        member[member.length - 5] ^= 1;
+        try {
+            readAll(new ParallelGzipInputStream(write(gzip("(c)".getBytes("UTF-8")), member)));
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+        try {
+            readAll(new ParallelGzipInputStream(write("(c)".getBytes("UTF-8"))));
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+}
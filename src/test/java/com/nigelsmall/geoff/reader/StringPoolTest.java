@@ -0,0 +1,86 @@
+package com.nigelsmall.geoff.reader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StringPoolTest {
+
+    @Test
+    public void testInternReturnsSameInstance() {
+        StringPool pool = new StringPool();
+        char[] chars = "xxPersonxx".toCharArray();
+        String s = pool.intern(chars, 2, 6);
+        assertEquals("Person", s);
+        assertSame(s, pool.intern(chars, 2, 6));
+        assertSame(s, pool.intern(new String("Person")));
+        assertEquals(2, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testLongStringsAreNotPooled() {
+        StringPool pool = new StringPool();
+        char[] chars = new char[StringPool.MAX_LENGTH + 1];
+        Arrays.fill(chars, 'x');
+        assertNotSame(pool.intern(chars, 0, chars.length), pool.intern(chars, 0, chars.length));
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void testCapacityIsBounded() {
+        StringPool pool = new StringPool(100);
+        assertEquals(128, pool.getCapacity());
+        for (int i = 0; i < 100000; i++) {
+            pool.intern("value" + i);
+        }
+        assertEquals(100000, pool.getMisses());
+        assertEquals(128, pool.getCapacity());
+    }
+
+    @Test
+    public void testRecurringStringsSurviveScan() {
+        StringPool pool = new StringPool(64);
+        String[] labels = {"Person", "Place", "Thing", "KNOWS", "name"};
+        String[] interned = new String[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            interned[i] = pool.intern(labels[i]);
+            pool.intern(labels[i]);
+        }
+        for (int i = 0; i < 100000; i++) {
+            pool.intern("unique" + i);
+            if (i % 100 == 0) {
+                for (int j = 0; j < labels.length; j++) {
+                    assertSame(interned[j], pool.intern(labels[j]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLookupsAreCountedAcrossThreads() throws Exception {
+        final StringPool pool = new StringPool();
+        pool.intern("Person");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        pool.intern("Person");
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, pool.getHits() + pool.getMisses() - 1);
+    }
+
+}
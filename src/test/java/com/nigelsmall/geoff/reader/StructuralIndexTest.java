@@ -0,0 +1,104 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StructuralIndexTest {
+
+    private List<Integer> positions(StructuralIndex index) {
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            positions.add(index.get(i));
+        }
+        return positions;
+    }
+
+    private byte[] padded(String text) throws Exception {
+        // pad out past a few 64-byte blocks so that both the word-wise
+        // scan and the byte-wise tail are exercised
+        StringBuilder builder = new StringBuilder(text);
+        while (builder.length() < 200) {
+            builder.append(' ');
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    @Test
+    public void testStringsAreMaskedOut() throws Exception {
+        StructuralIndex index = StructuralIndex.build(padded("(a {\"b(\":\"{c}\"})"));
+        assertEquals(Arrays.asList(0, 3, 4, 7, 8, 9, 13, 14, 15), positions(index));
+        assertFalse(index.isEscaped(4));
+        assertFalse(index.isEscaped(6));
+    }
+
+    @Test
+    public void testEscapedStringsAreFlagged() throws Exception {
+        StructuralIndex index = StructuralIndex.build(padded("{\"a\":\"x\\\"(\"}"));
+        assertEquals(Arrays.asList(0, 1, 3, 4, 5, 10, 11), positions(index));
+        assertFalse(index.isEscaped(2));
+        assertTrue(index.isEscaped(5));
+    }
+
+    @Test
+    public void testCommentsAreMaskedOut() throws Exception {
+        StructuralIndex index = StructuralIndex.build(padded("/* (a) \"b */\n(c)"));
+        assertEquals(Arrays.asList(0, 11, 12, 13, 15), positions(index));
+    }
+
+    @Test
+    public void testBlocksSpanningStrings() throws Exception {
+        StringBuilder builder = new StringBuilder("(a {\"b\":\"");
+        for (int i = 0; i < 150; i++) {
+            builder.append(i % 10 == 0 ? '(' : 'x');
+        }
+        builder.append("\"})");
+        StructuralIndex index = StructuralIndex.build(builder.toString().getBytes("UTF-8"));
+        assertEquals(Arrays.asList(0, 3, 4, 6, 7, 8, 159, 160, 161), positions(index));
+        assertEquals(6, index.entryAt(159));
+        assertEquals(6, index.entryAt(10));
+    }
+
+    @Test
+    public void testReadIndexedDocuments() throws Exception {
+        for (int n : new int[] {10000, 40000}) {
+            InputStream stream = getClass().getResourceAsStream("/" + n + ".geoff");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.size());
+            direct.put(bytes.toByteArray()).flip();
+            for (StructuralIndex index : new StructuralIndex[] {
+                    StructuralIndex.build(bytes.toByteArray()), StructuralIndex.build(direct)}) {
+                GeoffReader reader = new GeoffReader(index);
+                Subgraph subgraph = reader.readSubgraph();
+                assertEquals(n, subgraph.order());
+                assertEquals(n, subgraph.size());
+                assertFalse(reader.hasMore());
+            }
+        }
+    }
+
+    @Test
+    public void testErrorPosition() throws Exception {
+        try {
+            new GeoffReader(StructuralIndex.build("(A {\"b\":123})\n(A {".getBytes("UTF-8"))).readSubgraph();
+        } catch (GeoffReaderException gre) {
+            assertEquals("Unexpected character at line 1 column 4", gre.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.nigelsmall.geoff.reader;
+
+import com.nigelsmall.geoff.Subgraph;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SubgraphIterableTest {
+
+    private static class ClosingStream extends FilterInputStream {
+
+        boolean closed;
+
+        ClosingStream(String text) throws Exception {
+            super(new ByteArrayInputStream(text.getBytes("UTF-8")));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            super.close();
+        }
+
+    }
+
+    private String document(int subgraphs) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < subgraphs; i++) {
+            builder.append("(a").append(i).append(")-[:KNOWS]->(b)\n~~~~\n");
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testIterateInOrderAndClose() throws Exception {
+        ClosingStream stream = new ClosingStream(document(50));
+        int i = 0;
+        for (Subgraph subgraph : new SubgraphIterable(new GeoffReader(stream), 4)) {
+            assertTrue(subgraph.getNodes().containsKey("a" + i));
+            i++;
+        }
+        assertEquals(50, i);
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void testConcurrentTake() throws Exception {
+        final SubgraphIterable subgraphs = new SubgraphIterable(new GeoffReader(document(200)), 2);
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Subgraph subgraph;
+                        while ((subgraph = subgraphs.take()) != null) {
+                            for (String name : subgraph.getNodes().keySet()) {
+                                if (name.startsWith("a")) {
+                                    names.add(name);
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(200, names.size());
+        assertEquals(200, new java.util.HashSet<>(names).size());
+    }
+
+    @Test
+    public void testErrorIsReportedAfterGoodSubgraphs() throws Exception {
+        SubgraphIterable subgraphs = new SubgraphIterable(new GeoffReader("(a)\n~~~~\n(b {c})"));
+        assertTrue(subgraphs.take().getNodes().containsKey("a"));
+        try {
+            subgraphs.take();
+            fail();
+        } catch (GeoffReaderException e) {
+            assertEquals("Unexpected character at line 2 column 5", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        ClosingStream stream = new ClosingStream(document(100));
+        SubgraphIterable subgraphs = new SubgraphIterable(new GeoffReader(stream), 1);
+        subgraphs.take();
+        subgraphs.close();
+        assertNull(subgraphs.take());
+        for (int i = 0; i < 100 && !stream.closed; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void testNothingIsTakenAfterClose() throws Exception {
+        final SubgraphIterable[] subgraphs = new SubgraphIterable[1];
+        final Thread[] readAhead = new Thread[1];
+        final CountDownLatch taken = new CountDownLatch(1);
+        GeoffReader reader = new GeoffReader(document(10)) {
+            private int count;
+
+            @Override
+            public Subgraph readSubgraph() throws IOException {
+                readAhead[0] = Thread.currentThread();
+                Subgraph subgraph = super.readSubgraph();
+                if (++this.count == 2) {
+                    // closed while this subgraph is being read, by a
+                    // reader that does not keep the interrupt
+                    try {
+                        taken.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    subgraphs[0].close();
+                    Thread.interrupted();
+                }
+                return subgraph;
+            }
+        };
+        subgraphs[0] = new SubgraphIterable(reader, 4);
+        assertTrue(subgraphs[0].take().getNodes().containsKey("a0"));
+        taken.countDown();
+        readAhead[0].join();
+        assertNull(subgraphs[0].take());
+        assertNull(subgraphs[0].take());
+    }
+
+}